@@ -0,0 +1,58 @@
+package contact.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Result of a batch request: the HTTP status of each contact in the batch,
+ * in the order of the request.
+ * 
+ * @author Veerapat Threeravipark 5510547022
+ * 
+ */
+@XmlRootElement(name = "results")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BatchResult {
+
+	@XmlElement(name = "result")
+	private List<Item> items = new ArrayList<Item>();
+
+	/** Status of one contact of a batch. */
+	@XmlAccessorType(XmlAccessType.FIELD)
+	public static class Item {
+		@XmlAttribute
+		private long id;
+		@XmlAttribute
+		private int status;
+
+		public Item() {
+		}
+
+		public Item(long id, int status) {
+			this.id = id;
+			this.status = status;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	public void add(long id, int status) {
+		items.add(new Item(id, status));
+	}
+
+	public List<Item> getItems() {
+		return items;
+	}
+}
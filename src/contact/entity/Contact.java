@@ -3,32 +3,63 @@ package contact.entity;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.Locale;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Version;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 /**
  * A person is a contact with a name, title, and email. title is text to display
  * for this contact in a list of contacts, such as a nickname or company name.
+ * <p>
+ * Contacts are looked up by email and phone number with normalized keys (see
+ * {@link #emailKey(String)} and {@link #phoneKey(String)}), so the same
+ * address written differently still matches. Titles are searched by
+ * {@link #titleKey(String)}, ignoring case. The database keeps the keys in
+ * indexed columns; they are not part of the XML.
+ * <p>
+ * Ids of new contacts are reserved from the contact_ids table in blocks of
+ * {@link #ID_BLOCK}, by JPA and by the JPA DAO alike, so no two processes
+ * that use the database give out the same id.
+ * <p>
+ * The version of a contact is its SHA-1 (see {@link #sha1()}), which is also
+ * its ETag. The database also keeps a version number, for optimistic locking
+ * by JPA; it is not part of the XML either.
  * 
  * @author jim, Veerapat Threeravipark 5510547022
  */
 @Entity
-@Table(name = "contact")
+@Table(name = "contact", indexes = {
+		@Index(name = "contact_email_key", columnList = "emailKey"),
+		@Index(name = "contact_phone_key", columnList = "phoneKey"),
+		@Index(name = "contact_title_key", columnList = "titleKey") })
 @XmlRootElement(name = "contact")
 @XmlAccessorType(XmlAccessType.FIELD)
 public class Contact implements Serializable {
 	private static final long serialVersionUID = 1L;
+	/** number of ids reserved at once from the contact_ids table. */
+	public static final int ID_BLOCK = 64;
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "contact_ids")
+	@TableGenerator(name = "contact_ids", table = "contact_ids",
+			pkColumnName = "seq_name", valueColumnName = "last_id",
+			pkColumnValue = "contact", allocationSize = ID_BLOCK)
 	@XmlAttribute
 	private long id;
 	private String name;
@@ -38,6 +69,23 @@ public class Contact implements Serializable {
 	private String phoneNumber;
 	/** URL of photo */
 	private String photoUrl;
+	/** emailKey(email), for database lookups. */
+	@XmlTransient
+	@Column(name = "emailKey")
+	private String emailKey;
+	/** phoneKey(phoneNumber), for database lookups. */
+	@XmlTransient
+	@Column(name = "phoneKey")
+	private String phoneKey;
+	/** titleKey(title), for database searches. */
+	@XmlTransient
+	@Column(name = "titleKey")
+	private String titleKey;
+	/** version number of the row, checked by JPA when the row is changed. */
+	@XmlTransient
+	@Version
+	@Column(name = "version", columnDefinition = "BIGINT DEFAULT 0")
+	private long version;
 
 	public Contact() {
 
@@ -63,6 +111,14 @@ public class Contact implements Serializable {
 		this.id = id;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	public String getPhotoUrl() {
 		return photoUrl;
 	}
@@ -103,6 +159,72 @@ public class Contact implements Serializable {
 		this.phoneNumber = phoneNumber;
 	}
 
+	/**
+	 * Get the key used to search titles: the title in Unicode normal form C,
+	 * with case folded, so titles that look the same to a user match whatever
+	 * their case or how their accents were typed. DAOs compute the key when a
+	 * contact is saved, so searches don't need to fold every title.
+	 * 
+	 * @param title
+	 *            a title or part of one, or null
+	 * @return the key, the same String as title if folding doesn't change it,
+	 *         or null if title is null
+	 */
+	public static String titleKey(String title) {
+		if (title == null)
+			return null;
+		String key = Normalizer.normalize(title, Normalizer.Form.NFC);
+		// upper then lower case also folds letters like the German sharp s
+		// and Greek final sigma, which have no single lower case partner
+		key = key.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+		key = Normalizer.normalize(key, Normalizer.Form.NFC);
+		return key.equals(title) ? title : key;
+	}
+
+	/**
+	 * Get the key used to look up an email address: the address without
+	 * surrounding space, in lower case.
+	 * 
+	 * @param email
+	 *            an email address, or null
+	 * @return the key, or null if email is null or blank
+	 */
+	public static String emailKey(String email) {
+		if (email == null)
+			return null;
+		String key = email.trim().toLowerCase(Locale.ROOT);
+		return key.isEmpty() ? null : key;
+	}
+
+	/**
+	 * Get the key used to look up a phone number: its digits, so spaces,
+	 * dashes and brackets don't matter.
+	 * 
+	 * @param phoneNumber
+	 *            a phone number, or null
+	 * @return the key, or null if phoneNumber has no digits
+	 */
+	public static String phoneKey(String phoneNumber) {
+		if (phoneNumber == null)
+			return null;
+		StringBuilder key = new StringBuilder(phoneNumber.length());
+		for (int k = 0; k < phoneNumber.length(); k++) {
+			char c = phoneNumber.charAt(k);
+			if (c >= '0' && c <= '9')
+				key.append(c);
+		}
+		return key.length() == 0 ? null : key.toString();
+	}
+
+	/** Set the lookup keys from the fields, before the contact is stored. */
+	@PrePersist
+	@PreUpdate
+	void updateKeys() {
+		emailKey = emailKey(email);
+		phoneKey = phoneKey(phoneNumber);
+		titleKey = titleKey(title);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("[%ld] %s (%s)", id, name, title);
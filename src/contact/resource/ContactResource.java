@@ -1,32 +1,53 @@
 package contact.resource;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.bind.JAXBElement;
 
+import contact.entity.BatchResult;
 import contact.entity.Contact;
+import contact.entity.Contacts;
+import contact.service.AsyncContactDao;
+import contact.service.ContactCallback;
+import contact.service.ContactCursor;
 import contact.service.ContactDao;
+import contact.service.ContactField;
 import contact.service.DaoFactory;
+import contact.service.mem.ContactXml;
 
 /**
  * ContactResource provides RESTful web resources using JAX-RS annotations to
@@ -38,45 +59,316 @@ import contact.service.DaoFactory;
 @Path("/contacts")
 @Singleton
 public class ContactResource {
+	/** the most contacts returned by one suggest request. */
+	private static final int MAX_SUGGESTIONS = 50;
+	/** contacts in a page of all contacts, if the request has no limit. */
+	private static final int DEFAULT_PAGE = 100;
+	/** the most contacts in one page of all contacts. */
+	private static final int MAX_PAGE = 1000;
+	/** header with the number of all contacts, or of matching contacts. */
+	static final String TOTAL_COUNT = "X-Total-Count";
 	private ContactDao dao;
+	private AsyncContactDao async;
 	private CacheControl cc;
 	@Context
 	private UriInfo uriInfo;
 
+	/**
+	 * Callback that resumes a suspended request with the response made from
+	 * the result of a DAO call. It runs on a thread of the AsyncContactDao,
+	 * so respond may call the DAO again without blocking a request thread,
+	 * but must not use the injected uriInfo, which belongs to the request
+	 * thread.
+	 */
+	private abstract static class Resume<T> implements ContactCallback<T> {
+		private final AsyncResponse response;
+
+		Resume(AsyncResponse response) {
+			this.response = response;
+		}
+
+		/** Make the response for the result of the call. */
+		abstract Response respond(T result);
+
+		public void completed(T result) {
+			try {
+				response.resume(respond(result));
+			} catch (RuntimeException e) {
+				response.resume(e);
+			}
+		}
+
+		public void failed(Throwable cause) {
+			if (cause instanceof RejectedExecutionException) {
+				// the DAO is busy, so ask the client to come back later
+				response.resume(Response.status(
+						Response.Status.SERVICE_UNAVAILABLE).build());
+			} else {
+				response.resume(cause);
+			}
+		}
+	}
+
+	/**
+	 * Resume a request with 200 OK and a list, or 404 if it is empty. The
+	 * list is projected to fields, if they are given.
+	 */
+	private class ResumeList extends Resume<List<Contact>> {
+		private final Set<ContactField> fields;
+
+		ResumeList(AsyncResponse response, Set<ContactField> fields) {
+			super(response);
+			this.fields = fields;
+		}
+
+		Response respond(List<Contact> contacts) {
+			if (fields != null) {
+				List<Contact> projected = new ArrayList<Contact>();
+				for (Contact contact : contacts) {
+					projected.add(ContactField.project(contact, fields));
+				}
+				contacts = projected;
+			}
+			if (!contacts.isEmpty()) {
+				return Response.ok(convertListToGE(contacts)).build();
+			}
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+	}
+
 	/**
 	 * Construct ContactDao from DaoFactory.
 	 */
 	public ContactResource() {
 		cc = new CacheControl();
 		cc.setMaxAge(46800);
-		dao = DaoFactory.getInstance().getContactDao();
+		async = DaoFactory.getInstance().getAsyncContactDao();
+		dao = async.getContactDao();
 		System.out.println("Initial ContactDao.");
 	}
 
 	/**
 	 * Get a list of all contacts or Get contact(s) whose title contains the
-	 * query string (substring match).
+	 * query string (substring match), or contacts with an email address or
+	 * phone number. Only the first of title, email and phone given is used.
+	 * If none of them is given but after or limit is, a page of all contacts
+	 * is returned, ordered by id. Otherwise all contacts are streamed. If
+	 * fields is given, the contacts only have those fields, such as
+	 * "id,title" for a list of titles; a page or all contacts are then read
+	 * with only those fields. A page and all contacts have the number of all
+	 * contacts in the X-Total-Count header.
 	 * 
 	 * @param query
 	 *            is query string (title)
-	 * @return response 200 OK if result not null that show list of result
-	 *         contacts. If result is null response 404 NOT FOUND
+	 * @param email
+	 *            email address, compared ignoring case
+	 * @param phone
+	 *            phone number, compared by its digits
+	 * @param after
+	 *            id of the last contact of the previous page, or missing for
+	 *            the first page
+	 * @param limit
+	 *            number of contacts in a page, at most MAX_PAGE
+	 * @param fieldNames
+	 *            names of the fields to return, separated by commas
+	 * @param response
+	 *            resumed with 200 OK if result not null that show list of
+	 *            result contacts. If result is null response 404 NOT FOUND,
+	 *            and if a field name is unknown 400 BAD REQUEST
 	 */
 	@GET
 	@Produces(MediaType.APPLICATION_XML)
-	public Response getContact(@QueryParam("title") String query,
-			@Context Request request) {
-		GenericEntity<List<Contact>> ge = null;
+	public void getContact(@QueryParam("title") String query,
+			@QueryParam("email") String email,
+			@QueryParam("phone") String phone,
+			@QueryParam("after") Long after,
+			@QueryParam("limit") Integer limit,
+			@QueryParam("fields") String fieldNames,
+			@Suspended AsyncResponse response) {
+		Set<ContactField> fields = null;
+		if (fieldNames != null) {
+			try {
+				fields = ContactField.parse(fieldNames);
+			} catch (IllegalArgumentException e) {
+				response.resume(Response.status(Response.Status.BAD_REQUEST)
+						.build());
+				return;
+			}
+		}
 		if (query != null) {
-			ge = convertListToGE(dao.findByTitle(query));
+			async.findByTitle(query, new ResumeList(response, fields));
+		} else if (email != null) {
+			async.findByEmail(email, new ResumeList(response, fields));
+		} else if (phone != null) {
+			async.findByPhoneNumber(phone, new ResumeList(response, fields));
+		} else if (after != null || limit != null) {
+			getPage(after == null ? 0 : after,
+					limit == null ? DEFAULT_PAGE : limit, fields, response);
 		} else {
-			ge = convertListToGE(dao.findAll());
+			getAll(fields, response);
 		}
-		if (!ge.getEntity().isEmpty()) {
-			return Response.ok(ge).build();
+	}
+
+	/**
+	 * Get all contacts. The contacts document is written while the contacts
+	 * are read from a cursor, so the response starts at once and its size
+	 * doesn't change how much memory it takes.
+	 * 
+	 * @param fields
+	 *            the fields to read, or null for all
+	 * @param response
+	 *            resumed with 200 OK with all contacts, or 404 NOT FOUND if
+	 *            there are none
+	 */
+	private void getAll(Set<ContactField> fields, AsyncResponse response) {
+		Resume<ContactCursor> resume = new Resume<ContactCursor>(response) {
+			Response respond(final ContactCursor cursor) {
+				if (!cursor.hasNext()) {
+					cursor.close();
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				StreamingOutput body = new StreamingOutput() {
+					public void write(OutputStream out) throws IOException {
+						try {
+							ContactXml.write(out, cursor);
+						} finally {
+							cursor.close();
+						}
+					}
+				};
+				return Response.ok(body, MediaType.APPLICATION_XML)
+						.header(TOTAL_COUNT, dao.count()).build();
+			}
+		};
+		if (fields == null) {
+			async.streamAll(resume);
+		} else {
+			async.streamAll(fields, resume);
 		}
-		return Response.status(Response.Status.NOT_FOUND).build();
+	}
 
+	/**
+	 * Get a page of all contacts, ordered by id. One more contact than the
+	 * page is read, so the next page is only linked if there is one.
+	 * 
+	 * @param fields
+	 *            the fields to read, or null for all
+	 * @param response
+	 *            resumed with 200 OK with the contacts and a Link header with
+	 *            rel="next" to the next page, if there is one. If the page is
+	 *            empty 404 NOT FOUND, and if limit is not positive or after
+	 *            is negative 400 BAD REQUEST
+	 */
+	private void getPage(long after, int limit, Set<ContactField> fields,
+			AsyncResponse response) {
+		if (after < 0 || limit <= 0) {
+			response.resume(Response.status(Response.Status.BAD_REQUEST)
+					.build());
+			return;
+		}
+		final int size = Math.min(limit, MAX_PAGE);
+		final UriBuilder request = uriInfo.getRequestUriBuilder();
+		Resume<List<Contact>> resume = new Resume<List<Contact>>(response) {
+			Response respond(List<Contact> page) {
+				if (page.isEmpty()) {
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				long total = dao.count();
+				if (page.size() <= size) {
+					return Response.ok(convertListToGE(page))
+							.header(TOTAL_COUNT, total).build();
+				}
+				page = new ArrayList<Contact>(page.subList(0, size));
+				URI next = request
+						.replaceQueryParam("after", page.get(size - 1).getId())
+						.replaceQueryParam("limit", size).build();
+				return Response.ok(convertListToGE(page)).link(next, "next")
+						.header(TOTAL_COUNT, total).build();
+			}
+		};
+		if (fields == null) {
+			async.findAll(after, size + 1, resume);
+		} else {
+			async.findAll(after, size + 1, fields, resume);
+		}
+	}
+
+	/**
+	 * Count contacts without reading them: all contacts, or the contacts
+	 * whose title contains the query string.
+	 * 
+	 * @param query
+	 *            is query string (title), or missing to count all contacts
+	 * @param response
+	 *            resumed with 200 OK and the count in the X-Total-Count
+	 *            header
+	 */
+	@HEAD
+	public void countContacts(@QueryParam("title") String query,
+			@Suspended AsyncResponse response) {
+		Resume<Long> resume = new Resume<Long>(response) {
+			Response respond(Long count) {
+				return Response.ok().header(TOTAL_COUNT, count).build();
+			}
+		};
+		if (query != null) {
+			async.countByTitle(query, resume);
+		} else {
+			async.count(resume);
+		}
+	}
+
+	/**
+	 * Check if a contact exists, without reading it.
+	 * 
+	 * @param id
+	 *            identifier of contact
+	 * @param response
+	 *            resumed with 200 OK if the contact exists, otherwise 404 NOT
+	 *            FOUND
+	 */
+	@HEAD
+	@Path("{id}")
+	public void headContact(@PathParam("id") long id,
+			@Suspended AsyncResponse response) {
+		async.exists(id, new Resume<Boolean>(response) {
+			Response respond(Boolean exists) {
+				if (!exists) {
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				return Response.ok().build();
+			}
+		});
+	}
+
+	/**
+	 * Suggest contacts whose title starts with a prefix, ignoring case. This
+	 * is called for each key the user types, so it returns at most a few
+	 * contacts.
+	 * 
+	 * @param prefix
+	 *            the start of a title
+	 * @param limit
+	 *            maximum number of contacts to return, at most
+	 *            MAX_SUGGESTIONS
+	 * @param response
+	 *            resumed with 200 OK with list of matching contacts ordered
+	 *            by title. If there is no match response 404 NOT FOUND, and
+	 *            if prefix is missing or limit is not positive 400 BAD REQUEST
+	 */
+	@GET
+	@Path("suggest")
+	@Produces(MediaType.APPLICATION_XML)
+	public void suggest(@QueryParam("prefix") String prefix,
+			@QueryParam("limit") @DefaultValue("10") int limit,
+			@Suspended AsyncResponse response) {
+		if (prefix == null || limit <= 0) {
+			response.resume(Response.status(Response.Status.BAD_REQUEST)
+					.build());
+			return;
+		}
+		limit = Math.min(limit, MAX_SUGGESTIONS);
+		async.findByTitlePrefix(prefix, limit, new ResumeList(response, null));
 	}
 
 	/**
@@ -84,26 +376,30 @@ public class ContactResource {
 	 * 
 	 * @param id
 	 *            identifier of contact
-	 * @return response 200 OK if result not null that show contact. If result
-	 *         is null response 404 NOT FOUND
+	 * @param response
+	 *            resumed with 200 OK if result not null that show contact. If
+	 *            result is null response 404 NOT FOUND
 	 */
 	@GET
 	@Path("{id}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response getContactById(@PathParam("id") long id,
-			@Context Request request) {
-		Contact contact = dao.find(id);
-		if (contact == null) {
-			return Response.status(Response.Status.NOT_FOUND).build();
-		}
-		EntityTag etag = attachEtag(contact);
-		ResponseBuilder builder = request.evaluatePreconditions(etag);
-		if (builder == null) {
-			builder = Response.ok(contact);
-			builder.tag(etag);
-		}
-		builder.cacheControl(cc);
-		return builder.build();
+	public void getContactById(@PathParam("id") long id,
+			@Context final Request request, @Suspended AsyncResponse response) {
+		async.find(id, new Resume<Contact>(response) {
+			Response respond(Contact contact) {
+				if (contact == null) {
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				EntityTag etag = attachEtag(contact);
+				ResponseBuilder builder = request.evaluatePreconditions(etag);
+				if (builder == null) {
+					builder = Response.ok(contact);
+					builder.tag(etag);
+				}
+				builder.cacheControl(cc);
+				return builder.build();
+			}
+		});
 	}
 
 	/**
@@ -114,93 +410,248 @@ public class ContactResource {
 	 *            element of JAXBElement
 	 * @param uriInfo
 	 *            information of URI
-	 * @return response 201 CREATED if create success that show location header.
-	 *         If same id response 409 CONFLICT, otherwise 400 BAD REQUEST
+	 * @param response
+	 *            resumed with 201 CREATED if create success that show
+	 *            location header. If same id response 409 CONFLICT, otherwise
+	 *            400 BAD REQUEST
 	 */
 	@POST
 	@Consumes(MediaType.APPLICATION_XML)
-	public Response post(JAXBElement<Contact> element,
-			@Context UriInfo uriInfo, @Context Request request) {
-		Contact contact = element.getValue();
-		if (dao.find(contact.getId()) != null) {
-			return Response.status(Response.Status.CONFLICT).build();
-		}
-
-		EntityTag etag = attachEtag(contact);
-		ResponseBuilder builder = request.evaluatePreconditions(etag);
-		if (builder == null) {
-			if (!dao.save(contact)) {
-				return Response.status(Response.Status.BAD_REQUEST).build();
+	public void post(JAXBElement<Contact> element, @Context UriInfo uriInfo,
+			@Context final Request request, @Suspended AsyncResponse response) {
+		final Contact contact = element.getValue();
+		final UriBuilder location = uriInfo.getAbsolutePathBuilder();
+		async.exists(contact.getId(), new Resume<Boolean>(response) {
+			Response respond(Boolean exists) {
+				if (exists) {
+					return Response.status(Response.Status.CONFLICT).build();
+				}
+				EntityTag etag = attachEtag(contact);
+				ResponseBuilder builder = request.evaluatePreconditions(etag);
+				if (builder == null) {
+					if (!dao.save(contact)) {
+						return Response.status(Response.Status.BAD_REQUEST)
+								.build();
+					}
+					URI uri = location.path(contact.getId() + "").build();
+					builder = Response.created(uri);
+					builder.tag(etag);
+				}
+				builder.cacheControl(cc);
+				return builder.build();
 			}
-			URI uri = uriInfo.getAbsolutePathBuilder()
-					.path(contact.getId() + "").build();
-			builder = Response.created(uri);
-			builder.tag(etag);
+		});
+	}
+
+	/**
+	 * Create many contacts at once. The contacts are saved as one batch, so
+	 * a batch takes one transaction instead of one for each contact. Each
+	 * contact gets its own status, as a POST of it alone would: 201 CREATED
+	 * if it is saved, 409 CONFLICT if a contact with its id is saved already
+	 * or comes earlier in the batch, otherwise 400 BAD REQUEST. Contacts
+	 * without an id are assigned one.
+	 * 
+	 * @param contacts
+	 *            the contacts to create
+	 * @param response
+	 *            resumed with 200 OK with the id and status of each contact,
+	 *            in the order of the request. If there are no contacts
+	 *            response 400 BAD REQUEST
+	 */
+	@POST
+	@Path("batch")
+	@Consumes(MediaType.APPLICATION_XML)
+	@Produces(MediaType.APPLICATION_XML)
+	public void postBatch(Contacts contacts, @Suspended AsyncResponse response) {
+		if (contacts == null || contacts.getContacts() == null
+				|| contacts.getContacts().isEmpty()) {
+			response.resume(Response.status(Response.Status.BAD_REQUEST)
+					.build());
+			return;
 		}
-		builder.cacheControl(cc);
-		return builder.build();
+		final List<Contact> batch = contacts.getContacts();
+		final long[] ids = new long[batch.size()];
+		for (int k = 0; k < ids.length; k++) {
+			ids[k] = batch.get(k).getId();
+		}
+		async.findAllById(ids, new Resume<List<Contact>>(response) {
+			Response respond(List<Contact> found) {
+				Set<Long> taken = new HashSet<Long>();
+				for (Contact saved : found) {
+					taken.add(saved.getId());
+				}
+				int[] status = new int[ids.length];
+				List<Contact> created = new ArrayList<Contact>();
+				for (int k = 0; k < ids.length; k++) {
+					if (ids[k] != 0 && !taken.add(ids[k])) {
+						status[k] = Response.Status.CONFLICT.getStatusCode();
+					} else {
+						created.add(batch.get(k));
+					}
+				}
+				boolean[] saved = dao.saveAll(created);
+				BatchResult result = new BatchResult();
+				for (int k = 0, c = 0; k < ids.length; k++) {
+					if (status[k] == 0) {
+						status[k] = (saved[c++] ? Response.Status.CREATED
+								: Response.Status.BAD_REQUEST).getStatusCode();
+					}
+					result.add(batch.get(k).getId(), status[k]);
+				}
+				return Response.ok(result).build();
+			}
+		});
 	}
 
 	/**
 	 * Update a contact. Only update the attributes supplied in request body.
+	 * If the request has an If-Match header with one ETag, the ETag is checked
+	 * and the contact updated in one step of the DAO, so no other change can
+	 * come between them.
 	 * 
 	 * @param id
 	 *            identifier of contact
 	 * @param element
 	 *            xml file in JAXBElement for unmarshal data
-	 * @return response 200 OK if contact can update, if invalid data response
-	 *         400 BAD REQUEST, otherwise response 404 NOT FOUND
+	 * @param ifMatch
+	 *            the If-Match header, or null
+	 * @param response
+	 *            resumed with 200 OK if contact can update, if invalid data
+	 *            response 400 BAD REQUEST, if the ETag doesn't match 412
+	 *            PRECONDITION FAILED, otherwise response 404 NOT FOUND
 	 */
 	@PUT
 	@Path("{id}")
 	@Consumes(MediaType.APPLICATION_XML)
-	public Response putContact(@PathParam("id") long id,
-			JAXBElement<Contact> element, @Context Request request) {
-		Contact newContact = element.getValue();
+	public void putContact(@PathParam("id") final long id,
+			JAXBElement<Contact> element,
+			@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+			@Context final Request request, @Suspended AsyncResponse response) {
+		final Contact newContact = element.getValue();
 		if (!(newContact.getId() == id)) {
-			return Response.status(Response.Status.BAD_REQUEST).build();
+			response.resume(Response.status(Response.Status.BAD_REQUEST)
+					.build());
+			return;
 		}
 		newContact.setId(id);
-		Contact contact = dao.find(id);
-		EntityTag etag = attachEtag(contact);
-		ResponseBuilder builder = request.evaluatePreconditions(etag);
-		if (builder == null) {
-			if (!dao.update(newContact)) {
-				return Response.status(Response.Status.NOT_FOUND).build();
-			}
-			URI uri = uriInfo.getAbsolutePath();
-			String message = "Location: " + uri + newContact.getId();
-			builder = Response.ok(message);
-			builder.tag(etag);
+		final URI uri = uriInfo.getAbsolutePath();
+		String version = versionOf(ifMatch);
+		if (version != null) {
+			async.updateIfVersion(newContact, version, new Resume<String>(
+					response) {
+				Response respond(String saved) {
+					if (saved == null) {
+						return failedPrecondition(id);
+					}
+					String message = "Location: " + uri + newContact.getId();
+					ResponseBuilder builder = Response.ok(message);
+					// the ETag of the saved contact, not of the request body
+					builder.tag(new EntityTag(saved));
+					builder.cacheControl(cc);
+					return builder.build();
+				}
+			});
+			return;
 		}
-		builder.cacheControl(cc);
-		return builder.build();
+		async.find(id, new Resume<Contact>(response) {
+			Response respond(Contact contact) {
+				EntityTag etag = attachEtag(contact);
+				ResponseBuilder builder = request.evaluatePreconditions(etag);
+				if (builder == null) {
+					if (!dao.update(newContact)) {
+						return Response.status(Response.Status.NOT_FOUND)
+								.build();
+					}
+					String message = "Location: " + uri + newContact.getId();
+					builder = Response.ok(message);
+					builder.tag(etag);
+				}
+				builder.cacheControl(cc);
+				return builder.build();
+			}
+		});
 	}
 
 	/**
-	 * Delete a contact with matching id
+	 * Delete a contact with matching id. If the request has an If-Match
+	 * header with one ETag, it is checked in the same step of the DAO as the
+	 * delete, as for putContact.
 	 * 
 	 * @param id
 	 *            identifier of contact
-	 * @return response 200 OK if contact can delete, otherwise response 404 NOT
-	 *         FOUND
+	 * @param ifMatch
+	 *            the If-Match header, or null
+	 * @param response
+	 *            resumed with 200 OK if contact can delete, if the ETag
+	 *            doesn't match 412 PRECONDITION FAILED, otherwise response 404
+	 *            NOT FOUND
 	 */
 	@DELETE
 	@Path("{id}")
-	public Response deleteContact(@PathParam("id") long id,
-			@Context Request request) {
-		Contact contact = dao.find(id);
-		if (contact == null) {
-			return Response.status(Response.Status.NOT_FOUND).build();
+	public void deleteContact(@PathParam("id") final long id,
+			@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+			@Context final Request request, @Suspended AsyncResponse response) {
+		String version = versionOf(ifMatch);
+		if (version != null) {
+			async.deleteIfVersion(id, version, new Resume<Boolean>(response) {
+				Response respond(Boolean deleted) {
+					if (!deleted) {
+						return failedPrecondition(id);
+					}
+					return Response.ok().cacheControl(cc).build();
+				}
+			});
+			return;
 		}
-		EntityTag etag = attachEtag(contact);
-		ResponseBuilder builder = request.evaluatePreconditions(etag);
-		if (builder == null) {
-			dao.delete(id);
-			builder = Response.ok();
+		async.find(id, new Resume<Contact>(response) {
+			Response respond(Contact contact) {
+				if (contact == null) {
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				EntityTag etag = attachEtag(contact);
+				ResponseBuilder builder = request.evaluatePreconditions(etag);
+				if (builder == null) {
+					dao.delete(id);
+					builder = Response.ok();
+				}
+				builder.cacheControl(cc);
+				return builder.build();
+			}
+		});
+	}
+
+	/**
+	 * Get the version a conditional change expects from an If-Match header.
+	 * 
+	 * @param ifMatch
+	 *            the If-Match header, or null
+	 * @return the value of its ETag, or null if there is no header or it is
+	 *         not one strong ETag (such as "*" or a list), which
+	 *         Request.evaluatePreconditions then checks instead
+	 */
+	private static String versionOf(String ifMatch) {
+		if (ifMatch == null || ifMatch.contains(",")
+				|| ifMatch.trim().equals("*")) {
+			return null;
+		}
+		try {
+			EntityTag tag = EntityTag.valueOf(ifMatch.trim());
+			return tag.isWeak() ? null : tag.getValue();
+		} catch (IllegalArgumentException e) {
+			return null;
 		}
-		builder.cacheControl(cc);
-		return builder.build();
+	}
+
+	/**
+	 * Make the response to a conditional change that was not made: 412 if
+	 * the contact exists, so it had another ETag, otherwise 404.
+	 */
+	private Response failedPrecondition(long id) {
+		if (dao.exists(id)) {
+			return Response.status(Response.Status.PRECONDITION_FAILED)
+					.build();
+		}
+		return Response.status(Response.Status.NOT_FOUND).build();
 	}
 
 	/**
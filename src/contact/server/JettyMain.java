@@ -102,6 +102,8 @@ public class JettyMain {
 				RESOURCE_PACKAGE);
 		holder.setInitParameter(
 				ServerProperties.JSON_PROCESSING_FEATURE_DISABLE, "false");
+		// resources suspend requests while the DAO works (see AsyncResponse)
+		holder.setAsyncSupported(true);
 		context.addServlet(holder, "/*");
 		server.setHandler(context);
 		System.out.println("Starting Jetty server on port ");
@@ -116,6 +118,7 @@ public class JettyMain {
 	 */
 	public static void stopServer() {
 		System.out.println("Stopping server.");
+		DaoFactory.getInstance().shutdownAsync();
 		DaoFactory.getInstance().shutdown();
 		System.out.println("Shutted down.");
 		try {
@@ -0,0 +1,498 @@
+package contact.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import contact.entity.Contact;
+
+/**
+ * Runs the calls of a ContactDao on a pool of threads, so the caller doesn't
+ * wait for storage. Each method queues the call of the ContactDao method with
+ * the same name and returns at once; the result is given to a
+ * {@link ContactCallback} when the call is done, and is also available from
+ * the returned Future.
+ * <p>
+ * The pool and its queue are bounded. When the queue is full a call is
+ * rejected: the callback gets a RejectedExecutionException at once, so a
+ * server can answer "busy" instead of queueing work without limit. Use
+ * {@link DaoFactory#getAsyncContactDao()} to get the one for the factory's
+ * DAO.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class AsyncContactDao {
+	/** contacts read at once by a cursor of some fields. */
+	private static final int STREAM_PAGE = 256;
+	private final ContactDao dao;
+	private final ExecutorService executor;
+	/** set on a thread of the pool while it runs a call and its callback. */
+	private final ThreadLocal<Boolean> inPool = new ThreadLocal<Boolean>();
+
+	/** A Future that gives its result to a callback when it is done. */
+	private class CallbackFuture<T> extends FutureTask<T> {
+		private final ContactCallback<? super T> callback;
+
+		CallbackFuture(Callable<T> call, ContactCallback<? super T> callback) {
+			super(call);
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			// the callback runs in done(), so it is marked as in the pool too
+			inPool.set(Boolean.TRUE);
+			try {
+				super.run();
+			} finally {
+				inPool.remove();
+			}
+		}
+
+		/** Fail a call that was not queued. */
+		void reject(RejectedExecutionException e) {
+			setException(e);
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null || isCancelled())
+				return;
+			T result;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				callback.failed(e.getCause());
+				return;
+			} catch (InterruptedException e) {
+				// never happens, since the call is done
+				Thread.currentThread().interrupt();
+				return;
+			}
+			callback.completed(result);
+		}
+	}
+
+	/**
+	 * Cursor that reads the cursor of the DAO on the pool, a page at a time,
+	 * since the DAO may not be safe to use from other threads (a JPA
+	 * EntityManager is not). It is created on the pool with its first page
+	 * read; a thread outside the pool that iterates it queues the read of
+	 * each later page and waits for it. A thread of the pool, such as one
+	 * that writes the response of a resumed request, reads the page itself,
+	 * since waiting for its own pool could wait forever.
+	 */
+	private class PoolCursor implements ContactCursor {
+		/** the cursor of the DAO, only used on the pool. */
+		private final ContactCursor source;
+		private Iterator<Contact> page;
+		/** true once a page was shorter than STREAM_PAGE. */
+		private boolean last;
+		private boolean closed;
+
+		/** Must be called on the pool. */
+		PoolCursor(ContactCursor source) {
+			this.source = source;
+			fill(read());
+		}
+
+		/** Read the next page of the source. Must be called on the pool. */
+		private List<Contact> read() {
+			List<Contact> contacts = new ArrayList<Contact>(STREAM_PAGE);
+			while (contacts.size() < STREAM_PAGE && source.hasNext())
+				contacts.add(source.next());
+			return contacts;
+		}
+
+		private void fill(List<Contact> contacts) {
+			last = contacts.size() < STREAM_PAGE;
+			page = contacts.iterator();
+		}
+
+		public boolean hasNext() {
+			if (!page.hasNext() && !last) {
+				if (Boolean.TRUE.equals(inPool.get())) {
+					fill(read());
+					return page.hasNext();
+				}
+				fill(await(submit(new Callable<List<Contact>>() {
+					public List<Contact> call() {
+						return read();
+					}
+				}, null)));
+			}
+			return page.hasNext();
+		}
+
+		public Contact next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			last = true;
+			page = Collections.<Contact> emptyList().iterator();
+			if (Boolean.TRUE.equals(inPool.get())) {
+				source.close();
+				return;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						source.close();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// better than keeping a database cursor open
+				source.close();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a call queued by a thread that is not in the pool.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the queue was full
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param dao
+	 *            the DAO to call
+	 * @param executor
+	 *            runs the calls; it should have a bounded queue (see
+	 *            {@link #newExecutor(int, int)})
+	 */
+	public AsyncContactDao(ContactDao dao, ExecutorService executor) {
+		this.dao = dao;
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a pool of daemon threads with a bounded queue, which rejects
+	 * calls while the queue is full.
+	 *
+	 * @param threads
+	 *            number of threads that call the DAO
+	 * @param queueSize
+	 *            the most calls waiting for a thread
+	 */
+	public static ExecutorService newExecutor(int threads, int queueSize) {
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "contact-dao-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), factory);
+	}
+
+	/** Get the DAO that the calls are made on. */
+	public ContactDao getContactDao() {
+		return dao;
+	}
+
+	/** Queue a call. */
+	private <T> Future<T> submit(Callable<T> call,
+			ContactCallback<? super T> callback) {
+		CallbackFuture<T> future = new CallbackFuture<T>(call, callback);
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.reject(e);
+		}
+		return future;
+	}
+
+	/** @see ContactDao#find(long) */
+	public Future<Contact> find(final long id,
+			ContactCallback<? super Contact> callback) {
+		return submit(new Callable<Contact>() {
+			public Contact call() {
+				return dao.find(id);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findAll() */
+	public Future<List<Contact>> findAll(
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findAll();
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findAll(long, int) */
+	public Future<List<Contact>> findAll(final long afterId, final int limit,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findAll(afterId, limit);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Open a cursor over all contacts. The cursor of the DAO is only used on
+	 * the pool: its contacts are read a page at a time by calls queued on the
+	 * pool, and the thread that iterates the returned cursor waits for them.
+	 *
+	 * @see ContactDao#streamAll()
+	 */
+	public Future<ContactCursor> streamAll(
+			ContactCallback<? super ContactCursor> callback) {
+		return submit(new Callable<ContactCursor>() {
+			public ContactCursor call() {
+				return new PoolCursor(dao.streamAll());
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findAll(long, int, Set) */
+	public Future<List<Contact>> findAll(final long afterId, final int limit,
+			final Set<ContactField> fields,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findAll(afterId, limit, fields);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Open a cursor over all contacts with only some fields, which reads a
+	 * page at a time with {@link ContactDao#findAll(long, int, Set)} on the
+	 * pool.
+	 */
+	public Future<ContactCursor> streamAll(final Set<ContactField> fields,
+			ContactCallback<? super ContactCursor> callback) {
+		return submit(new Callable<ContactCursor>() {
+			public ContactCursor call() {
+				return new PoolCursor(new PagedCursor(dao, STREAM_PAGE, fields));
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findAllById(long[]) */
+	public Future<List<Contact>> findAllById(final long[] ids,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findAllById(ids);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findByTitle(String) */
+	public Future<List<Contact>> findByTitle(final String title,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findByTitle(title);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findByTitlePrefix(String, int) */
+	public Future<List<Contact>> findByTitlePrefix(final String prefix,
+			final int limit, ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findByTitlePrefix(prefix, limit);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findByEmail(String) */
+	public Future<List<Contact>> findByEmail(final String email,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findByEmail(email);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#findByPhoneNumber(String) */
+	public Future<List<Contact>> findByPhoneNumber(final String phoneNumber,
+			ContactCallback<? super List<Contact>> callback) {
+		return submit(new Callable<List<Contact>>() {
+			public List<Contact> call() {
+				return dao.findByPhoneNumber(phoneNumber);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#count() */
+	public Future<Long> count(ContactCallback<? super Long> callback) {
+		return submit(new Callable<Long>() {
+			public Long call() {
+				return dao.count();
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#countByTitle(String) */
+	public Future<Long> countByTitle(final String title,
+			ContactCallback<? super Long> callback) {
+		return submit(new Callable<Long>() {
+			public Long call() {
+				return dao.countByTitle(title);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#exists(long) */
+	public Future<Boolean> exists(final long id,
+			ContactCallback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return dao.exists(id);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#save(Contact) */
+	public Future<Boolean> save(final Contact contact,
+			ContactCallback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return dao.save(contact);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#update(Contact) */
+	public Future<Boolean> update(final Contact update,
+			ContactCallback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return dao.update(update);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#updateIfVersion(Contact, String) */
+	public Future<String> updateIfVersion(final Contact update,
+			final String version, ContactCallback<? super String> callback) {
+		return submit(new Callable<String>() {
+			public String call() {
+				return dao.updateIfVersion(update, version);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#deleteIfVersion(long, String) */
+	public Future<Boolean> deleteIfVersion(final long id, final String version,
+			ContactCallback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return dao.deleteIfVersion(id, version);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#delete(long) */
+	public Future<Boolean> delete(final long id,
+			ContactCallback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return dao.delete(id);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#saveAll(List) */
+	public Future<boolean[]> saveAll(final List<Contact> contacts,
+			ContactCallback<? super boolean[]> callback) {
+		return submit(new Callable<boolean[]>() {
+			public boolean[] call() {
+				return dao.saveAll(contacts);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#updateAll(List) */
+	public Future<boolean[]> updateAll(final List<Contact> updates,
+			ContactCallback<? super boolean[]> callback) {
+		return submit(new Callable<boolean[]>() {
+			public boolean[] call() {
+				return dao.updateAll(updates);
+			}
+		}, callback);
+	}
+
+	/** @see ContactDao#deleteAll(long[]) */
+	public Future<boolean[]> deleteAll(final long[] ids,
+			ContactCallback<? super boolean[]> callback) {
+		return submit(new Callable<boolean[]>() {
+			public boolean[] call() {
+				return dao.deleteAll(ids);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Stop taking calls, and wait for the queued calls to finish, so they are
+	 * done before the DAO is shut down.
+	 *
+	 * @param timeoutMillis
+	 *            the longest time to wait
+	 * @return true if all queued calls finished
+	 */
+	public boolean shutdown(long timeoutMillis) {
+		executor.shutdown();
+		try {
+			return executor.awaitTermination(timeoutMillis,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
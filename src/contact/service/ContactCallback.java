@@ -0,0 +1,27 @@
+package contact.service;
+
+/**
+ * Receives the result of a call to an {@link AsyncContactDao}. Exactly one of
+ * the methods is called, by the thread that ran the call, or by the caller's
+ * thread if the call was rejected because the DAO's queue was full.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public interface ContactCallback<T> {
+	/**
+	 * Receive the result of a call that returned.
+	 *
+	 * @param result
+	 *            what the ContactDao method returned
+	 */
+	void completed(T result);
+
+	/**
+	 * Receive the failure of a call.
+	 *
+	 * @param cause
+	 *            what the ContactDao method threw, or a
+	 *            RejectedExecutionException if the call was never run
+	 */
+	void failed(Throwable cause);
+}
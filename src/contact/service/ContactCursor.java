@@ -0,0 +1,21 @@
+package contact.service;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import contact.entity.Contact;
+
+/**
+ * Iterator over the results of a query that reads contacts as it goes,
+ * instead of collecting them all in a list first. It may hold resources,
+ * such as a snapshot or a database cursor, until it is closed: close it in a
+ * finally block (or try-with-resources) even if it was not read to the end.
+ * A cursor that reached the end closes itself. remove is not supported.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public interface ContactCursor extends Iterator<Contact>, Closeable {
+	/** Release the resources of the cursor. Closing it again does nothing. */
+	@Override
+	void close();
+}
@@ -1,6 +1,7 @@
 package contact.service;
 
 import java.util.List;
+import java.util.Set;
 
 import contact.entity.Contact;
 /**
@@ -26,17 +27,82 @@ public interface ContactDao {
 	 *   If no contacts, returns an empty list.
 	 */
 	public abstract List<Contact> findAll();
+
+	/**
+	 * Return a page of the persisted contacts, ordered by id.
+	 * To read all contacts a page at a time, start with
+	 * afterId 0 and then pass the id of the last contact
+	 * of each page, until a page has fewer than limit contacts.
+	 * Unlike paging by position, contacts saved or deleted
+	 * between pages don't move the contacts of later pages.
+	 * @param afterId only contacts with an id greater than this are returned.
+	 * @param limit the maximum number of contacts to return.
+	 * @return list of at most limit contacts ordered by id.
+	 *   If no contacts, returns an empty list.
+	 */
+	public abstract List<Contact> findAll(long afterId, int limit);
+
+	/**
+	 * Return a page of the persisted contacts, as findAll does,
+	 * with only some fields of each contact. Only the fields
+	 * are read, where the storage allows it.
+	 * @param afterId only contacts with an id greater than this are returned.
+	 * @param limit the maximum number of contacts to return.
+	 * @param fields the fields to read; the id is always read.
+	 * @return list of at most limit contacts ordered by id, with
+	 *   the other fields null.
+	 */
+	public abstract List<Contact> findAll(long afterId, int limit,
+			Set<ContactField> fields);
+
+	/**
+	 * Read all persisted contacts one at a time, without
+	 * collecting them in a list first. The caller must close
+	 * the cursor, even if it doesn't read it to the end.
+	 * @return cursor over all contacts.
+	 */
+	public abstract ContactCursor streamAll();
 	
 	/**
-	 * Find a contact whose title starts with the  
-	 * string parameter (the way Gmail does).
-	 * @param prefix a string containing the start 
-	 * of a contact title.  Must not be null.
+	 * Find contacts whose title contains the string
+	 * parameter, ignoring case.
+	 * @param prefix a string contained in
+	 * a contact title.  Must not be null.
 	 * @return List of matching contacts. Return an empty list
 	 * if no matches.
 	 */
 	public abstract List<Contact> findByTitle(String prefix);
 
+	/**
+	 * Find contacts whose title starts with a prefix, ignoring case.
+	 * This is for suggesting contacts while the user types,
+	 * so it returns at most limit contacts.
+	 * @param prefix a string containing the start 
+	 * of a contact title.  Must not be null.
+	 * @param limit the maximum number of contacts to return.
+	 * @return List of matching contacts ordered by title. Return an
+	 * empty list if no matches.
+	 */
+	public abstract List<Contact> findByTitlePrefix(String prefix, int limit);
+
+	/**
+	 * Find contacts by email address. Addresses are compared by
+	 * Contact.emailKey, so case and surrounding space don't matter.
+	 * @param email the email address to look up. Must not be null.
+	 * @return List of contacts with that address. Return an empty list
+	 * if no matches.
+	 */
+	public abstract List<Contact> findByEmail(String email);
+
+	/**
+	 * Find contacts by phone number. Numbers are compared by
+	 * Contact.phoneKey, so only their digits matter.
+	 * @param phoneNumber the phone number to look up. Must not be null.
+	 * @return List of contacts with that number. Return an empty list
+	 * if no matches.
+	 */
+	public abstract List<Contact> findByPhoneNumber(String phoneNumber);
+
 	/**
 	 * Delete a saved contact by id.
 	 * @param id the id of contact to delete. Should be positive.
@@ -68,9 +134,93 @@ public interface ContactDao {
 	 */
 	public abstract boolean update(Contact update);
 
+	/**
+	 * Count the persisted contacts, without reading them.
+	 * @return the number of contacts.
+	 */
+	public abstract long count();
+
+	/**
+	 * Count the contacts that findByTitle would find, without
+	 * reading them.
+	 * @param title the string to look for in titles.
+	 * @return the number of contacts whose title contains title.
+	 */
+	public abstract long countByTitle(String title);
+
+	/**
+	 * Check if a contact is persisted, without reading it.
+	 * @param id the id of the contact.
+	 * @return true if a contact with the id is persisted.
+	 */
+	public abstract boolean exists(long id);
+
+	/**
+	 * Update a contact, as update does, only if it has not
+	 * changed since a client read it. The check and the
+	 * update are one atomic step, so no other change can
+	 * come between them.
+	 * @param update update info for the contact.
+	 * @param version the version the contact must have,
+	 *   the {@link Contact#sha1()} of the contact the client read.
+	 * @return the version of the contact as it is saved after
+	 *   the update, or null if the contact is not found or has
+	 *   another version.
+	 */
+	public abstract String updateIfVersion(Contact update, String version);
+
+	/**
+	 * Delete a contact only if it has not changed since a
+	 * client read it, in one atomic step.
+	 * @param id the id of contact to delete.
+	 * @param version the version the contact must have.
+	 * @return true if the contact is deleted, false if it is
+	 *   not found or has another version.
+	 */
+	public abstract boolean deleteIfVersion(long id, String version);
+
+	/**
+	 * Find contacts by id, with one query for all of them.
+	 * @param ids the ids of contacts to find.
+	 * @return List of the saved contacts, in the order of ids.
+	 * Ids that are not saved are skipped.
+	 */
+	public abstract List<Contact> findAllById(long[] ids);
+
+	/**
+	 * Save or replace many contacts, as save does for each of
+	 * them, but as one batch: one transaction, lock or disk
+	 * sync for all of them instead of one for each.
+	 * @param contacts the contacts to save or replace.
+	 * @return for each contact, true if it was saved.
+	 */
+	public abstract boolean[] saveAll(List<Contact> contacts);
+
+	/**
+	 * Update many contacts, as update does for each of them,
+	 * as one batch.
+	 * @param updates update info for the contacts.
+	 * @return for each update, true if it was applied.
+	 */
+	public abstract boolean[] updateAll(List<Contact> updates);
+
+	/**
+	 * Delete many contacts by id as one batch.
+	 * @param ids the ids of contacts to delete.
+	 * @return for each id, true if the contact was deleted.
+	 */
+	public abstract boolean[] deleteAll(long[] ids);
+
 	/**
 	 * Remove all contacts from the database.
 	 */
 	public abstract void removeAll();
 
+	/**
+	 * Get the events of this DAO, which publish every change made
+	 * by save, update, delete and removeAll to listeners.
+	 * @return the events of this DAO.
+	 */
+	public abstract ContactEvents getContactEvents();
+
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package contact.service;
+
+import contact.entity.Contact;
+
+/**
+ * A change to the saved contacts, published by a ContactDao after the change
+ * is made. The contacts of an event are the saved contact before and after
+ * the change, and must not be changed by listeners.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public final class ContactEvent {
+	/** Kinds of change. */
+	public enum Type {
+		/** a contact was saved with a new id; there is no before. */
+		CREATED,
+		/** a saved contact was updated or replaced. */
+		UPDATED,
+		/** a contact was deleted; there is no after. */
+		DELETED,
+		/**
+		 * all contacts were removed at once, without an event for each of
+		 * them; there is no id, before or after.
+		 */
+		CLEARED
+	}
+
+	private final Type type;
+	private final long id;
+	private final Contact before;
+	private final Contact after;
+
+	private ContactEvent(Type type, long id, Contact before, Contact after) {
+		this.type = type;
+		this.id = id;
+		this.before = before;
+		this.after = after;
+	}
+
+	public static ContactEvent created(Contact after) {
+		return new ContactEvent(Type.CREATED, after.getId(), null, after);
+	}
+
+	public static ContactEvent updated(Contact before, Contact after) {
+		return new ContactEvent(Type.UPDATED, after.getId(), before, after);
+	}
+
+	public static ContactEvent deleted(Contact before) {
+		return new ContactEvent(Type.DELETED, before.getId(), before, null);
+	}
+
+	public static ContactEvent cleared() {
+		return new ContactEvent(Type.CLEARED, 0, null, null);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/** Get the id of the changed contact, or 0 for CLEARED. */
+	public long getId() {
+		return id;
+	}
+
+	/** Get the contact before the change, or null if there was none. */
+	public Contact getBefore() {
+		return before;
+	}
+
+	/** Get the contact after the change, or null if it was deleted. */
+	public Contact getAfter() {
+		return after;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + id;
+	}
+}
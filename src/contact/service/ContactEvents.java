@@ -0,0 +1,91 @@
+package contact.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the changes made by a DAO to its listeners. A write only puts its
+ * event on a queue, and a daemon thread delivers the queued events to the
+ * listeners in batches, so a listener never slows down a write, however long
+ * it takes. A slow listener only lets the queue grow, and a listener that
+ * throws an exception still gets the later batches.
+ * <p>
+ * While there are no listeners, events are dropped, and DAOs don't make them
+ * at all (see {@link #hasListeners()}). The delivery thread is started when
+ * the first listener is added.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ContactEvents {
+	/** most events delivered in one batch. */
+	private static final int MAX_BATCH = 256;
+	private static final Logger logger = Logger.getLogger(ContactEvents.class
+			.getName());
+
+	private final List<ContactListener> listeners = new CopyOnWriteArrayList<ContactListener>();
+	private final LinkedBlockingQueue<ContactEvent> queue = new LinkedBlockingQueue<ContactEvent>();
+	private Thread delivery;
+
+	/**
+	 * Check if anyone listens. A DAO checks this before it makes an event,
+	 * so changes cost nothing extra while there are no listeners.
+	 */
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Queue an event for delivery. This never blocks. Caller must publish the
+	 * events of one contact in the order of its changes.
+	 */
+	public void publish(ContactEvent event) {
+		if (!listeners.isEmpty())
+			queue.offer(event);
+	}
+
+	/** Add a listener, which gets the events published after this. */
+	public synchronized void addListener(ContactListener listener) {
+		listeners.add(listener);
+		if (delivery == null) {
+			delivery = new Thread(new Runnable() {
+				public void run() {
+					deliver();
+				}
+			}, "contact-events");
+			delivery.setDaemon(true);
+			delivery.start();
+		}
+	}
+
+	public void removeListener(ContactListener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Deliver batches of events until the thread is interrupted. */
+	private void deliver() {
+		List<ContactEvent> batch = new ArrayList<ContactEvent>(MAX_BATCH);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				List<ContactEvent> events = Collections
+						.unmodifiableList(new ArrayList<ContactEvent>(batch));
+				batch.clear();
+				for (ContactListener listener : listeners) {
+					try {
+						listener.contactsChanged(events);
+					} catch (RuntimeException e) {
+						logger.log(Level.WARNING, "Contact listener failed", e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// the JVM is shutting down
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package contact.service;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import contact.entity.Contact;
+
+/**
+ * A field of a contact, for reading only some fields of contacts (a
+ * projection). A projected contact is a Contact with only the selected
+ * fields set; the others are null, so they are left out of its XML. The id
+ * is always selected.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public enum ContactField {
+	ID("id"), TITLE("title"), NAME("name"), EMAIL("email"), PHONE_NUMBER(
+			"phoneNumber"), PHOTO_URL("photoUrl");
+
+	/** the fields of a list of titles. */
+	public static final Set<ContactField> TITLES = EnumSet.of(ID, TITLE);
+
+	private final String name;
+
+	private ContactField(String name) {
+		this.name = name;
+	}
+
+	/** Get the name of the field in the XML and in JPQL queries. */
+	public String getName() {
+		return name;
+	}
+
+	/** Get the value of this field of a contact, or null for ID. */
+	public String get(Contact contact) {
+		switch (this) {
+		case TITLE:
+			return contact.getTitle();
+		case NAME:
+			return contact.getName();
+		case EMAIL:
+			return contact.getEmail();
+		case PHONE_NUMBER:
+			return contact.getPhoneNumber();
+		case PHOTO_URL:
+			return contact.getPhotoUrl();
+		default:
+			return null;
+		}
+	}
+
+	/** Set this field of a contact. Setting ID does nothing. */
+	public void set(Contact contact, String value) {
+		switch (this) {
+		case TITLE:
+			contact.setTitle(value);
+			break;
+		case NAME:
+			contact.setName(value);
+			break;
+		case EMAIL:
+			contact.setEmail(value);
+			break;
+		case PHONE_NUMBER:
+			contact.setPhoneNumber(value);
+			break;
+		case PHOTO_URL:
+			contact.setPhotoUrl(value);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Parse a list of field names separated by commas, such as "id,title".
+	 *
+	 * @return the fields, which always include ID
+	 * @throws IllegalArgumentException
+	 *             if a name is not the name of a field
+	 */
+	public static Set<ContactField> parse(String names) {
+		Set<ContactField> fields = EnumSet.of(ID);
+		for (String name : names.split(",")) {
+			ContactField field = named(name.trim());
+			if (field == null)
+				throw new IllegalArgumentException("No field named " + name);
+			fields.add(field);
+		}
+		return fields;
+	}
+
+	private static ContactField named(String name) {
+		for (ContactField field : values())
+			if (field.name.equals(name))
+				return field;
+		return null;
+	}
+
+	/**
+	 * Copy the selected fields of a contact.
+	 *
+	 * @return a new contact with only the fields, or contact itself if all
+	 *         fields are selected
+	 */
+	public static Contact project(Contact contact, Set<ContactField> fields) {
+		if (fields.size() == values().length)
+			return contact;
+		Contact projection = new Contact(contact.getId());
+		for (ContactField field : fields)
+			field.set(projection, field.get(contact));
+		return projection;
+	}
+}
@@ -0,0 +1,24 @@
+package contact.service;
+
+import java.util.List;
+
+/**
+ * Receives the changes to contacts published by a DAO, such as a cache that
+ * must drop contacts when they change. Register it with
+ * {@link ContactEvents#addListener(ContactListener)}, which you get from
+ * {@link DaoFactory#getContactEvents()}.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public interface ContactListener {
+	/**
+	 * Receive a batch of changes. It is called by the delivery thread of the
+	 * DAO's events, never by the thread that made the change, so it may be
+	 * called a little after the change. Batches come one at a time, with the
+	 * changes in the order they were made.
+	 *
+	 * @param events
+	 *            the changes, oldest first
+	 */
+	void contactsChanged(List<ContactEvent> events);
+}
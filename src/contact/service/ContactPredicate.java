@@ -0,0 +1,22 @@
+package contact.service;
+
+import contact.entity.Contact;
+
+/**
+ * A condition on contacts, for searches that no index covers. A scan calls
+ * it for every contact, often from several threads at once, with the saved
+ * contact itself rather than a copy where the DAO can. So it must not change
+ * the contact, and should not allocate objects or keep state between calls.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public interface ContactPredicate {
+	/**
+	 * Test a contact.
+	 *
+	 * @param contact
+	 *            the contact, which must not be changed
+	 * @return true if the contact matches
+	 */
+	boolean matches(Contact contact);
+}
@@ -19,6 +19,9 @@ import contact.service.mem.MemDaoFactory;
 public abstract class DaoFactory {
 	// singleton instance of this factory
 	private static DaoFactory factory;
+	/** how long shutdownAsync waits for queued calls, in milliseconds. */
+	private static final long ASYNC_SHUTDOWN_MILLIS = 10000;
+	private AsyncContactDao asyncDao;
 	
 	/** this class shouldn't be instantiated, but constructor must be visible to subclasses. */
 	protected DaoFactory() {
@@ -60,7 +63,53 @@ public abstract class DaoFactory {
 	 * @return instance of Contact's DAO
 	 */
 	public abstract ContactDao getContactDao();
+
+	/**
+	 * Get the events of changes to contacts, so that caches can listen
+	 * for changes instead of asking the DAO again.
+	 * @return the events of the Contact DAO
+	 */
+	public ContactEvents getContactEvents() {
+		return getContactDao().getContactEvents();
+	}
 	
+	/**
+	 * Get the asynchronous version of the Contact DAO, which calls it on a
+	 * pool of getAsyncThreads() threads. At most
+	 * <tt>contact.async.queue</tt> (default 1000) calls wait for a thread;
+	 * more are rejected.
+	 * @return the asynchronous DAO
+	 */
+	public synchronized AsyncContactDao getAsyncContactDao() {
+		if (asyncDao == null)
+			asyncDao = new AsyncContactDao(getContactDao(),
+					AsyncContactDao.newExecutor(getAsyncThreads(),
+							Integer.getInteger("contact.async.queue", 1000)));
+		return asyncDao;
+	}
+
+	/**
+	 * Get the number of threads of the asynchronous DAO: the system property
+	 * <tt>contact.async.threads</tt>, or twice the number of cores. A
+	 * factory whose DAO is not safe for concurrent use should override this.
+	 * @return number of threads that call the DAO
+	 */
+	protected int getAsyncThreads() {
+		return Integer.getInteger("contact.async.threads", 2 * Runtime
+				.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Stop the asynchronous DAO, if there is one, after the calls it has
+	 * queued. Call this before shutdown, so queued changes are saved.
+	 */
+	public synchronized void shutdownAsync() {
+		if (asyncDao != null) {
+			asyncDao.shutdown(ASYNC_SHUTDOWN_MILLIS);
+			asyncDao = null;
+		}
+	}
+
 	/**
 	 * Shutdown all persistence services.
 	 * This method gives the persistence framework a chance to
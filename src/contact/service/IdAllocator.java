@@ -0,0 +1,184 @@
+package contact.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocates unique contact ids without locking and without looking at the
+ * saved contacts. Each thread reserves a block of ids from a shared counter
+ * and hands them out one by one, so threads only meet when a block runs out.
+ * <p>
+ * Ids that are used are recorded in a sparse bitmap: one bit per id, in
+ * chunks of CHUNK_BITS ids that are only created when an id in them is used.
+ * Ids given to contacts some other way (imported from a file, or saved with
+ * an id chosen by the client) must be recorded with {@link #markUsed(long)};
+ * the allocator then skips them. Both allocating and marking set the bit
+ * with a compare-and-set, so an id is never given out twice, even if it is
+ * marked while a thread has it in its block.
+ * <p>
+ * Ids are never reused, and the ids left in the block of a thread that stops
+ * are skipped, so allocated ids increase but may have gaps. Blocks are
+ * reserved from a counter in memory; a subclass may override
+ * {@link #reserve()} to reserve them somewhere shared by other processes.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class IdAllocator {
+	/** number of ids in a chunk of the bitmap. */
+	static final int CHUNK_BITS = 64 * 64;
+	/** default number of ids a thread reserves at once. */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	private final int blockSize;
+	/** start of the next block to reserve. */
+	private final AtomicLong cursor;
+	/** the smallest id that may be allocated. */
+	private volatile long floor;
+	/** bitmap chunks of used ids, by id / CHUNK_BITS. */
+	private final ConcurrentMap<Long, AtomicLongArray> chunks = new ConcurrentHashMap<Long, AtomicLongArray>();
+	private final ThreadLocal<long[]> blocks = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			// next id and end of the block; empty until the first allocation
+			return new long[2];
+		}
+	};
+
+	/**
+	 * Create an allocator with the default block size.
+	 *
+	 * @param first
+	 *            the smallest id to allocate
+	 */
+	public IdAllocator(long first) {
+		this(first, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Create an allocator.
+	 *
+	 * @param first
+	 *            the smallest id to allocate
+	 * @param blockSize
+	 *            number of ids a thread reserves at once, rounded up to a
+	 *            multiple of 64 so threads don't share words of the bitmap
+	 */
+	public IdAllocator(long first, int blockSize) {
+		if (first <= 0)
+			throw new IllegalArgumentException("First id must be positive");
+		this.blockSize = Math.max(64, (blockSize + 63) & ~63);
+		cursor = new AtomicLong(first);
+		floor = first;
+	}
+
+	private AtomicLongArray chunk(long id) {
+		Long key = id / CHUNK_BITS;
+		AtomicLongArray chunk = chunks.get(key);
+		if (chunk == null) {
+			AtomicLongArray created = new AtomicLongArray(CHUNK_BITS / 64);
+			chunk = chunks.putIfAbsent(key, created);
+			if (chunk == null)
+				chunk = created;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Set the bit of an id.
+	 *
+	 * @return true if the bit was clear
+	 */
+	private boolean claim(long id) {
+		AtomicLongArray chunk = chunk(id);
+		int word = (int) (id % CHUNK_BITS) >>> 6;
+		long bit = 1L << (id & 63);
+		while (true) {
+			long bits = chunk.get(word);
+			if ((bits & bit) != 0)
+				return false;
+			if (chunk.compareAndSet(word, bits, bits | bit))
+				return true;
+		}
+	}
+
+	/**
+	 * Record that an id is used, so it will not be allocated.
+	 *
+	 * @param id
+	 *            a contact id, ignored if not positive
+	 */
+	public void markUsed(long id) {
+		if (id > 0)
+			claim(id);
+	}
+
+	/**
+	 * Test if an id was allocated or marked used.
+	 */
+	public boolean isUsed(long id) {
+		if (id <= 0)
+			return false;
+		AtomicLongArray chunk = chunks.get(id / CHUNK_BITS);
+		return chunk != null
+				&& (chunk.get((int) (id % CHUNK_BITS) >>> 6) & 1L << (id & 63)) != 0;
+	}
+
+	/**
+	 * Make sure ids below a value are never allocated, for example because
+	 * they are already in a database.
+	 *
+	 * @param first
+	 *            the smallest id that may be allocated from now on
+	 */
+	public void skipTo(long first) {
+		if (first > floor)
+			floor = first;
+		long current;
+		while ((current = cursor.get()) < first
+				&& !cursor.compareAndSet(current, first))
+			;
+	}
+
+	/**
+	 * Allocate an unused id.
+	 *
+	 * @return a positive id that was not allocated or marked used before
+	 */
+	public long next() {
+		long[] block = blocks.get();
+		while (true) {
+			// drop ids of the block that are below the floor
+			block[0] = Math.max(block[0], Math.min(floor, block[1]));
+			while (block[0] < block[1]) {
+				long id = block[0]++;
+				if (claim(id))
+					return id;
+			}
+			long[] reserved = reserve();
+			block[0] = reserved[0];
+			block[1] = reserved[1];
+		}
+	}
+
+	/** Get the number of ids a thread reserves at once. */
+	protected int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Reserve the next block of ids for a thread. The block ends on a word of
+	 * the bitmap, so threads don't share words.
+	 *
+	 * @return the first id of the block and the id after its last
+	 */
+	protected long[] reserve() {
+		long start, end;
+		do {
+			start = cursor.get();
+			end = (start + blockSize) & ~63L;
+		} while (!cursor.compareAndSet(start, end));
+		return new long[] { start, end };
+	}
+}
@@ -0,0 +1,82 @@
+package contact.service;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import contact.entity.Contact;
+
+/**
+ * Cursor over all contacts of a DAO in id order, read a page at a time with
+ * {@link ContactDao#findAll(long, int)}. Only one page is in memory at a
+ * time, and no lock or snapshot is held between pages, so it is not a view
+ * at one point in time: a contact saved after the cursor passed its id is
+ * not returned.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class PagedCursor implements ContactCursor {
+	private final ContactDao dao;
+	private final int pageSize;
+	/** fields to read, or null for all of them. */
+	private final Set<ContactField> fields;
+	private Iterator<Contact> page = Collections.<Contact> emptyList()
+			.iterator();
+	/** id of the last contact returned. */
+	private long after;
+	/** true once a page was shorter than pageSize. */
+	private boolean last;
+
+	/**
+	 * @param dao
+	 *            the DAO to read
+	 * @param pageSize
+	 *            number of contacts read at once
+	 */
+	public PagedCursor(ContactDao dao, int pageSize) {
+		this(dao, pageSize, null);
+	}
+
+	/**
+	 * @param dao
+	 *            the DAO to read
+	 * @param pageSize
+	 *            number of contacts read at once
+	 * @param fields
+	 *            the fields of the contacts to read, or null for all
+	 */
+	public PagedCursor(ContactDao dao, int pageSize, Set<ContactField> fields) {
+		this.dao = dao;
+		this.pageSize = pageSize;
+		this.fields = fields;
+	}
+
+	public boolean hasNext() {
+		if (!page.hasNext() && !last) {
+			List<Contact> next = fields == null ? dao.findAll(after, pageSize)
+					: dao.findAll(after, pageSize, fields);
+			last = next.size() < pageSize;
+			page = next.iterator();
+		}
+		return page.hasNext();
+	}
+
+	public Contact next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Contact contact = page.next();
+		after = contact.getId();
+		return contact;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		last = true;
+		page = Collections.<Contact> emptyList().iterator();
+	}
+}
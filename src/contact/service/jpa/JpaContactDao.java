@@ -1,17 +1,33 @@
 package contact.service.jpa;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.persistence.TypedQuery;
 
 import jersey.repackaged.com.google.common.collect.Lists;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.ScrollableCursor;
+
 import contact.entity.Contact;
+import contact.service.ContactCursor;
 import contact.service.ContactDao;
+import contact.service.ContactEvent;
+import contact.service.ContactEvents;
+import contact.service.ContactField;
 
 /**
  * Data access object for saving and retrieving contacts, using JPA. To get an
@@ -20,12 +36,28 @@ import contact.service.ContactDao;
  * <tt>
  * dao = DaoFactory.getInstance().getContactDao()
  * </tt>
+ * <p>
+ * Changes are published to {@link #getContactEvents()} after their
+ * transaction commits, so listeners never see a change that was rolled back.
+ * removeAll deletes contacts one at a time, and publishes a DELETED event for
+ * each.
  * 
  * @author jim , Veerapat Threeravipark 5510547022
  */
 public class JpaContactDao implements ContactDao {
 	/** the EntityManager for accessing JPA persistence services. */
 	private final EntityManager em;
+	/**
+	 * allocates ids of new contacts from blocks reserved in the database, so
+	 * only one insert in a block asks the database for ids.
+	 */
+	private final TableIdAllocator ids;
+	/** publishes changes to listeners. */
+	private final ContactEvents events = new ContactEvents();
+	/** rows fetched from the database at once by streamAll. */
+	private static final int FETCH_SIZE = 256;
+	/** most ids in the IN list of one query by the batch methods. */
+	private static final int BATCH_SIZE = 100;
 
 	/**
 	 * constructor with injected EntityManager to use.
@@ -35,6 +67,13 @@ public class JpaContactDao implements ContactDao {
 	 */
 	public JpaContactDao(EntityManager em) {
 		this.em = em;
+		ids = new TableIdAllocator(em.getEntityManagerFactory());
+		// ids up to the largest one in the database are taken, also by rows
+		// saved before the contact_ids table was used
+		Number max = (Number) em.createQuery("select max(c.id) from Contact c")
+				.getSingleResult();
+		if (max != null)
+			ids.reserveTo(max.longValue());
 		createTestContact();
 	}
 
@@ -69,26 +108,211 @@ public class JpaContactDao implements ContactDao {
 	 */
 	@Override
 	public List<Contact> findAll() {
-		Query query = em.createQuery("SELECT c FROM Contact c");
+		TypedQuery<Contact> query = em.createQuery("SELECT c FROM Contact c",
+				Contact.class);
 		List<Contact> contacts = query.getResultList();
 		return Collections.unmodifiableList(contacts);
 	}
 
 	/**
-	 * Find contacts whose title contains string
+	 * Read all contacts through an EclipseLink scrollable cursor, which
+	 * fetches FETCH_SIZE rows at a time from an open JDBC result set. The
+	 * contacts are read-only, so they are not kept in the persistence context
+	 * as they are read. The cursor holds a database connection until it is
+	 * closed, and like the EntityManager it must only be used by one thread;
+	 * AsyncContactDao reads it on its own pool.
+	 * 
+	 * @see contact.service.ContactDao#streamAll()
+	 */
+	@Override
+	public ContactCursor streamAll() {
+		Query query = em.createQuery("select c from Contact c order by c.id");
+		query.setHint(QueryHints.SCROLLABLE_CURSOR, HintValues.TRUE);
+		query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+		query.setHint(QueryHints.JDBC_FETCH_SIZE, FETCH_SIZE);
+		final ScrollableCursor cursor = (ScrollableCursor) query
+				.getSingleResult();
+		return new ContactCursor() {
+			public boolean hasNext() {
+				if (cursor.isClosed())
+					return false;
+				if (cursor.hasNext())
+					return true;
+				cursor.close();
+				return false;
+			}
+
+			public Contact next() {
+				return (Contact) cursor.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				if (!cursor.isClosed())
+					cursor.close();
+			}
+		};
+	}
+
+	/**
+	 * Find a page of contacts with a range query on the primary key, so the
+	 * database seeks to afterId in the id index instead of skipping rows as
+	 * it would for an offset.
+	 * 
+	 * @see contact.service.ContactDao#findAll(long, int)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit) {
+		if (limit <= 0)
+			return Lists.newArrayList();
+		TypedQuery<Contact> query = em.createQuery(
+				"select c from Contact c where c.id > :after order by c.id",
+				Contact.class);
+		query.setParameter("after", afterId);
+		query.setMaxResults(limit);
+		return query.getResultList();
+	}
+
+	/**
+	 * Find a page of contacts with a query that selects only the columns of
+	 * the fields, so the other columns are neither read from the database nor
+	 * copied. The rows are tuples, not entities, so they are not kept in the
+	 * persistence context either.
+	 * 
+	 * @see contact.service.ContactDao#findAll(long, int, java.util.Set)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit,
+			Set<ContactField> fields) {
+		if (limit <= 0)
+			return Lists.newArrayList();
+		List<ContactField> selected = Lists.newArrayList(fields);
+		selected.remove(ContactField.ID);
+		StringBuilder jpql = new StringBuilder("select c.id");
+		for (ContactField field : selected)
+			jpql.append(", c.").append(field.getName());
+		jpql.append(" from Contact c where c.id > :after order by c.id");
+		Query query = em.createQuery(jpql.toString());
+		query.setParameter("after", afterId);
+		query.setMaxResults(limit);
+		List<Contact> result = Lists.newArrayList();
+		for (Object row : query.getResultList()) {
+			// a query of one column returns the values, not arrays
+			Object[] values = selected.isEmpty() ? new Object[] { row }
+					: (Object[]) row;
+			Contact contact = new Contact(((Number) values[0]).longValue());
+			for (int k = 0; k < selected.size(); k++)
+				selected.get(k).set(contact, (String) values[k + 1]);
+			result.add(contact);
+		}
+		return result;
+	}
+
+	/**
+	 * Find contacts whose title contains string, ignoring case. The titleKey
+	 * column is searched, so the title is folded the same way as by the
+	 * other DAOs and not by the database's LOWER.
 	 * 
 	 * @see contact.service.ContactDao#findByTitle(java.lang.String)
 	 */
 	@Override
 	public List<Contact> findByTitle(String titlestr) {
 		// LIKE does string match using patterns.
-		Query query = em
-				.createQuery("select c from Contact c where LOWER(c.title) LIKE :title");
+		TypedQuery<Contact> query = em.createQuery(
+				"select c from Contact c where c.titleKey LIKE :key",
+				Contact.class);
 		// % is wildcard that matches anything
-		query.setParameter("title", "%" + titlestr.toLowerCase() + "%");
-		// now why bother to copy one list to another list?
-		java.util.List<Contact> result = Lists.newArrayList(query.getResultList());
-		return result;
+		query.setParameter("key", "%" + Contact.titleKey(titlestr) + "%");
+		return query.getResultList();
+	}
+
+	/**
+	 * Count contacts whose title contains string, with a COUNT query like the
+	 * query of findByTitle.
+	 * 
+	 * @see contact.service.ContactDao#countByTitle(java.lang.String)
+	 */
+	@Override
+	public long countByTitle(String titlestr) {
+		TypedQuery<Long> query = em.createQuery(
+				"select count(c) from Contact c where c.titleKey LIKE :key",
+				Long.class);
+		query.setParameter("key", "%" + Contact.titleKey(titlestr) + "%");
+		return query.getSingleResult();
+	}
+
+	/**
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		return em.createQuery("select count(c) from Contact c", Long.class)
+				.getSingleResult();
+	}
+
+	/**
+	 * Check for a contact with a query of the primary key only, so the row
+	 * is found in the id index and no entity is made.
+	 * 
+	 * @see contact.service.ContactDao#exists(long)
+	 */
+	@Override
+	public boolean exists(long id) {
+		TypedQuery<Long> query = em.createQuery(
+				"select count(c.id) from Contact c where c.id = :id", Long.class);
+		query.setParameter("id", id);
+		return query.getSingleResult() > 0;
+	}
+
+	/**
+	 * Find contacts whose title starts with prefix, ignoring case. A LIKE
+	 * pattern that starts with the prefix is a range scan of the index of
+	 * the titleKey column, which is already in the order of the result.
+	 * 
+	 * @see contact.service.ContactDao#findByTitlePrefix(java.lang.String, int)
+	 */
+	@Override
+	public List<Contact> findByTitlePrefix(String prefix, int limit) {
+		TypedQuery<Contact> query = em.createQuery(
+				"select c from Contact c where c.titleKey LIKE :key"
+						+ " order by c.titleKey, c.id", Contact.class);
+		query.setParameter("key", Contact.titleKey(prefix) + "%");
+		query.setMaxResults(limit);
+		return query.getResultList();
+	}
+
+	/**
+	 * Find contacts by email address, with the index of the emailKey column.
+	 * 
+	 * @see contact.service.ContactDao#findByEmail(java.lang.String)
+	 */
+	@Override
+	public List<Contact> findByEmail(String email) {
+		return findByKey("emailKey", Contact.emailKey(email));
+	}
+
+	/**
+	 * Find contacts by phone number, with the index of the phoneKey column.
+	 * 
+	 * @see contact.service.ContactDao#findByPhoneNumber(java.lang.String)
+	 */
+	@Override
+	public List<Contact> findByPhoneNumber(String phoneNumber) {
+		return findByKey("phoneKey", Contact.phoneKey(phoneNumber));
+	}
+
+	/** Find contacts whose key column has a value. */
+	private List<Contact> findByKey(String column, String key) {
+		if (key == null)
+			return Lists.newArrayList();
+		TypedQuery<Contact> query = em.createQuery(
+				"select c from Contact c where c." + column
+						+ " = :key order by c.id", Contact.class);
+		query.setParameter("key", key);
+		return query.getResultList();
 	}
 
 	/**
@@ -104,6 +328,7 @@ public class JpaContactDao implements ContactDao {
 		em.getTransaction().begin();
 		em.remove(contact);
 		em.getTransaction().commit();
+		events.publish(ContactEvent.deleted(contact));
 		return true;
 		} catch (EntityExistsException ex) {
 			Logger.getLogger(this.getClass().getName())
@@ -119,17 +344,29 @@ public class JpaContactDao implements ContactDao {
 	}
 
 	/**
+	 * Save a new contact. A contact without an id gets one from a block of
+	 * ids reserved in the database, so most inserts don't need a round trip
+	 * to the contact_ids table. An id chosen by the client moves the table
+	 * past it.
+	 * 
 	 * @see contact.service.ContactDao#save(contact.entity.Contact)
 	 */
 	@Override
 	public boolean save(Contact contact) {
 		if (contact == null)
 			throw new IllegalArgumentException("Can't save a null contact");
+		if (contact.getId() == 0) {
+			contact.setId(ids.next());
+		} else {
+			ids.markUsed(contact.getId());
+			ids.reserveTo(contact.getId());
+		}
 		EntityTransaction tx = em.getTransaction();
 		try {
 			tx.begin();
 			em.persist(contact);
 			tx.commit();
+			events.publish(ContactEvent.created(contact));
 			return true;
 		} catch (EntityExistsException ex) {
 			Logger.getLogger(this.getClass().getName())
@@ -157,21 +394,286 @@ public class JpaContactDao implements ContactDao {
 			if (contact == null)
 				throw new IllegalArgumentException(
 						"Can't update a null contact");
-			em.merge(update);
+			// the update changes the managed contact, so keep a copy of it
+			Contact before = null;
+			if (events.hasListeners()) {
+				before = new Contact(contact.getId());
+				before.applyUpdate(contact);
+			}
+			// the managed contact keeps the @Version it was read with, so the
+			// commit fails if another EntityManager changed the row since
+			contact.applyUpdate(update);
 			tx.commit();
+			if (before != null)
+				events.publish(ContactEvent.updated(before, contact));
 			return true;
-		} catch (EntityExistsException ex) {
-			Logger.getLogger(this.getClass().getName())
-					.warning(ex.getMessage());
-			if (tx.isActive())
-				try {
-					tx.rollback();
-				} catch (Exception e) {
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Find contacts with IN queries on the primary key, BATCH_SIZE ids at a
+	 * time, so the database is asked once per chunk instead of once per id.
+	 * 
+	 * @see contact.service.ContactDao#findAllById(long[])
+	 */
+	@Override
+	public List<Contact> findAllById(long[] ids) {
+		Map<Long, Contact> found = findMap(ids);
+		List<Contact> result = Lists.newArrayList();
+		for (long id : ids) {
+			Contact contact = found.get(id);
+			if (contact != null)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	/** Find the saved contacts with the ids, by id. */
+	private Map<Long, Contact> findMap(long[] ids) {
+		Map<Long, Contact> found = new HashMap<Long, Contact>();
+		TypedQuery<Contact> query = em.createQuery(
+				"select c from Contact c where c.id in :ids", Contact.class);
+		for (int start = 0; start < ids.length; start += BATCH_SIZE) {
+			List<Long> chunk = Lists.newArrayList();
+			for (int k = start; k < Math.min(ids.length, start + BATCH_SIZE); k++)
+				chunk.add(ids[k]);
+			query.setParameter("ids", chunk);
+			for (Contact contact : query.getResultList())
+				found.put(contact.getId(), contact);
+		}
+		return found;
+	}
+
+	/**
+	 * Save new contacts in one transaction. The inserts are sent to the
+	 * database in JDBC batches (see eclipselink.jdbc.batch-writing in
+	 * persistence.xml). A contact whose id is saved already, or appears
+	 * twice in contacts, is not saved. If the transaction fails, no contact
+	 * is saved.
+	 * 
+	 * @see contact.service.ContactDao#saveAll(java.util.List)
+	 */
+	@Override
+	public boolean[] saveAll(List<Contact> contacts) {
+		long[] batch = new long[contacts.size()];
+		long chosen = 0;
+		for (int k = 0; k < batch.length; k++) {
+			Contact contact = contacts.get(k);
+			if (contact == null)
+				throw new IllegalArgumentException("Can't save a null contact");
+			if (contact.getId() == 0) {
+				contact.setId(ids.next());
+			} else {
+				ids.markUsed(contact.getId());
+				chosen = Math.max(chosen, contact.getId());
+			}
+			batch[k] = contact.getId();
+		}
+		ids.reserveTo(chosen);
+		Set<Long> taken = new HashSet<Long>(findMap(batch).keySet());
+		boolean[] saved = new boolean[batch.length];
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			for (int k = 0; k < batch.length; k++) {
+				saved[k] = taken.add(batch[k]);
+				if (saved[k])
+					em.persist(contacts.get(k));
+			}
+			tx.commit();
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
+			return new boolean[batch.length];
+		}
+		for (int k = 0; k < batch.length; k++)
+			if (saved[k])
+				events.publish(ContactEvent.created(contacts.get(k)));
+		return saved;
+	}
+
+	/**
+	 * Update contacts in one transaction. If the transaction fails, no
+	 * contact is updated.
+	 * 
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public boolean[] updateAll(List<Contact> updates) {
+		long[] batch = new long[updates.size()];
+		for (int k = 0; k < batch.length; k++) {
+			if (updates.get(k) == null)
+				throw new IllegalArgumentException(
+						"Can't update a null contact");
+			batch[k] = updates.get(k).getId();
+		}
+		boolean[] updated = new boolean[batch.length];
+		List<ContactEvent> changes = Lists.newArrayList();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			Map<Long, Contact> found = findMap(batch);
+			for (int k = 0; k < batch.length; k++) {
+				Contact contact = found.get(batch[k]);
+				if (contact == null)
+					continue;
+				// the update changes the managed contact, so keep a copy of it
+				Contact before = null;
+				if (events.hasListeners()) {
+					before = new Contact(contact.getId());
+					before.applyUpdate(contact);
 				}
+				// the @Version read with the contact is checked at commit
+				contact.applyUpdate(updates.get(k));
+				if (before != null)
+					changes.add(ContactEvent.updated(before, contact));
+				updated[k] = true;
+			}
+			tx.commit();
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
+			return new boolean[batch.length];
+		}
+		for (ContactEvent event : changes)
+			events.publish(event);
+		return updated;
+	}
+
+	/**
+	 * Delete contacts in one transaction. If the transaction fails, no
+	 * contact is deleted.
+	 * 
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public boolean[] deleteAll(long[] batch) {
+		boolean[] deleted = new boolean[batch.length];
+		List<Contact> removed = Lists.newArrayList();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			Map<Long, Contact> found = findMap(batch);
+			for (int k = 0; k < batch.length; k++) {
+				// an id that appears twice is only deleted once
+				Contact contact = found.remove(batch[k]);
+				if (contact == null)
+					continue;
+				em.remove(contact);
+				removed.add(contact);
+				deleted[k] = true;
+			}
+			tx.commit();
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
+			return new boolean[batch.length];
+		}
+		for (Contact contact : removed)
+			events.publish(ContactEvent.deleted(contact));
+		return deleted;
+	}
+
+	/** Roll back a transaction that failed. */
+	private void rollback(EntityTransaction tx, PersistenceException ex) {
+		Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
+		if (tx.isActive())
+			try {
+				tx.rollback();
+			} catch (Exception e) {
+			}
+	}
+
+	/**
+	 * Update a contact if its version is still the expected one. The contact
+	 * is refreshed from the database before its version is compared, since
+	 * the persistence context may hold an old copy, and the UPDATE only
+	 * changes the row if its @Version number is still the one that was read,
+	 * so a change made by another EntityManager in between makes the commit
+	 * fail instead of being overwritten.
+	 * 
+	 * @see contact.service.ContactDao#updateIfVersion(contact.entity.Contact,
+	 *      java.lang.String)
+	 */
+	@Override
+	public String updateIfVersion(Contact update, String version) {
+		if (update == null)
+			throw new IllegalArgumentException("Can't update a null contact");
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			Contact contact = current(update.getId());
+			if (contact == null || !contact.sha1().equals(version)) {
+				tx.rollback();
+				return null;
+			}
+			Contact before = null;
+			if (events.hasListeners()) {
+				before = new Contact(contact.getId());
+				before.applyUpdate(contact);
+			}
+			contact.applyUpdate(update);
+			tx.commit();
+			if (before != null)
+				events.publish(ContactEvent.updated(before, contact));
+			return contact.sha1();
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Delete a contact if its version is still the expected one. The DELETE
+	 * checks the @Version number of the row, as updateIfVersion does.
+	 * 
+	 * @see contact.service.ContactDao#deleteIfVersion(long, java.lang.String)
+	 */
+	@Override
+	public boolean deleteIfVersion(long id, String version) {
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			Contact contact = current(id);
+			if (contact == null || !contact.sha1().equals(version)) {
+				tx.rollback();
+				return false;
+			}
+			em.remove(contact);
+			tx.commit();
+			events.publish(ContactEvent.deleted(contact));
+			return true;
+		} catch (PersistenceException ex) {
+			rollback(tx, ex);
 			return false;
 		}
 	}
 
+	/**
+	 * Find a contact and refresh it from the database, so its fields and
+	 * @Version are the ones saved now, not an old copy in the persistence
+	 * context.
+	 * 
+	 * @return the managed contact, or null if there is none
+	 */
+	private Contact current(long id) {
+		Contact contact = find(id);
+		if (contact == null)
+			return null;
+		try {
+			em.refresh(contact);
+		} catch (EntityNotFoundException ex) {
+			// deleted by another EntityManager
+			return null;
+		}
+		return contact;
+	}
+
+	@Override
+	public ContactEvents getContactEvents() {
+		return events;
+	}
+
 	@Override
 	public void removeAll() {
 		List<Contact> contacts = findAll();
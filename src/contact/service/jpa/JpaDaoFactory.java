@@ -53,6 +53,16 @@ public class JpaDaoFactory extends DaoFactory {
 		return contactDao;
 	}
 	
+	/**
+	 * The DAO has one EntityManager, which is not thread-safe, so the
+	 * asynchronous DAO uses one thread, which then is the only one that uses
+	 * the EntityManager.
+	 */
+	@Override
+	protected int getAsyncThreads() {
+		return 1;
+	}
+
 	@Override
 	public void shutdown() {
 		try {
@@ -0,0 +1,114 @@
+package contact.service.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import contact.entity.Contact;
+import contact.service.IdAllocator;
+
+/**
+ * Allocates contact ids from blocks reserved in the contact_ids table, which
+ * is also the table generator of Contact. The table holds the last id that
+ * was reserved; a block is reserved by adding its size to it in a
+ * transaction of its own, which the database serializes with a row lock. So
+ * ids are unique across all processes that use the database, and with
+ * contacts that JPA inserts without an id.
+ * <p>
+ * Ids that are saved some other way must be passed to
+ * {@link #reserveTo(long)}, which moves the table past them so no later
+ * block includes them.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class TableIdAllocator extends IdAllocator {
+	private static final String LAST_ID = "SELECT last_id FROM contact_ids WHERE seq_name = 'contact'";
+	private final EntityManagerFactory emf;
+	/** the largest last id read from the table; it never decreases. */
+	private long reserved;
+
+	/**
+	 * @param emf
+	 *            creates the EntityManagers that reserve blocks, so they are
+	 *            not part of the transactions of the DAO
+	 */
+	public TableIdAllocator(EntityManagerFactory emf) {
+		super(1L, Contact.ID_BLOCK);
+		this.emf = emf;
+	}
+
+	/** Reserve the next block of ids in the table. */
+	@Override
+	protected synchronized long[] reserve() {
+		long last = update(
+				"UPDATE contact_ids SET last_id = last_id + ?1 WHERE seq_name = 'contact'",
+				getBlockSize());
+		return new long[] { last - getBlockSize() + 1, last + 1 };
+	}
+
+	/**
+	 * Move the table past an id, so it is not in a block reserved later.
+	 * Only the table is read if it is already past the id.
+	 *
+	 * @param id
+	 *            an id that is used
+	 */
+	public synchronized void reserveTo(long id) {
+		if (id <= reserved)
+			return;
+		update("UPDATE contact_ids SET last_id = ?1 WHERE seq_name = 'contact' AND last_id < ?1",
+				id);
+	}
+
+	/**
+	 * Change the last id and read it in one transaction.
+	 *
+	 * @param sql
+	 *            an UPDATE of the contact_ids row, with parameter 1
+	 * @return the last id after the change
+	 */
+	private long update(String sql, long value) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			try {
+				if (em.createNativeQuery(sql).setParameter(1, value)
+						.executeUpdate() == 0 && insert(em))
+					em.createNativeQuery(sql).setParameter(1, value)
+							.executeUpdate();
+				long last = ((Number) em.createNativeQuery(LAST_ID)
+						.getSingleResult()).longValue();
+				tx.commit();
+				reserved = Math.max(reserved, last);
+				return last;
+			} finally {
+				if (tx.isActive())
+					tx.rollback();
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Insert the row of contact ids if it isn't there yet, with the largest
+	 * saved id as the last id.
+	 * 
+	 * @return true if the row was inserted
+	 */
+	private boolean insert(EntityManager em) {
+		Number count = (Number) em.createNativeQuery(
+				"SELECT COUNT(*) FROM contact_ids WHERE seq_name = 'contact'")
+				.getSingleResult();
+		if (count.longValue() > 0)
+			return false;
+		Number max = (Number) em.createQuery(
+				"select max(c.id) from Contact c").getSingleResult();
+		em.createNativeQuery(
+				"INSERT INTO contact_ids (seq_name, last_id) VALUES ('contact', ?1)")
+				.setParameter(1, max == null ? 0 : max.longValue())
+				.executeUpdate();
+		return true;
+	}
+}
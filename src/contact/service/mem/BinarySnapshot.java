@@ -0,0 +1,244 @@
+package contact.service.mem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import contact.entity.Contact;
+
+/**
+ * Binary snapshot of all contacts, read through a memory-mapped file so that
+ * opening it costs almost nothing and each contact is only decoded when it is
+ * first used. The file has three parts:
+ * <ol>
+ * <li>a header of HEADER_SIZE bytes: magic number, version, number of
+ * contacts;</li>
+ * <li>an offset table with one fixed-width entry per contact: id (long) and
+ * the file offset of its record (long);</li>
+ * <li>the records, in the same order as the offset table. A record is the
+ * fields of a contact as written by ContactRecords, title first, so a title
+ * can be read without decoding the rest.</li>
+ * </ol>
+ * The file is written to a temporary file that then replaces the old one.
+ * A mapping of the old file stays valid after it is replaced. A snapshot can
+ * be at most 2 GB, the size of one mapping.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class BinarySnapshot {
+	private static final int MAGIC = 0x434f4e54; // "CONT"
+	private static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int ENTRY_SIZE = 16;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int size;
+
+	/**
+	 * Reference to a contact in a snapshot, used in place of the contact until
+	 * it is decoded.
+	 */
+	static final class Ref {
+		final BinarySnapshot snapshot;
+		final int index;
+
+		Ref(BinarySnapshot snapshot, int index) {
+			this.snapshot = snapshot;
+			this.index = index;
+		}
+
+		Contact load() {
+			return snapshot.contactAt(index);
+		}
+
+		String title() {
+			return snapshot.titleAt(index);
+		}
+	}
+
+	/**
+	 * Open a snapshot file. Only the header is read.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @throws IOException
+	 *             if the file can't be mapped or is not a snapshot
+	 */
+	public BinarySnapshot(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a contact snapshot");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(file + " has unknown version "
+					+ buffer.getInt(4));
+		size = buffer.getInt(8);
+		if (HEADER_SIZE + (long) size * ENTRY_SIZE > buffer.capacity())
+			throw new IOException(file + " is truncated");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Get the number of contacts in the snapshot. */
+	public int size() {
+		return size;
+	}
+
+	/** Get the id of the contact at an index of the offset table. */
+	public long idAt(int index) {
+		return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE);
+	}
+
+	private long offsetAt(int index) {
+		return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE + 8);
+	}
+
+	/** Get the offset of the end of a record. */
+	private long endAt(int index) {
+		return index + 1 < size ? offsetAt(index + 1) : buffer.capacity();
+	}
+
+	/**
+	 * Get a view of the bytes of one record. Each caller gets its own view,
+	 * so many threads can decode at once.
+	 */
+	private ByteBuffer record(int index) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit((int) endAt(index));
+		view.position((int) offsetAt(index));
+		return view;
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, ContactRecords.UTF8);
+	}
+
+	/** Decode only the title of the contact at an index. */
+	public String titleAt(int index) {
+		return readString(record(index));
+	}
+
+	/** Decode the contact at an index. */
+	public Contact contactAt(int index) {
+		ByteBuffer in = record(index);
+		Contact contact = new Contact(idAt(index));
+		contact.setTitle(readString(in));
+		contact.setName(readString(in));
+		contact.setEmail(readString(in));
+		contact.setPhoneNumber(readString(in));
+		contact.setPhotoUrl(readString(in));
+		return contact;
+	}
+
+	/**
+	 * Write a snapshot file. Each value is a Contact or a Ref to a contact
+	 * in another snapshot, whose record is copied without decoding it.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param values
+	 *            the contacts to save, in the order to save them
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public static void write(File file, List<?> values) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		int size = values.size();
+		long dataStart = HEADER_SIZE + (long) size * ENTRY_SIZE;
+		long[] ids = new long[size];
+		long[] offsets = new long[size];
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			channel.position(dataStart);
+			CountingOutput counter = new CountingOutput(channel, dataStart);
+			DataOutputStream out = new DataOutputStream(counter);
+			for (int k = 0; k < size; k++) {
+				Object value = values.get(k);
+				offsets[k] = counter.position();
+				if (value instanceof Ref) {
+					Ref ref = (Ref) value;
+					ids[k] = ref.snapshot.idAt(ref.index);
+					ByteBuffer record = ref.snapshot.record(ref.index);
+					byte[] bytes = new byte[record.remaining()];
+					record.get(bytes);
+					out.write(bytes);
+				} else {
+					Contact contact = (Contact) value;
+					ids[k] = contact.getId();
+					ContactRecords.writeFields(out, contact);
+				}
+			}
+			out.flush();
+			ByteBuffer head = ByteBuffer.allocate((int) dataStart);
+			head.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0);
+			head.position(HEADER_SIZE);
+			for (int k = 0; k < size; k++)
+				head.putLong(ids[k]).putLong(offsets[k]);
+			head.flip();
+			channel.position(0);
+			while (head.hasRemaining())
+				channel.write(head);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Buffered output to a channel that knows its file position. */
+	private static class CountingOutput extends BufferedOutputStream {
+		private final long start;
+		private long written;
+
+		CountingOutput(FileChannel channel, long start) {
+			super(Channels.newOutputStream(channel), 64 * 1024);
+			this.start = start;
+		}
+
+		long position() {
+			return start + written;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			written++;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			super.write(b, off, len);
+			written += len;
+		}
+	}
+}
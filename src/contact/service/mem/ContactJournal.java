@@ -0,0 +1,341 @@
+package contact.service.mem;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only write-ahead journal of changes to the in-memory contacts. Each
+ * save, update or delete appends one small record (see {@link ContactRecords}),
+ * so the cost of a write does not depend on the number of contacts. After a
+ * crash the journal is replayed on top of the last snapshot.
+ * <p>
+ * When a snapshot is taken while the application runs, the journal is rotated:
+ * the records so far are moved to a second file (the journal file name plus
+ * ".old"), which is deleted once the snapshot is saved.
+ * <p>
+ * Forcing the file to disk (fsync) is the slow part of a write, so it is done
+ * for many records at once. How is set by system properties:
+ * <ul>
+ * <li><tt>contact.journal.syncMillis</tt> (default 0): if 0, each write waits
+ * until its record is on disk. Writers that arrive while the file is being
+ * forced wait for the next force, so one fsync commits a whole group of
+ * writes. If more than 0, writes don't wait, and the file is forced in the
+ * background this often (in milliseconds).</li>
+ * <li><tt>contact.journal.syncBatch</tt> (default 1000): when writes don't
+ * wait, also force the file after this many records.</li>
+ * </ul>
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ContactJournal implements Closeable {
+	private static final Logger logger = Logger.getLogger(ContactJournal.class
+			.getName());
+
+	private final File file;
+	private final long syncMillis;
+	private final long syncBatch;
+	private FileOutputStream fileOut;
+	private OutputStream out;
+	private FileChannel channel;
+	/** sequence number of the last record appended. */
+	private long appended;
+	/** sequence number of the last record forced to disk. */
+	private volatile long synced;
+	/** lock held while forcing the file, so only one thread forces it. */
+	private final Object syncLock = new Object();
+	private ScheduledExecutorService syncer;
+	/** true if a background sync was requested and has not run yet. */
+	private boolean syncRequested;
+
+	/**
+	 * Open a journal using the sync settings from system properties.
+	 *
+	 * @param file
+	 *            the journal file, created if it doesn't exist
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public ContactJournal(File file) throws IOException {
+		this(file, Long.getLong("contact.journal.syncMillis", 0), Long.getLong(
+				"contact.journal.syncBatch", 1000));
+	}
+
+	/**
+	 * Open a journal.
+	 *
+	 * @param file
+	 *            the journal file, created if it doesn't exist
+	 * @param syncMillis
+	 *            0 to make writes wait for their record to be on disk,
+	 *            otherwise how often to force the file in the background
+	 * @param syncBatch
+	 *            when writes don't wait, the number of records after which
+	 *            the file is forced
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public ContactJournal(File file, long syncMillis, long syncBatch)
+			throws IOException {
+		this.file = file;
+		this.syncMillis = syncMillis;
+		this.syncBatch = Math.max(1, syncBatch);
+		open(true);
+		if (syncMillis > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "contact-journal-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					syncQuietly();
+				}
+			}, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void open(boolean append) throws IOException {
+		fileOut = new FileOutputStream(file, append);
+		channel = fileOut.getChannel();
+		out = new BufferedOutputStream(fileOut, 64 * 1024);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Get the file that holds the records before the last rotation. */
+	public File getRotatedFile() {
+		return new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Replay the records in the journal, starting with the rotated file if
+	 * there is one. A record that is incomplete or corrupt ends the replay of
+	 * a file, and it and anything after it are cut off the file, since they
+	 * were never acknowledged.
+	 *
+	 * @param handler
+	 *            receives the records in the order they were written
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public synchronized void replay(ContactRecords.Handler handler)
+			throws IOException {
+		out.flush();
+		File rotated = getRotatedFile();
+		if (rotated.exists())
+			replay(rotated, handler);
+		replay(file, handler);
+	}
+
+	private void replay(File from, ContactRecords.Handler handler)
+			throws IOException {
+		long good = ContactRecords.readFile(from, handler);
+		if (good < from.length()) {
+			logger.warning("Ignoring " + (from.length() - good)
+					+ " bytes of incomplete records at end of " + from);
+			RandomAccessFile raf = new RandomAccessFile(from, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the journal. The record is written to the file at
+	 * once but may not be on disk until {@link #commit(long)}.
+	 *
+	 * @param record
+	 *            a record encoded by {@link ContactRecords}
+	 * @return sequence number of the record
+	 */
+	public synchronized long append(byte[] record) {
+		try {
+			out.write(record);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't write journal " + file, e);
+		}
+		appended++;
+		if (syncMillis > 0 && appended - synced >= syncBatch && !syncRequested) {
+			syncRequested = true;
+			syncer.execute(new Runnable() {
+				public void run() {
+					syncQuietly();
+				}
+			});
+		}
+		return appended;
+	}
+
+	/**
+	 * Make a record durable. If writes wait for their records, this forces
+	 * the file unless another thread already forced it past this record;
+	 * otherwise it returns at once and the record is forced in the background.
+	 * Call this after releasing any lock, so other writers can join the same
+	 * group commit.
+	 *
+	 * @param sequence
+	 *            sequence number of the record
+	 */
+	public void commit(long sequence) {
+		if (syncMillis == 0)
+			sync(sequence);
+	}
+
+	/**
+	 * Force all records up to a sequence number to disk.
+	 *
+	 * @param sequence
+	 *            sequence number of a record
+	 */
+	public void sync(long sequence) {
+		if (synced >= sequence)
+			return;
+		synchronized (syncLock) {
+			// another writer may have forced our record while we waited
+			if (synced >= sequence)
+				return;
+			long upTo;
+			FileChannel forced;
+			synchronized (this) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					throw new IllegalStateException("Can't write journal "
+							+ file, e);
+				}
+				upTo = appended;
+				forced = channel;
+			}
+			try {
+				forced.force(false);
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't sync journal " + file, e);
+			}
+			synced = upTo;
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			long upTo;
+			synchronized (this) {
+				upTo = appended;
+				syncRequested = false;
+			}
+			sync(upTo);
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Remove all records from the journal. Call this after a snapshot that
+	 * includes all changes in the journal has been saved.
+	 */
+	public void reset() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					out.close();
+					open(false);
+				} catch (IOException e) {
+					throw new IllegalStateException("Can't reset journal "
+							+ file, e);
+				}
+				synced = appended;
+			}
+		}
+		dropRotated();
+	}
+
+	/**
+	 * Move the records written so far to the rotated file, and start an empty
+	 * journal. If the rotated file is still there because the last snapshot
+	 * failed, the records are added to the end of it. Call this while no
+	 * records are appended, at the point a snapshot starts.
+	 */
+	public void rotate() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					out.flush();
+					channel.force(false);
+					out.close();
+					File rotated = getRotatedFile();
+					if (!rotated.exists()) {
+						if (!file.renameTo(rotated))
+							throw new IOException("Can't rename " + file);
+					} else {
+						appendTo(rotated);
+					}
+					open(false);
+				} catch (IOException e) {
+					throw new IllegalStateException("Can't rotate journal "
+							+ file, e);
+				}
+				synced = appended;
+			}
+		}
+	}
+
+	/** Copy the records in the journal file to the end of another file. */
+	private void appendTo(File target) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		FileOutputStream dest = new FileOutputStream(target, true);
+		try {
+			FileChannel source = in.getChannel();
+			long position = 0;
+			long size = source.size();
+			while (position < size)
+				position += source.transferTo(position, size - position,
+						dest.getChannel());
+			dest.getChannel().force(false);
+		} finally {
+			in.close();
+			dest.close();
+		}
+	}
+
+	/**
+	 * Delete the rotated file. Call this after a snapshot that includes all
+	 * records in it has been saved.
+	 */
+	public void dropRotated() {
+		File rotated = getRotatedFile();
+		if (rotated.exists() && !rotated.delete())
+			logger.warning("Can't delete " + rotated);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (syncer != null)
+			syncer.shutdown();
+		synchronized (syncLock) {
+			synchronized (this) {
+				out.flush();
+				channel.force(false);
+				out.close();
+				synced = appended;
+			}
+		}
+	}
+}
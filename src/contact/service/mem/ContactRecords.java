@@ -0,0 +1,218 @@
+package contact.service.mem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import contact.entity.Contact;
+
+/**
+ * Compact binary records of changes to contacts. A record is
+ * <p>
+ * <tt>length:int op:byte id:long [fields] crc:int</tt>
+ * <p>
+ * where length counts the bytes from op to the end of the fields, and crc is
+ * the CRC-32 of those bytes. A PUT record has the fields of the contact after
+ * the change, so applying the same record twice gives the same result.
+ * Strings are written as a byte length (-1 for null) and UTF-8 bytes.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ContactRecords {
+	/** save or replace a contact. */
+	public static final byte PUT = 1;
+	/** delete a contact. */
+	public static final byte DELETE = 2;
+	/** remove all contacts. */
+	public static final byte CLEAR = 3;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	/** records larger than this are treated as corrupt. */
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * What to do with each record that is read.
+	 */
+	public interface Handler {
+		void put(Contact contact);
+
+		void delete(long id);
+
+		void clear();
+	}
+
+	private ContactRecords() {
+		// only static methods
+	}
+
+	/**
+	 * Encode a PUT record.
+	 *
+	 * @param contact
+	 *            the contact after the change
+	 * @return the bytes of the record
+	 */
+	public static byte[] put(Contact contact) {
+		return record(PUT, contact.getId(), contact);
+	}
+
+	/** Encode a DELETE record. */
+	public static byte[] delete(long id) {
+		return record(DELETE, id, null);
+	}
+
+	/** Encode a CLEAR record. */
+	public static byte[] clear() {
+		return record(CLEAR, 0, null);
+	}
+
+	private static byte[] record(byte op, long id, Contact contact) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream body = new DataOutputStream(bytes);
+			body.writeByte(op);
+			body.writeLong(id);
+			if (contact != null)
+				writeFields(body, contact);
+			body.flush();
+			byte[] data = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 8);
+			DataOutputStream record = new DataOutputStream(out);
+			record.writeInt(data.length);
+			record.write(data);
+			record.writeInt((int) crc.getValue());
+			return out.toByteArray();
+		} catch (IOException e) {
+			// a ByteArrayOutputStream doesn't throw IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Write the fields of a contact, except the id. */
+	static void writeFields(DataOutput out, Contact contact) throws IOException {
+		writeString(out, contact.getTitle());
+		writeString(out, contact.getName());
+		writeString(out, contact.getEmail());
+		writeString(out, contact.getPhoneNumber());
+		writeString(out, contact.getPhotoUrl());
+	}
+
+	/** Read the fields written by writeFields into a new contact. */
+	static Contact readFields(DataInput in, long id) throws IOException {
+		Contact contact = new Contact(id);
+		contact.setTitle(readString(in));
+		contact.setName(readString(in));
+		contact.setEmail(readString(in));
+		contact.setPhoneNumber(readString(in));
+		contact.setPhotoUrl(readString(in));
+		return contact;
+	}
+
+	static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Read one record and pass it to a handler.
+	 *
+	 * @param in
+	 *            stream of records
+	 * @param handler
+	 *            receives the record
+	 * @return number of bytes in the record, or -1 at the end of the stream
+	 *         or if the record is incomplete or corrupt. A record that was
+	 *         being written during a crash looks like this.
+	 * @throws IOException
+	 *             if the stream can't be read
+	 */
+	public static int read(DataInputStream in, Handler handler)
+			throws IOException {
+		byte[] data;
+		int crcValue;
+		try {
+			int length = in.readInt();
+			if (length < 9 || length > MAX_LENGTH)
+				return -1;
+			data = new byte[length];
+			in.readFully(data);
+			crcValue = in.readInt();
+		} catch (EOFException e) {
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != crcValue)
+			return -1;
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(
+				data));
+		byte op = body.readByte();
+		long id = body.readLong();
+		switch (op) {
+		case PUT:
+			handler.put(readFields(body, id));
+			break;
+		case DELETE:
+			handler.delete(id);
+			break;
+		case CLEAR:
+			handler.clear();
+			break;
+		default:
+			return -1;
+		}
+		return data.length + 8;
+	}
+
+	/**
+	 * Read the records in a file and pass them to a handler, up to the end
+	 * of the file or the first incomplete or corrupt record.
+	 *
+	 * @param file
+	 *            file of records
+	 * @param handler
+	 *            receives the records in order
+	 * @return number of bytes of complete records read
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public static long readFile(File file, Handler handler) throws IOException {
+		long good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			int length;
+			while ((length = read(in, handler)) > 0)
+				good += length;
+		} finally {
+			in.close();
+		}
+		return good;
+	}
+}
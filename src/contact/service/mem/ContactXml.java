@@ -0,0 +1,149 @@
+package contact.service.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import contact.entity.Contact;
+
+/**
+ * Read and write the XML contacts file one contact at a time with StAX, so
+ * the whole list of contacts is never in memory at once. Responses with all
+ * contacts are written the same way. The file has the
+ * same format as a marshalled {@link contact.entity.Contacts}.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ContactXml {
+	private static JAXBContext context;
+
+	private ContactXml() {
+		// only static methods
+	}
+
+	private static synchronized JAXBContext context() throws JAXBException {
+		if (context == null)
+			context = JAXBContext.newInstance(Contact.class);
+		return context;
+	}
+
+	/**
+	 * Read the contacts in an XML file. Each contact element is unmarshalled
+	 * and passed to the handler as soon as it is read.
+	 *
+	 * @param file
+	 *            XML file with a contacts element
+	 * @param handler
+	 *            receives each contact with put, in file order
+	 * @return number of contacts read
+	 * @throws IOException
+	 *             if the file can't be read or is not valid XML
+	 */
+	public static int read(File file, ContactRecords.Handler handler)
+			throws IOException {
+		int count = 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			Unmarshaller unmarshaller = context().createUnmarshaller();
+			while (reader.hasNext()) {
+				if (reader.isStartElement()
+						&& reader.getLocalName().equals("contact")) {
+					// leaves the reader after the end of the element
+					handler.put(unmarshaller.unmarshal(reader, Contact.class)
+							.getValue());
+					count++;
+				} else {
+					reader.next();
+				}
+			}
+			reader.close();
+		} catch (JAXBException | XMLStreamException e) {
+			throw new IOException("Can't read " + file, e);
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Write contacts to an XML file. The contacts are written to a temporary
+	 * file that then replaces the file, so a crash while writing never leaves
+	 * a partial file.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param contacts
+	 *            the contacts, which are only iterated once
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public static void write(File file, Iterable<Contact> contacts)
+			throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		try {
+			OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+			write(out, contacts.iterator());
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write a contacts document to a stream, one contact at a time, so the
+	 * start of the document is written before the last contact is read. The
+	 * stream is not closed.
+	 *
+	 * @param out
+	 *            the stream to write
+	 * @param contacts
+	 *            the contacts to write
+	 * @throws IOException
+	 *             if the stream can't be written
+	 */
+	public static void write(OutputStream out, Iterator<Contact> contacts)
+			throws IOException {
+		try {
+			XMLStreamWriter writer = XMLOutputFactory.newInstance()
+					.createXMLStreamWriter(out, "UTF-8");
+			Marshaller marshaller = context().createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("contacts");
+			while (contacts.hasNext())
+				marshaller.marshal(contacts.next(), writer);
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			// flushes the writer, but doesn't close out
+			writer.close();
+		} catch (JAXBException | XMLStreamException e) {
+			throw new IOException("Can't write contacts", e);
+		}
+	}
+}
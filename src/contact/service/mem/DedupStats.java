@@ -0,0 +1,59 @@
+package contact.service.mem;
+
+/**
+ * Statistics of the values shared by a MemContactDao that deduplicates
+ * fields. Byte counts are estimates of heap use.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class DedupStats {
+	private final int titles;
+	private final int emailDomains;
+	private final int photoPrefixes;
+	private final long references;
+	private final long savedBytes;
+
+	DedupStats(PooledContact.Pools pools) {
+		titles = pools.titles.size();
+		emailDomains = pools.emailDomains.size();
+		photoPrefixes = pools.photoPrefixes.size();
+		references = pools.titles.getReferences()
+				+ pools.emailDomains.getReferences()
+				+ pools.photoPrefixes.getReferences();
+		savedBytes = pools.titles.getSavedBytes()
+				+ pools.emailDomains.getSavedBytes()
+				+ pools.photoPrefixes.getSavedBytes();
+	}
+
+	/** Get the number of different titles. */
+	public int getTitles() {
+		return titles;
+	}
+
+	/** Get the number of different email domains. */
+	public int getEmailDomains() {
+		return emailDomains;
+	}
+
+	/** Get the number of different photo URL prefixes. */
+	public int getPhotoPrefixes() {
+		return photoPrefixes;
+	}
+
+	/** Get the number of field values that use a shared value. */
+	public long getReferences() {
+		return references;
+	}
+
+	/** Get the bytes of heap saved by sharing values. */
+	public long getSavedBytes() {
+		return savedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d titles, %d email domains, %d photo prefixes, %d references, %d bytes saved",
+				titles, emailDomains, photoPrefixes, references, savedBytes);
+	}
+}
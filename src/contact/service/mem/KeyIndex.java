@@ -0,0 +1,86 @@
+package contact.service.mem;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index from a key, such as a normalized email address, to the ids of
+ * the contacts that have it. Several contacts may have the same key. The ids
+ * of a key are kept in a small array that is replaced, never changed, when
+ * an id is added or removed, so readers don't lock. Only one thread may
+ * change the index at a time.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class KeyIndex {
+	private static final long[] NONE = new long[0];
+	private final ConcurrentHashMap<String, long[]> ids = new ConcurrentHashMap<String, long[]>();
+
+	/**
+	 * Add the key of a contact.
+	 *
+	 * @param key
+	 *            the key, or null to do nothing
+	 */
+	public void add(long id, String key) {
+		if (key == null)
+			return;
+		long[] old = ids.get(key);
+		if (old == null) {
+			ids.put(key, new long[] { id });
+			return;
+		}
+		for (long other : old)
+			if (other == id)
+				return;
+		long[] added = Arrays.copyOf(old, old.length + 1);
+		added[old.length] = id;
+		ids.put(key, added);
+	}
+
+	/**
+	 * Remove the key of a contact.
+	 *
+	 * @param key
+	 *            the key it was added with, or null to do nothing
+	 */
+	public void remove(long id, String key) {
+		if (key == null)
+			return;
+		long[] old = ids.get(key);
+		if (old == null)
+			return;
+		for (int k = 0; k < old.length; k++) {
+			if (old[k] != id)
+				continue;
+			if (old.length == 1) {
+				ids.remove(key);
+			} else {
+				long[] removed = new long[old.length - 1];
+				System.arraycopy(old, 0, removed, 0, k);
+				System.arraycopy(old, k + 1, removed, k, old.length - k - 1);
+				ids.put(key, removed);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Get the ids of contacts with a key.
+	 *
+	 * @return the ids, which the caller must not change, or an empty array
+	 */
+	public long[] get(String key) {
+		long[] found = key == null ? null : ids.get(key);
+		return found == null ? NONE : found;
+	}
+
+	/** Get the number of different keys. */
+	public int size() {
+		return ids.size();
+	}
+
+	public void clear() {
+		ids.clear();
+	}
+}
@@ -0,0 +1,576 @@
+package contact.service.mem;
+
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash map from primitive long keys to objects, using open addressing so that
+ * keys are never boxed. Entries are kept in dense arrays in insertion order,
+ * and the hash table only stores the position of an entry in those arrays.
+ * This gives constant time get, put and remove, while {@link #values()} still
+ * returns the values in the order they were added.
+ * <p>
+ * The map may be changed by one thread at a time (callers must serialize
+ * writes), while any number of threads read it without locking. Writes never
+ * move an entry inside the current arrays: removed entries leave a tombstone,
+ * and the arrays are only compacted by building new ones and publishing them
+ * through a volatile field. So a reader never misses a key that is not being
+ * changed, and never sees a value that was not completely published.
+ * <p>
+ * {@link #snapshot()} gives a point-in-time view of the values. The map keeps
+ * the versions it needs: while a snapshot is open, a write that replaces or
+ * removes a value first saves the old value in an undo record, tagged with
+ * the version of the change. A snapshot reads the current value and then
+ * applies the undo records of changes made after it. New keys are added at
+ * the end and new arrays are never changed by a write, so neither needs an
+ * undo record. Undo records are dropped once every snapshot older than them
+ * is closed or garbage collected.
+ *
+ * @param <V>
+ *            type of the values in the map
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class LongHashMap<V> {
+	/** marker for an unused slot in the hash table. */
+	private static final int FREE = -1;
+	/** marker for a slot whose entry was removed. */
+	private static final int DELETED = -2;
+	private static final int MIN_CAPACITY = 16;
+
+	/** The arrays of the map. Only the writer changes them. */
+	private static final class Table {
+		/** hash table of positions in the dense arrays, or FREE or DELETED. */
+		final int[] slots;
+		/** keys in insertion order. */
+		final long[] keys;
+		/** values in insertion order. A null value is a removed entry. */
+		final AtomicReferenceArray<Object> values;
+		/** next free position in the dense arrays. */
+		volatile int end;
+		/** newest undo record of each position, or null if none yet. */
+		volatile ConcurrentHashMap<Integer, Undo> undo;
+
+		Table(int capacity) {
+			slots = new int[tableSizeFor(capacity)];
+			Arrays.fill(slots, FREE);
+			keys = new long[capacity];
+			values = new AtomicReferenceArray<Object>(capacity);
+		}
+
+		/**
+		 * Find the position of a key in the dense arrays.
+		 *
+		 * @return position of the key, or FREE if not found
+		 */
+		int positionOf(long key) {
+			int mask = slots.length - 1;
+			int slot = hash(key) & mask;
+			int pos;
+			while ((pos = slots[slot]) != FREE) {
+				if (pos != DELETED && keys[pos] == key)
+					return pos;
+				slot = (slot + 1) & mask;
+			}
+			return FREE;
+		}
+	}
+
+	/**
+	 * The value of a position before a change made while a snapshot was open.
+	 * Records of one position are linked from newest to oldest.
+	 */
+	private static final class Undo {
+		final Table table;
+		final int position;
+		final Object old;
+		/** version of the change; snapshots older than this need old. */
+		final long version;
+		/** the older record of the same position. */
+		volatile Undo next;
+		/** the newer record of the same position. Only the writer uses it. */
+		Undo newer;
+
+		Undo(Table table, int position, Object old, long version, Undo next) {
+			this.table = table;
+			this.position = position;
+			this.old = old;
+			this.version = version;
+			this.next = next;
+		}
+	}
+
+	/** Reference to an open snapshot, enqueued when it is closed or lost. */
+	private static final class SnapshotRef extends WeakReference<Object> {
+		final long version;
+
+		SnapshotRef(Object snapshot, long version, ReferenceQueue<Object> queue) {
+			super(snapshot, queue);
+			this.version = version;
+		}
+	}
+
+	private volatile Table table;
+	/** number of live entries. */
+	private volatile int size;
+	/** number of changes made to the map. */
+	private volatile long version;
+	/** open snapshots. Only the writer uses it. */
+	private final Set<SnapshotRef> open = new HashSet<SnapshotRef>();
+	private final ReferenceQueue<Object> released = new ReferenceQueue<Object>();
+	/** undo records, oldest first. Only the writer uses it. */
+	private final ArrayDeque<Undo> undoLog = new ArrayDeque<Undo>();
+	/** version of the oldest open snapshot. */
+	private long oldestOpen = Long.MAX_VALUE;
+
+	public LongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Create a map that can hold about capacity entries without resizing.
+	 *
+	 * @param capacity
+	 *            expected number of entries
+	 */
+	public LongHashMap(int capacity) {
+		table = new Table(Math.max(MIN_CAPACITY, capacity));
+	}
+
+	/**
+	 * Hash table size is a power of 2 at least 4 times the capacity, so it is
+	 * at most half full even when every position was used and removed.
+	 */
+	private static int tableSizeFor(int capacity) {
+		int n = Integer.highestOneBit(capacity) << 2;
+		return Math.max(n, MIN_CAPACITY);
+	}
+
+	/** Spread the bits of a key (the finalizer of MurmurHash3). */
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb93fe53ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @return the value, or null if key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Table t = table;
+		int pos = t.positionOf(key);
+		return pos == FREE ? null : (V) t.values.get(pos);
+	}
+
+	/**
+	 * Get the values of several keys, in insertion order. Keys that are not
+	 * in the map are skipped.
+	 *
+	 * @param keys
+	 *            the keys to look up
+	 * @return list of values in the same order as {@link #values()}
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> getAll(long[] keys) {
+		Table t = table;
+		int[] positions = new int[keys.length];
+		int count = 0;
+		for (long key : keys) {
+			int pos = t.positionOf(key);
+			if (pos != FREE)
+				positions[count++] = pos;
+		}
+		Arrays.sort(positions, 0, count);
+		List<V> result = new ArrayList<V>(count);
+		for (int k = 0; k < count; k++) {
+			Object value = t.values.get(positions[k]);
+			if (value != null)
+				result.add((V) value);
+		}
+		return result;
+	}
+
+	/**
+	 * Add or replace the value for a key. A replaced value keeps the position
+	 * of the old one; a new key goes after all existing keys.
+	 *
+	 * @param value
+	 *            the value, must not be null
+	 * @return the previous value, or null if key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("Can't put a null value");
+		Table t = table;
+		int pos = t.positionOf(key);
+		if (pos != FREE) {
+			saveUndo(t, pos);
+			V old = (V) t.values.getAndSet(pos, value);
+			version++;
+			return old;
+		}
+		if (t.end == t.keys.length)
+			t = grow();
+		pos = t.end;
+		t.keys[pos] = key;
+		t.values.set(pos, value);
+		// reuse the first free or deleted slot of the probe sequence
+		int mask = t.slots.length - 1;
+		int slot = hash(key) & mask;
+		while (t.slots[slot] >= 0)
+			slot = (slot + 1) & mask;
+		t.slots[slot] = pos;
+		t.end = pos + 1;
+		size++;
+		version++;
+		return null;
+	}
+
+	/**
+	 * Replace the value for a key only if it is still the expected value.
+	 * Unlike the other changes, this may be called by a reader without the
+	 * writer's lock, to cache a value computed from the old one. If the map
+	 * is changed or its arrays replaced at the same time, the new value may
+	 * be lost, so callers must not depend on it being stored.
+	 *
+	 * @return true if the value was replaced
+	 */
+	public boolean replace(long key, V expect, V update) {
+		Table t = table;
+		int pos = t.positionOf(key);
+		return pos != FREE && t.values.compareAndSet(pos, expect, update);
+	}
+
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @return the removed value, or null if key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		Table t = table;
+		int mask = t.slots.length - 1;
+		int slot = hash(key) & mask;
+		int pos;
+		while ((pos = t.slots[slot]) != FREE) {
+			if (pos != DELETED && t.keys[pos] == key) {
+				saveUndo(t, pos);
+				V old = (V) t.values.getAndSet(pos, null);
+				t.slots[slot] = DELETED;
+				size--;
+				version++;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public void clear() {
+		// open snapshots keep the old arrays, which are never changed again
+		table = new Table(MIN_CAPACITY);
+		size = 0;
+		version++;
+	}
+
+	/**
+	 * Save the value of a position before the writer changes it, if an open
+	 * snapshot may need it. The record is published before the change, so a
+	 * snapshot that sees the new value also finds the record.
+	 */
+	private void saveUndo(Table t, int pos) {
+		expunge();
+		if (open.isEmpty())
+			return;
+		if (t.undo == null)
+			t.undo = new ConcurrentHashMap<Integer, Undo>();
+		Undo newest = t.undo.get(pos);
+		Undo undo = new Undo(t, pos, t.values.get(pos), version + 1, newest);
+		if (newest != null)
+			newest.newer = undo;
+		t.undo.put(pos, undo);
+		undoLog.addLast(undo);
+	}
+
+	/**
+	 * Forget snapshots that were closed or garbage collected, and drop the
+	 * undo records that only they needed.
+	 */
+	private void expunge() {
+		boolean changed = false;
+		Reference<?> ref;
+		while ((ref = released.poll()) != null)
+			changed |= open.remove(ref);
+		if (!changed)
+			return;
+		oldestOpen = Long.MAX_VALUE;
+		for (SnapshotRef snapshot : open)
+			oldestOpen = Math.min(oldestOpen, snapshot.version);
+		// records are in version order, and the oldest of each position is
+		// the last of its list
+		while (!undoLog.isEmpty() && undoLog.peekFirst().version <= oldestOpen) {
+			Undo undo = undoLog.pollFirst();
+			if (undo.newer == null)
+				undo.table.undo.remove(undo.position, undo);
+			else
+				undo.newer.next = null;
+		}
+	}
+
+	/**
+	 * Get the number of undo records kept for open snapshots.
+	 */
+	public int getUndoRecords() {
+		return undoLog.size();
+	}
+
+	/**
+	 * Take a point-in-time view of the values. The view doesn't change when
+	 * the map does, and reading it never blocks the writer. Like a write,
+	 * this must not run at the same time as a write. Close the snapshot when
+	 * done, so the map can drop the old values it keeps for it; a snapshot
+	 * that is garbage collected is closed too.
+	 *
+	 * @return the values in insertion order, as they are now
+	 */
+	public Snapshot snapshot() {
+		expunge();
+		Snapshot snapshot = new Snapshot(table, version, size);
+		snapshot.ref = new SnapshotRef(snapshot, version, released);
+		open.add(snapshot.ref);
+		oldestOpen = Math.min(oldestOpen, version);
+		return snapshot;
+	}
+
+	/**
+	 * Values of the map at one version. get(index) has to count entries from
+	 * the start, like {@link LongHashMap#values()}.
+	 */
+	public class Snapshot extends AbstractList<V> implements Closeable {
+		private final Table t;
+		private final int end;
+		private final long at;
+		private final int count;
+		private SnapshotRef ref;
+
+		Snapshot(Table t, long at, int count) {
+			this.t = t;
+			this.end = t.end;
+			this.at = at;
+			this.count = count;
+		}
+
+		/**
+		 * Get the end of the positions in the snapshot. Positions from 0 to
+		 * end - 1 may be read with valueAt, which is null for no entry.
+		 */
+		int end() {
+			return end;
+		}
+
+		/** Get the value of a position at the version of the snapshot. */
+		Object valueAt(int pos) {
+			// read the value before the undo records, see saveUndo
+			Object value = t.values.get(pos);
+			ConcurrentHashMap<Integer, Undo> undo = t.undo;
+			if (undo != null) {
+				Undo u = undo.get(pos);
+				while (u != null && u.version > at) {
+					value = u.old;
+					u = u.next;
+				}
+			}
+			return value;
+		}
+
+		@Override
+		public V get(int index) {
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			Iterator<V> it = iterator();
+			for (int k = 0; k < index; k++)
+				it.next();
+			return it.next();
+		}
+
+		@Override
+		public Iterator<V> iterator() {
+			return new Iterator<V>() {
+				private int next = -1;
+				private Object value = advance();
+
+				private Object advance() {
+					Object found = null;
+					while (found == null && ++next < end)
+						found = valueAt(next);
+					return found;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return value != null;
+				}
+
+				@Override
+				@SuppressWarnings("unchecked")
+				public V next() {
+					if (value == null)
+						throw new NoSuchElementException();
+					V result = (V) value;
+					value = advance();
+					return result;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return count;
+		}
+
+		/** Let the map drop the old values kept for this snapshot. */
+		@Override
+		public void close() {
+			ref.enqueue();
+		}
+	}
+
+	/**
+	 * Make room in the dense arrays. If many entries were removed the arrays
+	 * are only compacted, otherwise they double in size.
+	 *
+	 * @return the new arrays
+	 */
+	private Table grow() {
+		Table old = table;
+		int capacity = old.keys.length;
+		if (size > capacity / 2)
+			capacity *= 2;
+		Table t = new Table(capacity);
+		int mask = t.slots.length - 1;
+		int n = 0;
+		for (int k = 0; k < old.end; k++) {
+			Object value = old.values.get(k);
+			if (value == null)
+				continue;
+			long key = old.keys[k];
+			t.keys[n] = key;
+			t.values.set(n, value);
+			int slot = hash(key) & mask;
+			while (t.slots[slot] != FREE)
+				slot = (slot + 1) & mask;
+			t.slots[slot] = n++;
+		}
+		t.end = n;
+		table = t;
+		return t;
+	}
+
+	/**
+	 * Get a live, read-only view of the values in insertion order. The view
+	 * reflects later changes to the map, and may be iterated while the map
+	 * is changed. Iterating is the fast way to use it; get(index) has to
+	 * count live entries from the start.
+	 *
+	 * @return list of values
+	 */
+	public List<V> values() {
+		return new AbstractList<V>() {
+			@Override
+			public V get(int index) {
+				if (index < 0)
+					throw new IndexOutOfBoundsException("Index: " + index);
+				Iterator<V> it = iterator();
+				for (int k = 0; k < index && it.hasNext(); k++)
+					it.next();
+				if (!it.hasNext())
+					throw new IndexOutOfBoundsException("Index: " + index);
+				return it.next();
+			}
+
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/** Iterator over the values of one version of the arrays. */
+	private class ValueIterator implements Iterator<V> {
+		private final Table t = table;
+		private int next = -1;
+		private Object value;
+
+		ValueIterator() {
+			advance();
+		}
+
+		private void advance() {
+			value = null;
+			int end = t.end;
+			while (value == null && ++next < end)
+				value = t.values.get(next);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return value != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (value == null)
+				throw new NoSuchElementException();
+			V result = (V) value;
+			advance();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package contact.service.mem;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive long values using open addressing, so values are never
+ * boxed. Used for the posting lists of in-memory indexes.
+ * <p>
+ * Like {@link LongHashMap}, the set may be changed by one thread at a time
+ * while other threads read it without locking. Removed values leave a
+ * tombstone, and the arrays are only replaced as a whole when they grow.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class LongHashSet {
+	private static final int MIN_CAPACITY = 4;
+	private static final byte FREE = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+
+	/** The arrays of the set. Only the writer changes them. */
+	private static final class Table {
+		/** hash table of values. */
+		final long[] values;
+		/** state of each slot of values: FREE, USED or DELETED. */
+		final byte[] states;
+
+		Table(int capacity) {
+			values = new long[capacity];
+			states = new byte[capacity];
+		}
+	}
+
+	private volatile Table table;
+	private volatile int size;
+	/** number of slots that are not FREE. */
+	private int filled;
+
+	public LongHashSet() {
+		table = new Table(MIN_CAPACITY);
+	}
+
+	/**
+	 * Find the slot of a value.
+	 *
+	 * @return slot containing the value, or the FREE slot that ends its probe
+	 *         sequence
+	 */
+	private static int slotOf(Table t, long value) {
+		int mask = t.values.length - 1;
+		int slot = LongHashMap.hash(value) & mask;
+		byte state;
+		while ((state = t.states[slot]) != FREE) {
+			if (state == USED && t.values[slot] == value)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long value) {
+		Table t = table;
+		return t.states[slotOf(t, value)] == USED;
+	}
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @return true if the value was not already in the set
+	 */
+	public boolean add(long value) {
+		Table t = table;
+		if (t.states[slotOf(t, value)] == USED)
+			return false;
+		// keep the table at most half full, counting tombstones
+		if (filled + 1 > t.values.length / 2)
+			t = resize(size + 1 > t.values.length / 4 ? t.values.length * 2
+					: t.values.length);
+		int mask = t.values.length - 1;
+		int slot = LongHashMap.hash(value) & mask;
+		while (t.states[slot] == USED)
+			slot = (slot + 1) & mask;
+		if (t.states[slot] == FREE)
+			filled++;
+		t.values[slot] = value;
+		t.states[slot] = USED;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Remove a value from the set.
+	 *
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(long value) {
+		Table t = table;
+		int slot = slotOf(t, value);
+		if (t.states[slot] != USED)
+			return false;
+		t.states[slot] = DELETED;
+		size--;
+		return true;
+	}
+
+	public void clear() {
+		table = new Table(MIN_CAPACITY);
+		size = 0;
+		filled = 0;
+	}
+
+	/**
+	 * Copy the values of this set into an array.
+	 *
+	 * @return array of values in no particular order
+	 */
+	public long[] toArray() {
+		Table t = table;
+		long[] result = new long[Math.max(size, 4)];
+		int n = 0;
+		for (int k = 0; k < t.states.length; k++) {
+			if (t.states[k] != USED)
+				continue;
+			// the set may grow while it is copied
+			if (n == result.length)
+				result = Arrays.copyOf(result, n * 2);
+			result[n++] = t.values[k];
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	/** Copy the live values into new arrays and publish them. */
+	private Table resize(int capacity) {
+		Table old = table;
+		Table t = new Table(capacity);
+		for (int k = 0; k < old.values.length; k++) {
+			if (old.states[k] != USED)
+				continue;
+			int slot = slotOf(t, old.values[k]);
+			t.values[slot] = old.values[k];
+			t.states[slot] = USED;
+		}
+		filled = size;
+		table = t;
+		return t;
+	}
+
+	@Override
+	public String toString() {
+		long[] values = toArray();
+		Arrays.sort(values);
+		return Arrays.toString(values);
+	}
+}
@@ -1,38 +1,400 @@
 package contact.service.mem;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 
 import contact.entity.Contact;
 import contact.entity.Contacts;
+import contact.service.ContactCursor;
 import contact.service.ContactDao;
+import contact.service.ContactEvent;
+import contact.service.ContactEvents;
+import contact.service.ContactField;
+import contact.service.ContactPredicate;
+import contact.service.IdAllocator;
 
 /**
  * Data access object for saving and retrieving contacts. This DAO uses an
- * in-memory list of person. Use DaoFactory to get an instance of this class,
- * such as: dao = DaoFactory.getInstance().getContactDao()
+ * in-memory list of person, indexed by id so that lookups by id take constant
+ * time, with a trigram index of titles for substring search and a sorted
+ * index of titles for prefix search. Title searches ignore case: each title's
+ * {@link Contact#titleKey(String) folded key} is computed once when it is
+ * indexed, and searches only compare keys. Use DaoFactory to get an instance of this
+ * class, such as: dao = DaoFactory.getInstance().getContactDao()
+ * <p>
+ * This DAO is safe to use from many threads. Reads (find and findByTitle)
+ * never lock: the id map and title index can be read while they are changed,
+ * and saved contacts are never modified, since update replaces a contact with
+ * an updated copy. Writes hold a lock only while they change the map and
+ * indexes.
+ * <p>
+ * findAll, {@link #exportFile()} and {@link #checkpoint()} read a snapshot of
+ * the map (see {@link LongHashMap#snapshot()}): they see all contacts as they
+ * were at one point in time, however long they take, and writers go on while
+ * they read. The map keeps the old values a snapshot needs until the snapshot
+ * is closed or garbage collected.
+ * <p>
+ * Contacts are saved in a {@link BinarySnapshot}, which is mapped into memory
+ * when the DAO is created: only the ids are read at start up, and a contact is
+ * decoded the first time it is used. The title indexes are built on the first
+ * search by title, the hash indexes of normalized email addresses and phone
+ * numbers on the first search by those, and the {@link SortedIdIndex} on the
+ * first page of findAll. If there is no snapshot yet, contacts are imported
+ * from the XML file; the XML file is otherwise only written by
+ * {@link #exportFile()}.
+ * <p>
+ * If the DAO has a {@link ContactJournal}, every change is appended to it
+ * before the write returns, and the journal is replayed when the DAO is
+ * created. {@link #checkpoint()} saves all contacts to the snapshot and
+ * empties the journal. The DAO also keeps the set of ids changed since the
+ * last snapshot, which {@link SnapshotManager} uses to write delta segments.
+ * <p>
+ * To use less memory when many contacts have the same company or email
+ * domain, the DAO can deduplicate field values (system property
+ * <tt>contact.mem.dedup=true</tt>). Contacts are then kept as
+ * {@link PooledContact}s that share their title, email domain and photo URL
+ * prefix with other contacts, and find returns a new copy of the contact
+ * each time. {@link #getDedupStats()} reports the memory saved.
+ * <p>
+ * Searches that no index covers can use {@link #scan(ContactPredicate, int)},
+ * which checks chunks of a snapshot in parallel on a fork/join pool.
+ * <p>
+ * The DAO can be given a heap budget for contacts (system property
+ * <tt>contact.mem.heapBudget</tt>, in bytes). The least recently used
+ * contacts over the budget are then written to a {@link SpillFile} and
+ * replaced in the map by a reference to their record, and a find reads a
+ * spilled contact back onto the heap. The id map and the indexes stay on the
+ * heap, so searches still only read the contacts they return.
+ * {@link #getSpillStats()} reports the hits, misses and faults.
+ * <p>
+ * Writes publish their changes to {@link #getContactEvents()} while they hold
+ * the write lock, so the events of a contact are in the order of its changes.
+ * Removing all contacts publishes one CLEARED event.
  * 
  * @author jim, Veerapat Threeravipark 5510547022
  */
 public class MemContactDao implements ContactDao {
-	private List<Contact> contacts;
-	private AtomicLong nextId;
+	private static final Logger logger = Logger.getLogger(MemContactDao.class
+			.getName());
+	/** number of map positions a scan task checks without splitting. */
+	private static final int SCAN_CHUNK = 16 * 1024;
+	/** threads that run scans, one per processor. */
+	private static final ForkJoinPool scanPool = new ForkJoinPool();
+
+	/**
+	 * each value is a Contact, a PooledContact, or a BinarySnapshot.Ref not
+	 * decoded yet.
+	 */
+	private LongHashMap<Object> contacts;
+	/** index of contact titles for findByTitle. */
+	private TrigramIndex titleIndex;
+	/** index of contact titles for findByTitlePrefix. */
+	private TitlePrefixIndex prefixIndex;
+	/** Contact.titleKey of the title of each contact in the title indexes. */
+	private LongHashMap<String> titleKeys;
+	/** true once the title indexes have all contacts in them. */
+	private volatile boolean indexed;
+	/** index of Contact.emailKey of each contact, for findByEmail. */
+	private KeyIndex emailIndex;
+	/** index of Contact.phoneKey of each contact, for findByPhoneNumber. */
+	private KeyIndex phoneIndex;
+	/** true once the email and phone indexes have all contacts in them. */
+	private volatile boolean keysIndexed;
+	/** ids of all contacts in order, for findAll(long, int). */
+	private SortedIdIndex idIndex;
+	/** true once the id index has all contacts in it. */
+	private volatile boolean idsIndexed;
+	/** allocates ids of new contacts, and knows all ids ever saved. */
+	private final IdAllocator ids;
+	/** lock held by any thread that changes contacts or the indexes. */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/** journal of changes since the XML file was saved, or null. */
+	private final ContactJournal journal;
+	/** ids of contacts changed since the last snapshot, or null if no journal. */
+	private LongHashSet changed;
+	/** true if all contacts were removed since the last snapshot. */
+	private boolean changedAll;
+	/** pools of shared field values, or null if values are not shared. */
+	private final PooledContact.Pools pools;
+	/** contacts on the heap, or null if there is no heap budget. */
+	private final ResidentSet resident;
+	/** file of contacts moved off the heap, or null if no heap budget. */
+	private final SpillFile spill;
+	/** publishes changes to listeners. */
+	private final ContactEvents events;
+
+	/**
+	 * Contacts changed since a snapshot, taken by {@link #takeChanges(int)}.
+	 */
+	static final class Changes {
+		/** ids of changed contacts. */
+		final long[] ids;
+		/** true if all contacts were removed before these changes. */
+		final boolean cleared;
+
+		Changes(long[] ids, boolean cleared) {
+			this.ids = ids;
+			this.cleared = cleared;
+		}
+	}
+
+	/**
+	 * Checks a range of positions of a snapshot of the map, splitting it in
+	 * halves until it is at most SCAN_CHUNK positions. All tasks of a scan
+	 * share the count of contacts still wanted, and stop when it reaches 0.
+	 */
+	private final class Scan extends RecursiveTask<List<Contact>> {
+		private static final long serialVersionUID = 1L;
+		private final LongHashMap<Object>.Snapshot snapshot;
+		private final ContactPredicate predicate;
+		private final AtomicInteger wanted;
+		private final int from;
+		private final int to;
+
+		Scan(LongHashMap<Object>.Snapshot snapshot, ContactPredicate predicate,
+				AtomicInteger wanted, int from, int to) {
+			this.snapshot = snapshot;
+			this.predicate = predicate;
+			this.wanted = wanted;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<Contact> compute() {
+			if (wanted.get() <= 0)
+				return Collections.emptyList();
+			if (to - from <= SCAN_CHUNK)
+				return check();
+			int mid = (from + to) >>> 1;
+			Scan right = new Scan(snapshot, predicate, wanted, mid, to);
+			right.fork();
+			List<Contact> left = new Scan(snapshot, predicate, wanted, from,
+					mid).compute();
+			List<Contact> rest = right.join();
+			if (left.isEmpty())
+				return rest;
+			left.addAll(rest);
+			return left;
+		}
+
+		/**
+		 * Check each position of the range. A saved contact is passed to the
+		 * predicate as it is, so nothing is allocated for contacts that don't
+		 * match; contacts still in the binary snapshot are decoded once and
+		 * kept.
+		 */
+		private List<Contact> check() {
+			List<Contact> found = Collections.emptyList();
+			for (int pos = from; pos < to; pos++) {
+				if ((pos & 255) == 0 && wanted.get() <= 0)
+					break;
+				Object value = snapshot.valueAt(pos);
+				if (value == null)
+					continue;
+				Contact contact = value instanceof Contact ? (Contact) value
+						: materialize(idOf(value), value, false);
+				if (predicate.matches(contact)) {
+					if (found.isEmpty())
+						found = new ArrayList<Contact>();
+					found.add(contact);
+					if (wanted.decrementAndGet() <= 0)
+						break;
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Applies records from snapshots and the journal. A put replaces a saved
+	 * contact in place, so loading the same record twice is harmless.
+	 */
+	private final ContactRecords.Handler loader = new ContactRecords.Handler() {
+		public void put(Contact contact) {
+			Object old = contacts.get(contact.getId());
+			if (old == null)
+				add(contact);
+			else
+				replace(old, contact);
+		}
+
+		public void delete(long id) {
+			remove(id);
+		}
+
+		public void clear() {
+			clearAll();
+		}
+	};
 
 	/**
 	 * Construct list of contact.
 	 */
 	public MemContactDao() {
-		contacts = new ArrayList<Contact>();
-		importFile();
-		nextId = new AtomicLong(1000L);
+		this(null);
+	}
+
+	/**
+	 * Construct list of contact from the snapshot file, its delta segments and
+	 * the changes in a journal, and record later changes in the journal.
+	 * Field values are deduplicated if the system property
+	 * <tt>contact.mem.dedup</tt> is true.
+	 * 
+	 * @param journal
+	 *            journal of changes since the snapshot was saved, or null
+	 */
+	public MemContactDao(ContactJournal journal) {
+		this(journal, Boolean.getBoolean("contact.mem.dedup"), Long.getLong(
+				"contact.mem.heapBudget", 0L));
+	}
+
+	/**
+	 * Construct list of contact from the snapshot file, its delta segments and
+	 * the changes in a journal, and record later changes in the journal.
+	 * 
+	 * @param journal
+	 *            journal of changes since the snapshot was saved, or null
+	 * @param dedup
+	 *            true to share equal field values between contacts
+	 */
+	public MemContactDao(ContactJournal journal, boolean dedup) {
+		this(journal, dedup, 0L);
+	}
+
+	/**
+	 * Construct list of contact from the snapshot file, its delta segments and
+	 * the changes in a journal, and record later changes in the journal.
+	 * 
+	 * @param journal
+	 *            journal of changes since the snapshot was saved, or null
+	 * @param dedup
+	 *            true to share equal field values between contacts
+	 * @param heapBudget
+	 *            bytes of heap the contacts may use before the least recently
+	 *            used are spilled to disk, or 0 for no limit
+	 */
+	public MemContactDao(ContactJournal journal, boolean dedup, long heapBudget) {
+		ids = new IdAllocator(1000L);
+		pools = dedup ? new PooledContact.Pools() : null;
+		SpillFile file = null;
+		if (heapBudget > 0) {
+			try {
+				file = new SpillFile();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		spill = file;
+		resident = file == null ? null : new ResidentSet(heapBudget);
+		events = new ContactEvents();
+		contacts = new LongHashMap<Object>();
+		titleIndex = new TrigramIndex();
+		prefixIndex = new TitlePrefixIndex();
+		titleKeys = new LongHashMap<String>();
+		emailIndex = new KeyIndex();
+		phoneIndex = new KeyIndex();
+		idIndex = new SortedIdIndex();
+		loadFile();
 		// createTestContact(1);
+		this.journal = journal;
+		if (journal != null) {
+			// changes in the journal are not in a snapshot yet
+			changed = new LongHashSet();
+			try {
+				journal.replay(loader);
+			} catch (IOException e) {
+				// a later checkpoint would save the contacts without the
+				// journaled changes and empty the journal, losing them
+				throw new IllegalStateException("Can't replay journal "
+						+ journal.getFile(), e);
+			}
+			logger.info("Replayed journal " + journal.getFile().getPath());
+		}
+	}
+
+	/**
+	 * Construct an empty list of contact for one partition of a
+	 * {@link PartitionedContactDao}. It reads no file, has no journal, and
+	 * takes ids from the allocator shared by all partitions.
+	 * 
+	 * @param ids
+	 *            allocator of ids for all partitions
+	 * @param dedup
+	 *            true to share equal field values between contacts
+	 * @param events
+	 *            events of all partitions
+	 */
+	MemContactDao(IdAllocator ids, boolean dedup, ContactEvents events) {
+		this.ids = ids;
+		this.events = events;
+		pools = dedup ? new PooledContact.Pools() : null;
+		contacts = new LongHashMap<Object>();
+		titleIndex = new TrigramIndex();
+		prefixIndex = new TitlePrefixIndex();
+		titleKeys = new LongHashMap<String>();
+		emailIndex = new KeyIndex();
+		phoneIndex = new KeyIndex();
+		idIndex = new SortedIdIndex();
+		journal = null;
+		resident = null;
+		spill = null;
+	}
+
+	/**
+	 * Get the lock held by writes. Holding it keeps the contacts from
+	 * changing, so several partitions can be read at one point in time.
+	 */
+	ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+
+	/**
+	 * Load contacts from the snapshot file, or import them from the XML file
+	 * if there is no snapshot, followed by the delta segments saved after it.
+	 * Contacts in the snapshot are not decoded until they are used.
+	 */
+	private void loadFile() {
+		File file = new File(MemDaoFactory.SNAPSHOT_PATH);
+		try {
+			if (file.exists()) {
+				BinarySnapshot snapshot = new BinarySnapshot(file);
+				for (int k = 0; k < snapshot.size(); k++) {
+					ids.markUsed(snapshot.idAt(k));
+					contacts.put(snapshot.idAt(k), new BinarySnapshot.Ref(
+							snapshot, k));
+				}
+			} else {
+				importFile();
+				// delta segments of the XML file, from before there were
+				// binary snapshots
+				for (File delta : SnapshotManager.deltaFiles(new File(
+						MemDaoFactory.PATH)))
+					ContactRecords.readFile(delta, loader);
+			}
+			for (File delta : SnapshotManager.deltaFiles(file))
+				ContactRecords.readFile(delta, loader);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
@@ -40,21 +402,187 @@ public class MemContactDao implements ContactDao {
 	 */
 	public void importFile() {
 		checkFile();
-		JAXBContext ctx;
-		try {
-			ctx = JAXBContext.newInstance(Contacts.class);
-			Unmarshaller unmarshaller;
-			unmarshaller = ctx.createUnmarshaller();
-			File file = new File(MemDaoFactory.PATH);
-			Contacts contactList = (Contacts) unmarshaller.unmarshal(file);
-			if (contactList.getContacts() == null) {
-				return;
+		importFile(new File(MemDaoFactory.PATH));
+	}
+
+	/**
+	 * Import contacts from an XML file. The file is read as a stream, and
+	 * each contact element is saved as soon as it is read, so the whole list
+	 * is never in memory at once. Contacts with the same id as a saved
+	 * contact replace it.
+	 * 
+	 * @param file
+	 *            XML file with a contacts element
+	 */
+	public void importFile(File file) {
+		writeLock.lock();
+		try {
+			ContactXml.read(file, loader);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Save all contacts to the snapshot file and drop the journal records and
+	 * delta segments that the file now has in it. The file is written from a
+	 * snapshot of the map, so writes go on while it is saved; their records
+	 * go to a new journal.
+	 * 
+	 * @return true if the contacts were saved
+	 */
+	public boolean checkpoint() {
+		LongHashMap<Object>.Snapshot snapshot;
+		Changes changes = null;
+		writeLock.lock();
+		try {
+			snapshot = contacts.snapshot();
+			if (journal != null) {
+				changes = new Changes(changed.toArray(), changedAll);
+				journal.rotate();
+				changed = new LongHashSet();
+				changedAll = false;
 			}
-			contacts = contactList.getContacts();
-		} catch (JAXBException e) {
+		} finally {
+			writeLock.unlock();
+		}
+		try {
+			writeSnapshot(snapshot);
+		} catch (IOException e) {
 			e.printStackTrace();
+			if (changes != null)
+				restoreChanges(changes);
+			return false;
+		} finally {
+			snapshot.close();
+		}
+		SnapshotManager.deleteDeltas(new File(MemDaoFactory.SNAPSHOT_PATH));
+		SnapshotManager.deleteDeltas(new File(MemDaoFactory.PATH));
+		if (journal != null)
+			journal.dropRotated();
+		return true;
+	}
+
+	/**
+	 * Take a snapshot of the map. The caller must close it.
+	 */
+	private LongHashMap<Object>.Snapshot snapshot() {
+		// a snapshot is taken between two writes, never in the middle of one
+		writeLock.lock();
+		try {
+			return contacts.snapshot();
+		} finally {
+			writeLock.unlock();
 		}
+	}
 
+	ContactJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Take the ids of contacts changed since the last snapshot, and rotate the
+	 * journal so the records of those changes can be dropped once the
+	 * snapshot is saved.
+	 * 
+	 * @param min
+	 *            the least number of changes worth a snapshot
+	 * @return the changes, or null if fewer than min contacts changed
+	 */
+	Changes takeChanges(int min) {
+		writeLock.lock();
+		try {
+			if (changed.size() < min && !changedAll)
+				return null;
+			Changes changes = new Changes(changed.toArray(), changedAll);
+			journal.rotate();
+			changed = new LongHashSet();
+			changedAll = false;
+			return changes;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Put back changes taken by takeChanges, when the snapshot failed.
+	 */
+	void restoreChanges(Changes changes) {
+		writeLock.lock();
+		try {
+			for (long id : changes.ids)
+				changed.add(id);
+			changedAll |= changes.cleared;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Save all contacts, as they are now, to the snapshot file.
+	 * 
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	void writeSnapshot() throws IOException {
+		LongHashMap<Object>.Snapshot snapshot = snapshot();
+		try {
+			writeSnapshot(snapshot);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Save the contacts of a snapshot of the map to the snapshot file.
+	 * Contacts that were never decoded are copied from the old snapshot as
+	 * they are.
+	 */
+	private void writeSnapshot(List<Object> snapshot) throws IOException {
+		// copy the values first, since get(index) of the snapshot is slow
+		List<Object> values = new ArrayList<Object>(snapshot);
+		if (pools != null || spill != null)
+			for (int k = 0; k < values.size(); k++)
+				if (values.get(k) instanceof PooledContact
+						|| values.get(k) instanceof SpillFile.Ref)
+					values.set(k, peek(values.get(k)));
+		BinarySnapshot.write(new File(MemDaoFactory.SNAPSHOT_PATH), values);
+	}
+
+	/**
+	 * Export list of contact to xml source file. The list is written to a
+	 * temporary file that then replaces the source file, so a crash while
+	 * writing never leaves a partial file. The file has the contacts as they
+	 * were when the export started.
+	 * 
+	 * @return true if the file was written
+	 */
+	public boolean exportFile() {
+		Contacts allContacts = new Contacts();
+		LongHashMap<Object>.Snapshot snapshot = snapshot();
+		try {
+			allContacts.setContacts(new ArrayList<Contact>(contactList(snapshot)));
+		} finally {
+			snapshot.close();
+		}
+		try {
+			JAXBContext context = JAXBContext.newInstance(Contacts.class);
+			File outputFile = new File(MemDaoFactory.PATH);
+			File tempFile = new File(MemDaoFactory.PATH + ".tmp");
+			System.out.println("Output file status: " + outputFile.isFile()
+					+ " --> Path: " + outputFile.getPath());
+			Marshaller marshaller = context.createMarshaller();
+			marshaller.marshal(allContacts, tempFile);
+			Files.move(tempFile.toPath(), outputFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (JAXBException | IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 
 	private void checkFile() {
@@ -83,7 +611,414 @@ public class MemContactDao implements ContactDao {
 		Contact test = new Contact("Test contact", "Joe Experimental",
 				"none@testing.com", "0812345678");
 		test.setId(id);
-		contacts.add(test);
+		add(test);
+	}
+
+	/**
+	 * Add a contact to the list and the title indexes. The contact must not
+	 * already be saved. Caller must hold the write lock.
+	 */
+	private void add(Contact contact) {
+		Object value = stored(contact);
+		ids.markUsed(contact.getId());
+		contacts.put(contact.getId(), value);
+		indexTitle(contact.getId(), value);
+		indexKeys(contact.getId(), value);
+		if (idsIndexed)
+			idIndex.add(contact.getId());
+		markChanged(contact.getId());
+		admit(contact.getId(), contact);
+	}
+
+	/** Remember that a contact changed since the last snapshot. */
+	private void markChanged(long id) {
+		if (changed != null)
+			changed.add(id);
+	}
+
+	/**
+	 * Remove a contact from the list and the title indexes. Caller must hold
+	 * the write lock.
+	 * 
+	 * @return the removed contact, or null if id was not saved
+	 */
+	private Object remove(long id) {
+		Object value = contacts.remove(id);
+		if (value != null) {
+			release(value);
+			unindexTitle(id, value);
+			unindexKeys(id, value);
+			if (idsIndexed)
+				idIndex.remove(id);
+			markChanged(id);
+			if (resident != null)
+				resident.remove(id);
+		}
+		return value;
+	}
+
+	private void indexTitle(long id, Object value) {
+		if (indexed)
+			addTitle(id, value);
+	}
+
+	/**
+	 * Add a title to the title indexes, with its folded key. Caller must
+	 * hold the write lock.
+	 */
+	private void addTitle(long id, Object value) {
+		// index the stored title, which may be a shared value
+		String title = titleOf(value);
+		addTitleKey(id, title);
+		prefixIndex.add(id, title);
+	}
+
+	/**
+	 * Add a title to the exact title index only. Caller must hold the write
+	 * lock.
+	 */
+	private void addTitleKey(long id, String title) {
+		String key = Contact.titleKey(title);
+		if (key != null)
+			titleKeys.put(id, key);
+		titleIndex.add(id, key);
+	}
+
+	private void unindexTitle(long id, Object value) {
+		if (!indexed)
+			return;
+		titleIndex.remove(id, titleKeys.remove(id));
+		prefixIndex.remove(id, titleOf(value));
+	}
+
+	private void indexKeys(long id, Object value) {
+		if (!keysIndexed)
+			return;
+		Contact contact = peek(value);
+		emailIndex.add(id, Contact.emailKey(contact.getEmail()));
+		phoneIndex.add(id, Contact.phoneKey(contact.getPhoneNumber()));
+	}
+
+	private void unindexKeys(long id, Object value) {
+		if (!keysIndexed)
+			return;
+		Contact contact = peek(value);
+		emailIndex.remove(id, Contact.emailKey(contact.getEmail()));
+		phoneIndex.remove(id, Contact.phoneKey(contact.getPhoneNumber()));
+	}
+
+	/**
+	 * Build the email and phone indexes if they were not built yet. Contacts
+	 * in the snapshot are decoded, but not kept.
+	 */
+	private void ensureKeysIndexed() {
+		if (keysIndexed)
+			return;
+		writeLock.lock();
+		try {
+			if (keysIndexed)
+				return;
+			for (Object value : contacts.values()) {
+				Contact contact = peek(value);
+				emailIndex.add(contact.getId(),
+						Contact.emailKey(contact.getEmail()));
+				phoneIndex.add(contact.getId(),
+						Contact.phoneKey(contact.getPhoneNumber()));
+			}
+			keysIndexed = true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Build the id index if it was not built yet. Only the ids of contacts
+	 * are read, and sorted once.
+	 */
+	private void ensureIdsIndexed() {
+		if (idsIndexed)
+			return;
+		writeLock.lock();
+		try {
+			if (idsIndexed)
+				return;
+			List<Object> values = contacts.values();
+			long[] all = new long[values.size()];
+			int count = 0;
+			for (Object value : values)
+				all[count++] = idOf(value);
+			idIndex.addAll(all);
+			idsIndexed = true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Build the title indexes if they were not built yet. Only the titles of
+	 * contacts in the snapshot are decoded, and the prefix index sorts all
+	 * titles at once.
+	 */
+	private void ensureIndexed() {
+		if (indexed)
+			return;
+		writeLock.lock();
+		try {
+			if (indexed)
+				return;
+			List<Object> values = contacts.values();
+			long[] ids = new long[values.size()];
+			String[] titles = new String[values.size()];
+			int count = 0;
+			for (Object value : values) {
+				ids[count] = idOf(value);
+				titles[count] = titleOf(value);
+				addTitleKey(ids[count], titles[count]);
+				count++;
+			}
+			prefixIndex.addAll(ids, titles, count);
+			indexed = true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Replace a saved contact by another with the same id, keeping its place
+	 * in the list. Caller must hold the write lock.
+	 */
+	private void replace(Object old, Contact contact) {
+		unindexTitle(contact.getId(), old);
+		unindexKeys(contact.getId(), old);
+		Object value = stored(contact);
+		// old may be a copy, so release the value that was in the map
+		release(contacts.put(contact.getId(), value));
+		indexTitle(contact.getId(), value);
+		indexKeys(contact.getId(), value);
+		markChanged(contact.getId());
+		admit(contact.getId(), contact);
+	}
+
+	/** Remove all contacts. Caller must hold the write lock. */
+	private void clearAll() {
+		contacts.clear();
+		if (pools != null)
+			pools.clear();
+		titleIndex.clear();
+		prefixIndex.clear();
+		titleKeys.clear();
+		emailIndex.clear();
+		phoneIndex.clear();
+		idIndex.clear();
+		if (resident != null)
+			resident.clear();
+		// the empty indexes have all (no) contacts in them
+		indexed = true;
+		keysIndexed = true;
+		idsIndexed = true;
+		if (changed != null) {
+			changed = new LongHashSet();
+			changedAll = true;
+		}
+	}
+
+	/**
+	 * Append a change to the journal, if there is one. Caller must hold the
+	 * write lock, so records are in the same order as the changes, and must
+	 * log a change before making it: if the journal can't be written, the
+	 * contacts are not changed either.
+	 * 
+	 * @return sequence number of the last record, or 0 if no journal
+	 */
+	private long log(byte[] record) {
+		return journal == null ? 0 : journal.append(record);
+	}
+
+	/**
+	 * Wait until logged changes are durable. Called after releasing the
+	 * write lock, so that other writers can share the same disk sync.
+	 * 
+	 * @param sequence
+	 *            sequence number returned by log
+	 */
+	private void commit(long sequence) {
+		if (sequence > 0)
+			journal.commit(sequence);
+	}
+
+	/**
+	 * Get the value to keep in the map for a contact. Caller must hold the
+	 * write lock.
+	 */
+	private Object stored(Contact contact) {
+		return pools == null ? contact : new PooledContact(contact, pools);
+	}
+
+	/**
+	 * Release the shared values of a value removed from the map. Caller must
+	 * hold the write lock.
+	 */
+	private void release(Object value) {
+		if (value instanceof PooledContact)
+			((PooledContact) value).release(pools);
+	}
+
+	/**
+	 * Get statistics of the field values shared between contacts.
+	 * 
+	 * @return the statistics, or null if values are not shared
+	 */
+	public DedupStats getDedupStats() {
+		if (pools == null)
+			return null;
+		writeLock.lock();
+		try {
+			return new DedupStats(pools);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Count a contact that is now on the heap, and spill the least recently
+	 * used contacts if that puts the heap over its budget. Spilling needs the
+	 * write lock: if another thread has it, that thread's write will spill
+	 * them instead.
+	 */
+	private void admit(long id, Contact contact) {
+		if (resident == null)
+			return;
+		resident.add(id, ResidentSet.sizeOf(contact));
+		if (resident.isOver() && writeLock.tryLock()) {
+			try {
+				evict();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Spill the least recently used contacts to the spill file until the
+	 * contacts on the heap fit the budget. A contact is replaced in the map
+	 * by a reference to its record, so readers holding it are not affected.
+	 * Caller must hold the write lock.
+	 */
+	private void evict() {
+		long id;
+		while ((id = resident.takeEldest()) != 0) {
+			Object value = contacts.get(id);
+			// it may have been spilled or removed since it was counted
+			if (!(value instanceof Contact || value instanceof PooledContact))
+				continue;
+			try {
+				if (contacts.replace(id, value, spill.write(peek(value)))) {
+					release(value);
+					resident.evictions++;
+				}
+			} catch (IOException e) {
+				// keep it on the heap, over the budget, until the disk works
+				e.printStackTrace();
+				resident.add(id, ResidentSet.sizeOf(peek(value)));
+				return;
+			}
+		}
+	}
+
+	public ContactEvents getContactEvents() {
+		return events;
+	}
+
+	/**
+	 * Get statistics of the contacts on the heap and in the spill file.
+	 * 
+	 * @return the statistics, or null if there is no heap budget
+	 */
+	public SpillStats getSpillStats() {
+		if (resident == null)
+			return null;
+		writeLock.lock();
+		try {
+			return new SpillStats(resident, spill);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static long idOf(Object value) {
+		if (value instanceof PooledContact)
+			return ((PooledContact) value).id;
+		if (value instanceof SpillFile.Ref)
+			return ((SpillFile.Ref) value).id;
+		if (value instanceof BinarySnapshot.Ref) {
+			BinarySnapshot.Ref ref = (BinarySnapshot.Ref) value;
+			return ref.snapshot.idAt(ref.index);
+		}
+		return ((Contact) value).getId();
+	}
+
+	/** Get the title of a saved contact, without decoding all of it. */
+	private static String titleOf(Object value) {
+		if (value instanceof PooledContact)
+			return ((PooledContact) value).title;
+		if (value instanceof BinarySnapshot.Ref)
+			return ((BinarySnapshot.Ref) value).title();
+		if (value instanceof SpillFile.Ref)
+			return ((SpillFile.Ref) value).title();
+		return ((Contact) value).getTitle();
+	}
+
+	/**
+	 * Get the fields of a value in the map, without storing anything. The
+	 * contact must not be changed.
+	 */
+	private static Contact peek(Object value) {
+		if (value instanceof PooledContact)
+			return ((PooledContact) value).toContact();
+		if (value instanceof BinarySnapshot.Ref)
+			return ((BinarySnapshot.Ref) value).load();
+		if (value instanceof SpillFile.Ref)
+			return ((SpillFile.Ref) value).load();
+		return (Contact) value;
+	}
+
+	/**
+	 * Get the contact for a value in the map, decoding it if it is still in
+	 * the snapshot or the spill file. The decoded contact replaces the
+	 * reference, so later finds return the same object. Many threads may
+	 * decode the same contact at once; the first one to store it wins. If
+	 * field values are shared, a new contact is made each time instead.
+	 * 
+	 * @param current
+	 *            true if value was read from the map now, false if it is from
+	 *            a snapshot and may be an old value of the contact. Spilled
+	 *            contacts of a snapshot are read without being stored, so a
+	 *            scan doesn't push the recently used contacts off the heap.
+	 * @return the contact, or null if value is null
+	 */
+	private Contact materialize(long id, Object value, boolean current) {
+		if (value instanceof PooledContact)
+			return ((PooledContact) value).toContact();
+		if (pools != null && value != null)
+			return peek(value);
+		while (value instanceof BinarySnapshot.Ref
+				|| value instanceof SpillFile.Ref) {
+			Contact contact = peek(value);
+			if (!current && value instanceof SpillFile.Ref)
+				return contact;
+			if (contacts.replace(id, value, contact)) {
+				admit(id, contact);
+				return contact;
+			}
+			if (!current)
+				return contact;
+			Object now = contacts.get(id);
+			// the map was grown while we stored it: the contact is still good
+			if (now == value)
+				return contact;
+			value = now;
+		}
+		return (Contact) value;
 	}
 
 	/**
@@ -94,39 +1029,358 @@ public class MemContactDao implements ContactDao {
 	 * @return the matching contact or null if the id is not found
 	 */
 	public Contact find(long id) {
-		for (Contact c : contacts) {
-			if (c.getId() == id) {
-				return c;
+		Object value = contacts.get(id);
+		if (resident != null && value != null) {
+			if (value instanceof Contact || value instanceof PooledContact) {
+				resident.hits.incrementAndGet();
+				resident.touch(id);
+			} else {
+				resident.misses.incrementAndGet();
 			}
 		}
-		return null;
+		return materialize(id, value, true);
 	}
 
 	/**
-	 * Find a contact by title in contacts.
+	 * Get the current value of a contact without storing a decoded contact,
+	 * touching the resident set or counting a hit or miss, so a background
+	 * reader such as the snapshot writer doesn't change which contacts stay
+	 * on the heap.
+	 * 
+	 * @return the contact, or null if there is no contact with the id
+	 */
+	Contact peek(long id) {
+		Object value = contacts.get(id);
+		return value == null ? null : peek(value);
+	}
+
+	/**
+	 * Find contacts whose title contains a string, ignoring case. Titles that
+	 * have all the trigrams of the string are found with the title index, so
+	 * only those are compared; strings shorter than a trigram need a full
+	 * scan.
 	 * 
 	 * @param the
 	 *            title of contact to find
-	 * @return the matching contacts or null if the title is not found
+	 * @return the matching contacts in insertion order, or an empty list if
+	 *         the title is not found
 	 */
 	public List<Contact> findByTitle(String title) {
+		ensureIndexed();
+		String key = Contact.titleKey(title);
+		long[] candidates = titleIndex.candidates(key);
+		if (candidates == null)
+			return scanByTitle(contacts.values(), key);
+		return scanByTitle(contacts.getAll(candidates), key);
+	}
+
+	/**
+	 * Select contacts whose title key contains a key. The keys were folded
+	 * when the titles were indexed, so comparing them allocates nothing and
+	 * no contact is decoded unless it matches.
+	 * 
+	 * @param list
+	 *            values of the map to check
+	 * @param key
+	 *            the folded string to look for
+	 * @return the matching contacts, in the same order as list
+	 */
+	private List<Contact> scanByTitle(List<Object> list, String key) {
 		List<Contact> result = new ArrayList<Contact>();
-		for (Contact c : contacts)
-			if (c.getTitle() != null) {
-				if (c.getTitle().contains(title)) {
-					result.add(c);
-				}
-			}
+		for (Object value : list) {
+			long id = idOf(value);
+			String t = titleKeys.get(id);
+			if (t != null && t.contains(key))
+				result.add(materialize(id, value, true));
+		}
 		return result;
 	}
 
 	/**
-	 * Find all contacts.
+	 * Count contacts whose title contains a string, ignoring case. Only the
+	 * folded title keys are compared, so no contact is decoded.
+	 */
+	public long countByTitle(String title) {
+		ensureIndexed();
+		String key = Contact.titleKey(title);
+		long[] candidates = titleIndex.candidates(key);
+		List<Object> list = candidates == null ? contacts.values() : contacts
+				.getAll(candidates);
+		long count = 0;
+		for (Object value : list) {
+			String t = titleKeys.get(idOf(value));
+			if (t != null && t.contains(key))
+				count++;
+		}
+		return count;
+	}
+
+	/** Count the saved contacts. This is the size of the map. */
+	public long count() {
+		return contacts.size();
+	}
+
+	/**
+	 * Check if a contact is saved. The contact is not decoded, and is not
+	 * counted as a hit or a miss of the heap budget.
+	 */
+	public boolean exists(long id) {
+		return contacts.get(id) != null;
+	}
+
+	/**
+	 * Find contacts by email address, with the email index. Case and
+	 * surrounding space don't matter.
+	 * 
+	 * @param email
+	 *            the email address
+	 * @return the contacts with that address in insertion order, or an empty
+	 *         list if there are none
+	 */
+	public List<Contact> findByEmail(String email) {
+		ensureKeysIndexed();
+		String key = Contact.emailKey(email);
+		List<Contact> result = new ArrayList<Contact>();
+		for (Contact contact : findAll(emailIndex.get(key)))
+			// skip a contact that was changed after the lookup
+			if (key.equals(Contact.emailKey(contact.getEmail())))
+				result.add(contact);
+		return result;
+	}
+
+	/**
+	 * Find contacts by phone number, with the phone index. Only the digits of
+	 * the number are compared.
+	 * 
+	 * @param phoneNumber
+	 *            the phone number
+	 * @return the contacts with that number in insertion order, or an empty
+	 *         list if there are none
+	 */
+	public List<Contact> findByPhoneNumber(String phoneNumber) {
+		ensureKeysIndexed();
+		String key = Contact.phoneKey(phoneNumber);
+		List<Contact> result = new ArrayList<Contact>();
+		for (Contact contact : findAll(phoneIndex.get(key)))
+			if (key.equals(Contact.phoneKey(contact.getPhoneNumber())))
+				result.add(contact);
+		return result;
+	}
+
+	/** Get the saved contacts with some ids, in insertion order. */
+	private List<Contact> findAll(long[] ids) {
+		List<Contact> result = new ArrayList<Contact>(ids.length);
+		for (Object value : contacts.getAll(ids))
+			result.add(materialize(idOf(value), value, true));
+		return result;
+	}
+
+	/**
+	 * Find contacts whose title starts with a prefix, ignoring case.
+	 * 
+	 * @param prefix
+	 *            the start of a title
+	 * @param limit
+	 *            maximum number of contacts to return
+	 * @return at most limit matching contacts ordered by title
+	 */
+	public List<Contact> findByTitlePrefix(String prefix, int limit) {
+		ensureIndexed();
+		List<Contact> result = new ArrayList<Contact>();
+		for (long id : prefixIndex.startingWith(prefix, limit)) {
+			Contact contact = find(id);
+			// skip a contact that was deleted after the search
+			if (contact != null)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	/**
+	 * Find contacts that match a predicate, by checking every contact. The
+	 * contacts of a snapshot are split into chunks that are checked in
+	 * parallel on a pool with a thread per processor, so a large scan uses
+	 * every core. The scan stops as soon as limit contacts are found.
+	 * 
+	 * @param predicate
+	 *            the condition to check
+	 * @param limit
+	 *            maximum number of contacts to return
+	 * @return at most limit matching contacts, in insertion order. If more
+	 *         contacts match, which of them are returned is not defined.
+	 */
+	public List<Contact> scan(ContactPredicate predicate, int limit) {
+		if (limit <= 0)
+			return new ArrayList<Contact>();
+		LongHashMap<Object>.Snapshot snapshot = snapshot();
+		try {
+			Scan scan = new Scan(snapshot, predicate, new AtomicInteger(limit),
+					0, snapshot.end());
+			List<Contact> result = snapshot.end() <= SCAN_CHUNK ? scan
+					.compute() : scanPool.invoke(scan);
+			// tasks may each find one more after the others reached limit
+			if (result.size() > limit)
+				return new ArrayList<Contact>(result.subList(0, limit));
+			return new ArrayList<Contact>(result);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Find all contacts. The list is a snapshot: it has the contacts as they
+	 * were when it was made, even if they are changed while it is read.
 	 * 
 	 * @return list of all contacts.
 	 */
 	public List<Contact> findAll() {
-		return java.util.Collections.unmodifiableList(contacts);
+		return contactList(snapshot());
+	}
+
+	/**
+	 * Read all contacts from a snapshot of the map, decoding each one as it is
+	 * read. Like findAll, the cursor sees the contacts as they were when it
+	 * was opened; closing it releases the snapshot.
+	 * 
+	 * @return cursor over all contacts in insertion order
+	 */
+	public ContactCursor streamAll() {
+		final LongHashMap<Object>.Snapshot snapshot = snapshot();
+		final Iterator<Contact> it = contactList(snapshot).iterator();
+		return new ContactCursor() {
+			public boolean hasNext() {
+				if (it.hasNext())
+					return true;
+				snapshot.close();
+				return false;
+			}
+
+			public Contact next() {
+				return it.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				snapshot.close();
+			}
+		};
+	}
+
+	/**
+	 * Find a page of contacts ordered by id, with the sorted id index. The
+	 * page starts with a binary search, so later pages cost no more than the
+	 * first.
+	 * 
+	 * @param afterId
+	 *            only contacts with a greater id are returned
+	 * @param limit
+	 *            maximum number of contacts to return
+	 * @return at most limit contacts ordered by id
+	 */
+	public List<Contact> findAll(long afterId, int limit) {
+		ensureIdsIndexed();
+		List<Contact> result = new ArrayList<Contact>();
+		if (limit <= 0)
+			return result;
+		for (long id : idIndex.after(afterId, limit)) {
+			Contact contact = find(id);
+			// skip a contact that was deleted after the search
+			if (contact != null)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	/**
+	 * Find a page of contacts ordered by id, with only some fields. Titles are
+	 * read without decoding the rest of a contact that is still in the
+	 * snapshot or the spill file, and contacts that are decoded for other
+	 * fields are not stored, so a list of titles doesn't fill the heap with
+	 * contacts nobody asked for.
+	 * 
+	 * @see ContactDao#findAll(long, int, Set)
+	 */
+	public List<Contact> findAll(long afterId, int limit,
+			Set<ContactField> fields) {
+		ensureIdsIndexed();
+		List<Contact> result = new ArrayList<Contact>();
+		if (limit <= 0)
+			return result;
+		boolean titles = ContactField.TITLES.containsAll(fields);
+		for (long id : idIndex.after(afterId, limit)) {
+			Object value = contacts.get(id);
+			// skip a contact that was deleted after the search
+			if (value == null)
+				continue;
+			if (titles) {
+				Contact contact = new Contact(id);
+				if (fields.contains(ContactField.TITLE))
+					contact.setTitle(titleOf(value));
+				result.add(contact);
+			} else {
+				result.add(ContactField.project(peek(value), fields));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find contacts by id.
+	 * 
+	 * @param ids
+	 *            the ids of contacts to find
+	 * @return the saved contacts, in the order of ids. Ids that are not saved
+	 *         are skipped.
+	 */
+	public List<Contact> findAllById(long[] ids) {
+		List<Contact> result = new ArrayList<Contact>(ids.length);
+		for (long id : ids) {
+			Contact contact = find(id);
+			if (contact != null)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the contacts of a snapshot of the map, decoding them as they are
+	 * read.
+	 */
+	private List<Contact> contactList(final List<Object> values) {
+		return new AbstractList<Contact>() {
+			@Override
+			public Contact get(int index) {
+				Object value = values.get(index);
+				return materialize(idOf(value), value, false);
+			}
+
+			@Override
+			public Iterator<Contact> iterator() {
+				final Iterator<Object> it = values.iterator();
+				return new Iterator<Contact>() {
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					public Contact next() {
+						Object value = it.next();
+						return materialize(idOf(value), value, false);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return values.size();
+			}
+		};
 	}
 
 	/**
@@ -137,74 +1391,272 @@ public class MemContactDao implements ContactDao {
 	 * @return true if contact is deleted, false otherwise.
 	 */
 	public boolean delete(long id) {
-		for (int k = 0; k < contacts.size(); k++) {
-			if (contacts.get(k).getId() == id) {
-				contacts.remove(k);
-				return true;
+		long sequence;
+		writeLock.lock();
+		try {
+			sequence = deleteLocked(id);
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
+		return sequence >= 0;
+	}
+
+	/**
+	 * Delete saved contacts, holding the write lock once for all of them and
+	 * waiting for one disk sync of the journal.
+	 * 
+	 * @param ids
+	 *            the ids of contacts to delete
+	 * @return for each id, true if the contact was deleted
+	 */
+	public boolean[] deleteAll(long[] ids) {
+		boolean[] deleted = new boolean[ids.length];
+		long sequence = 0;
+		writeLock.lock();
+		try {
+			for (int k = 0; k < ids.length; k++) {
+				long logged = deleteLocked(ids[k]);
+				deleted[k] = logged >= 0;
+				sequence = Math.max(sequence, logged);
 			}
+		} finally {
+			writeLock.unlock();
 		}
-		return false;
+		commit(sequence);
+		return deleted;
+	}
+
+	/**
+	 * Delete a contact. Caller must hold the write lock.
+	 * 
+	 * @return sequence number of the journal record, 0 if no journal, or -1
+	 *         if the contact was not saved
+	 */
+	private long deleteLocked(long id) {
+		if (contacts.get(id) == null)
+			return -1;
+		long sequence = log(ContactRecords.delete(id));
+		Object value = remove(id);
+		if (events.hasListeners())
+			events.publish(ContactEvent.deleted(peek(value)));
+		return sequence;
 	}
 
 	/**
 	 * Save or replace a contact. If the contact.id is 0 then it is assumed to
 	 * be a new (not saved) contact. In this case a unique id is assigned to the
 	 * contact. If the contact.id is not zero and the contact already exists in
-	 * saved contacts, the old contact is replaced.
+	 * saved contacts, the old contact is replaced. Ids are allocated before
+	 * taking the write lock, so new contacts don't wait for each other's id.
 	 * 
 	 * @param contact
 	 *            the contact to save or replace.
 	 * @return true if saved successfully
 	 */
 	public boolean save(Contact contact) {
-		if (contact.getId() == 0) {
-			contact.setId(getUniqueId());
-			return contacts.add(contact);
+		if (contact.getId() == 0)
+			contact.setId(ids.next());
+		long sequence;
+		writeLock.lock();
+		try {
+			sequence = saveLocked(contact);
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
+		return true;
+	}
+
+	/**
+	 * Save or replace contacts, as save does for each of them, holding the
+	 * write lock once for all of them and waiting for one disk sync of the
+	 * journal.
+	 * 
+	 * @param contacts
+	 *            the contacts to save or replace
+	 * @return for each contact, true if it was saved
+	 */
+	public boolean[] saveAll(List<Contact> contacts) {
+		for (Contact contact : contacts)
+			if (contact.getId() == 0)
+				contact.setId(ids.next());
+		boolean[] saved = new boolean[contacts.size()];
+		long sequence = 0;
+		writeLock.lock();
+		try {
+			for (int k = 0; k < saved.length; k++) {
+				sequence = Math.max(sequence, saveLocked(contacts.get(k)));
+				saved[k] = true;
+			}
+		} finally {
+			writeLock.unlock();
 		}
+		commit(sequence);
+		return saved;
+	}
+
+	/**
+	 * Save or replace a contact that has an id. Caller must hold the write
+	 * lock.
+	 * 
+	 * @return sequence number of the journal record, or 0 if nothing was
+	 *         logged
+	 */
+	private long saveLocked(Contact contact) {
 		// check if this contact is already in persistent storage
 		Contact other = find(contact.getId());
 		if (other == contact)
-			return true;
+			return 0;
+		// a replaced contact moves to the end, as if it were new, so the
+		// delete and put are appended at once, before either is made
+		byte[] record = ContactRecords.put(contact);
+		if (other != null) {
+			byte[] delete = ContactRecords.delete(other.getId());
+			byte[] both = Arrays.copyOf(delete, delete.length + record.length);
+			System.arraycopy(record, 0, both, delete.length, record.length);
+			record = both;
+		}
+		long sequence = log(record);
 		if (other != null)
-			contacts.remove(other);
-		return contacts.add(contact);
+			remove(other.getId());
+		add(contact);
+		if (events.hasListeners())
+			events.publish(other == null ? ContactEvent.created(contact)
+					: ContactEvent.updated(other, contact));
+		return sequence;
 	}
 
 	/**
-	 * Update a Contact. Only the non-null fields of the update are applied to
-	 * the contact.
+	 * Update a Contact. The saved contact is replaced by a copy with the
+	 * update applied, so threads reading the old contact are not affected.
 	 * 
 	 * @param update
 	 *            update info for the contact.
 	 * @return true if the update is applied successfully.
 	 */
 	public boolean update(Contact update) {
-		Contact contact = find(update.getId());
-		if (contact == null)
-			return false;
-		contact.applyUpdate(update);
-		save(contact);
-		return true;
+		long sequence;
+		writeLock.lock();
+		try {
+			sequence = updateLocked(update);
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
+		return sequence >= 0;
 	}
 
 	/**
-	 * Get a unique contact ID.
+	 * Update contacts, as update does for each of them, holding the write
+	 * lock once for all of them and waiting for one disk sync of the journal.
 	 * 
-	 * @return unique id not in persistent storage
+	 * @param updates
+	 *            update info for the contacts
+	 * @return for each update, true if it was applied
 	 */
-	private synchronized long getUniqueId() {
-		long id = nextId.getAndAdd(1L);
-		while (id < Long.MAX_VALUE) {
-			if (find(id) == null)
-				return id;
-			id = nextId.getAndAdd(1L);
+	public boolean[] updateAll(List<Contact> updates) {
+		boolean[] updated = new boolean[updates.size()];
+		long sequence = 0;
+		writeLock.lock();
+		try {
+			for (int k = 0; k < updated.length; k++) {
+				long logged = updateLocked(updates.get(k));
+				updated[k] = logged >= 0;
+				sequence = Math.max(sequence, logged);
+			}
+		} finally {
+			writeLock.unlock();
 		}
-		return id; // this should never happen
+		commit(sequence);
+		return updated;
+	}
+
+	/**
+	 * Update a contact if its version is still the expected one. Every change
+	 * of a contact holds the write lock, so the version read here is the one
+	 * the update replaces. Only the contact's SHA-1 is compared; a contact
+	 * that is still in the snapshot or the spill file is decoded for it but
+	 * not stored.
+	 * 
+	 * @see ContactDao#updateIfVersion(Contact, String)
+	 */
+	public String updateIfVersion(Contact update, String version) {
+		long sequence = -1;
+		String saved = null;
+		writeLock.lock();
+		try {
+			if (hasVersion(update.getId(), version)) {
+				sequence = updateLocked(update);
+				saved = peek(contacts.get(update.getId())).sha1();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
+		return saved;
+	}
+
+	/**
+	 * Delete a contact if its version is still the expected one, in one step
+	 * under the write lock like updateIfVersion.
+	 * 
+	 * @see ContactDao#deleteIfVersion(long, String)
+	 */
+	public boolean deleteIfVersion(long id, String version) {
+		long sequence = -1;
+		writeLock.lock();
+		try {
+			if (hasVersion(id, version))
+				sequence = deleteLocked(id);
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
+		return sequence >= 0;
+	}
+
+	/**
+	 * Check the version of a saved contact. Caller must hold the write lock.
+	 */
+	private boolean hasVersion(long id, String version) {
+		Object value = contacts.get(id);
+		return value != null && peek(value).sha1().equals(version);
+	}
+
+	/**
+	 * Update a contact. Caller must hold the write lock.
+	 * 
+	 * @return sequence number of the journal record, 0 if no journal, or -1
+	 *         if the contact was not saved
+	 */
+	private long updateLocked(Contact update) {
+		Contact contact = find(update.getId());
+		if (contact == null)
+			return -1;
+		Contact updated = new Contact(contact.getId());
+		updated.applyUpdate(contact);
+		updated.applyUpdate(update);
+		long sequence = log(ContactRecords.put(updated));
+		replace(contact, updated);
+		if (events.hasListeners())
+			events.publish(ContactEvent.updated(contact, updated));
+		return sequence;
 	}
 
 	@Override
 	public void removeAll() {
-		contacts = new ArrayList<Contact>();
+		long sequence;
+		writeLock.lock();
+		try {
+			sequence = log(ContactRecords.clear());
+			clearAll();
+			if (events.hasListeners())
+				events.publish(ContactEvent.cleared());
+		} finally {
+			writeLock.unlock();
+		}
+		commit(sequence);
 	}
 
 }
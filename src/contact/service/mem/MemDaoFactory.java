@@ -1,14 +1,8 @@
 package contact.service.mem;
 
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-
-import contact.entity.Contact;
-import contact.entity.Contacts;
 import contact.service.ContactDao;
 import contact.service.DaoFactory;
 
@@ -22,11 +16,28 @@ import contact.service.DaoFactory;
 public class MemDaoFactory extends DaoFactory {
 	// singleton instance of this factory
 	private static MemDaoFactory factory;
-	private ContactDao daoInstance;
+	private MemContactDao daoInstance;
+	private SnapshotManager snapshots;
+	/** XML file for importing and exporting contacts. */
 	public static final String PATH = "ContactService.xml";
+	/** binary snapshot of contacts, read instead of PATH if it exists. */
+	public static final String SNAPSHOT_PATH = "ContactService.snap";
+	/** journal of changes since contacts were last saved to SNAPSHOT_PATH. */
+	public static final String JOURNAL_PATH = "ContactService.journal";
 
 	private MemDaoFactory() {
-		daoInstance = new MemContactDao();
+		ContactJournal journal = null;
+		try {
+			journal = new ContactJournal(new File(JOURNAL_PATH));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		daoInstance = new MemContactDao(journal);
+		if (journal != null) {
+			snapshots = new SnapshotManager(daoInstance,
+					new File(SNAPSHOT_PATH));
+			snapshots.start();
+		}
 	}
 
 	/**
@@ -45,23 +56,15 @@ public class MemDaoFactory extends DaoFactory {
 		return daoInstance;
 	}
 
+	/**
+	 * Save all contacts to the snapshot file, which also empties the journal and
+	 * deletes the delta segments.
+	 */
 	@Override
 	public void shutdown() {
-		List<Contact> contacts = daoInstance.findAll();
-		Contacts allContacts = new Contacts();
-		allContacts.setContacts(contacts);
-		JAXBContext context = null;
-		try {
-			context = JAXBContext.newInstance(Contacts.class);
-			File outputFile = new File(PATH);
-			System.out.println("Output file status: " + outputFile.isFile()
-					+ " --> Path: " + outputFile.getPath());
-			Marshaller marshaller = null;
-			marshaller = context.createMarshaller();
-			marshaller.marshal(allContacts, outputFile);
-		} catch (JAXBException e) {
-			e.printStackTrace();
-		}
-
+		if (snapshots != null)
+			snapshots.checkpoint();
+		else
+			daoInstance.checkpoint();
 	}
 }
\ No newline at end of file
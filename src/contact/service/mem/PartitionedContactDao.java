@@ -0,0 +1,491 @@
+package contact.service.mem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import contact.entity.Contact;
+import contact.service.ContactCursor;
+import contact.service.ContactDao;
+import contact.service.ContactEvents;
+import contact.service.ContactField;
+import contact.service.IdAllocator;
+import contact.service.PagedCursor;
+
+/**
+ * Data access object that splits contacts into partitions by a hash of their
+ * id. Each partition is a {@link MemContactDao} with its own lock and title
+ * indexes, so writes to different partitions don't wait for each other, and
+ * a contact is always in the same partition because its id never changes.
+ * <p>
+ * findAll and the title searches ask every partition on a fork/join pool and
+ * merge the results. Since contacts of different partitions were not added in
+ * one order, results are ordered by id instead of insertion order, and prefix
+ * searches by title as usual. findAll locks all partitions for a moment to
+ * take a snapshot of each, so it still sees all contacts at one point in time.
+ * <p>
+ * All partitions publish their changes to the same {@link ContactEvents}.
+ * The events of one contact are in order, but events of contacts in
+ * different partitions may not be, and removeAll publishes a CLEARED event
+ * for each partition.
+ * <p>
+ * The DAO keeps no journal: use {@link #importFile(File)} and
+ * {@link #exportFile(File)} to load and save contacts, as
+ * {@link PartitionedDaoFactory} does.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class PartitionedContactDao implements ContactDao {
+	/** orders contacts by id. */
+	static final Comparator<Contact> ID_ORDER = new Comparator<Contact>() {
+		public int compare(Contact a, Contact b) {
+			return Long.compare(a.getId(), b.getId());
+		}
+	};
+	/** orders contacts the way the prefix index does, by title then id. */
+	static final Comparator<Contact> TITLE_ORDER = new Comparator<Contact>() {
+		public int compare(Contact a, Contact b) {
+			int cmp = TitlePrefixIndex.keyOf(a.getTitle()).compareTo(
+					TitlePrefixIndex.keyOf(b.getTitle()));
+			return cmp != 0 ? cmp : Long.compare(a.getId(), b.getId());
+		}
+	};
+
+	/** contacts read at once by streamAll. */
+	private static final int STREAM_PAGE = 256;
+
+	private final MemContactDao[] partitions;
+	private final IdAllocator ids = new IdAllocator(1000L);
+	private final ContactEvents events = new ContactEvents();
+	private final ForkJoinPool pool;
+
+	/** The part of a batch that goes to one partition. */
+	private interface Batch {
+		/**
+		 * @param positions
+		 *            positions in the batch of the items of partition k
+		 * @return the result of each of those items
+		 */
+		boolean[] run(MemContactDao partition, int[] positions);
+	}
+
+	/** A search of one partition. */
+	private interface Query {
+		/**
+		 * @return matching contacts of partition k, in the order of the merge
+		 */
+		List<Contact> run(int k);
+	}
+
+	/**
+	 * Runs a query on a range of partitions, splitting the range in halves
+	 * until it is one partition, and merges the sorted results.
+	 */
+	private static final class FanOut extends RecursiveTask<List<Contact>> {
+		private static final long serialVersionUID = 1L;
+		private final Query query;
+		private final Comparator<Contact> order;
+		private final int limit;
+		private final int from;
+		private final int to;
+
+		FanOut(Query query, Comparator<Contact> order, int limit, int from,
+				int to) {
+			this.query = query;
+			this.order = order;
+			this.limit = limit;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<Contact> compute() {
+			if (to - from == 1)
+				return query.run(from);
+			int mid = (from + to) >>> 1;
+			FanOut right = new FanOut(query, order, limit, mid, to);
+			right.fork();
+			List<Contact> left = new FanOut(query, order, limit, from, mid)
+					.compute();
+			return merge(left, right.join(), order, limit);
+		}
+	}
+
+	/**
+	 * Create an empty DAO.
+	 *
+	 * @param partitions
+	 *            number of partitions
+	 * @param dedup
+	 *            true to share equal field values between contacts of a
+	 *            partition
+	 */
+	public PartitionedContactDao(int partitions, boolean dedup) {
+		if (partitions < 1)
+			throw new IllegalArgumentException("Need at least one partition");
+		this.partitions = new MemContactDao[partitions];
+		for (int k = 0; k < partitions; k++)
+			this.partitions[k] = new MemContactDao(ids, dedup, events);
+		pool = new ForkJoinPool(Math.min(partitions, Runtime.getRuntime()
+				.availableProcessors()));
+	}
+
+	/** Get the number of partitions. */
+	public int getPartitions() {
+		return partitions.length;
+	}
+
+	/** Get the number of the partition of an id. */
+	private int indexOf(long id) {
+		return (LongHashMap.hash(id) & Integer.MAX_VALUE) % partitions.length;
+	}
+
+	private MemContactDao partitionOf(long id) {
+		return partitions[indexOf(id)];
+	}
+
+	/**
+	 * Merge two sorted lists.
+	 *
+	 * @return the first limit contacts of both lists, in order
+	 */
+	static List<Contact> merge(List<Contact> a, List<Contact> b,
+			Comparator<Contact> order, int limit) {
+		int size = Math.min(limit, a.size() + b.size());
+		List<Contact> result = new ArrayList<Contact>(size);
+		int i = 0;
+		int j = 0;
+		while (result.size() < size) {
+			if (j == b.size()
+					|| (i < a.size() && order.compare(a.get(i), b.get(j)) <= 0))
+				result.add(a.get(i++));
+			else
+				result.add(b.get(j++));
+		}
+		return result;
+	}
+
+	/** Run a query on all partitions and merge the results. */
+	private List<Contact> fanOut(Query query, Comparator<Contact> order,
+			int limit) {
+		FanOut task = new FanOut(query, order, limit, 0, partitions.length);
+		if (partitions.length == 1)
+			return task.compute();
+		return pool.invoke(task);
+	}
+
+	/** Copy a list of contacts and sort it by id. */
+	private static List<Contact> sortedById(List<Contact> contacts) {
+		List<Contact> sorted = new ArrayList<Contact>(contacts);
+		Collections.sort(sorted, ID_ORDER);
+		return sorted;
+	}
+
+	public Contact find(long id) {
+		return partitionOf(id).find(id);
+	}
+
+	public boolean exists(long id) {
+		return partitionOf(id).exists(id);
+	}
+
+	public String updateIfVersion(Contact update, String version) {
+		return partitionOf(update.getId()).updateIfVersion(update, version);
+	}
+
+	public boolean deleteIfVersion(long id, String version) {
+		return partitionOf(id).deleteIfVersion(id, version);
+	}
+
+	/** Count the contacts of all partitions. */
+	public long count() {
+		long count = 0;
+		for (MemContactDao partition : partitions)
+			count += partition.count();
+		return count;
+	}
+
+	/** Count the contacts of all partitions whose title contains a string. */
+	public long countByTitle(String title) {
+		long count = 0;
+		for (MemContactDao partition : partitions)
+			count += partition.countByTitle(title);
+		return count;
+	}
+
+	/**
+	 * Find all contacts, at one point in time.
+	 *
+	 * @return list of all contacts ordered by id
+	 */
+	public List<Contact> findAll() {
+		final List<List<Contact>> snapshots = new ArrayList<List<Contact>>(
+				partitions.length);
+		// lock in partition order, so two of these never wait for each other
+		for (MemContactDao partition : partitions)
+			partition.getWriteLock().lock();
+		try {
+			for (MemContactDao partition : partitions)
+				snapshots.add(partition.findAll());
+		} finally {
+			for (MemContactDao partition : partitions)
+				partition.getWriteLock().unlock();
+		}
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return sortedById(snapshots.get(k));
+			}
+		}, ID_ORDER, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Find a page of contacts ordered by id. Each partition returns its first
+	 * limit contacts after afterId, and the merge keeps the first limit of
+	 * all of them.
+	 */
+	public List<Contact> findAll(final long afterId, final int limit) {
+		if (limit <= 0)
+			return new ArrayList<Contact>();
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return partitions[k].findAll(afterId, limit);
+			}
+		}, ID_ORDER, limit);
+	}
+
+	/** Find a page of contacts with only some fields, like findAll. */
+	public List<Contact> findAll(final long afterId, final int limit,
+			final Set<ContactField> fields) {
+		if (limit <= 0)
+			return new ArrayList<Contact>();
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return partitions[k].findAll(afterId, limit, fields);
+			}
+		}, ID_ORDER, limit);
+	}
+
+	/**
+	 * Read all contacts in id order, a page of all partitions at a time.
+	 * Unlike findAll, the cursor is not a view at one point in time, since it
+	 * doesn't keep the partitions locked between pages.
+	 */
+	public ContactCursor streamAll() {
+		return new PagedCursor(this, STREAM_PAGE);
+	}
+
+	/**
+	 * Find contacts whose title contains a string.
+	 *
+	 * @return the matching contacts ordered by id
+	 */
+	public List<Contact> findByTitle(final String title) {
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return sortedById(partitions[k].findByTitle(title));
+			}
+		}, ID_ORDER, Integer.MAX_VALUE);
+	}
+
+	public List<Contact> findByTitlePrefix(final String prefix,
+			final int limit) {
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return partitions[k].findByTitlePrefix(prefix, limit);
+			}
+		}, TITLE_ORDER, limit);
+	}
+
+	/**
+	 * Find contacts by email address, with the index of each partition.
+	 *
+	 * @return the contacts with that address ordered by id
+	 */
+	public List<Contact> findByEmail(final String email) {
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return sortedById(partitions[k].findByEmail(email));
+			}
+		}, ID_ORDER, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Find contacts by phone number, with the index of each partition.
+	 *
+	 * @return the contacts with that number ordered by id
+	 */
+	public List<Contact> findByPhoneNumber(final String phoneNumber) {
+		return fanOut(new Query() {
+			public List<Contact> run(int k) {
+				return sortedById(partitions[k].findByPhoneNumber(phoneNumber));
+			}
+		}, ID_ORDER, Integer.MAX_VALUE);
+	}
+
+	public boolean delete(long id) {
+		return partitionOf(id).delete(id);
+	}
+
+	/**
+	 * Split a batch by the partition of each id, and run the part of each
+	 * partition as one batch of that partition.
+	 *
+	 * @return the result of each item, in the order of ids
+	 */
+	private boolean[] runBatch(long[] ids, Batch batch) {
+		int[] counts = new int[partitions.length];
+		int[] partitionOf = new int[ids.length];
+		for (int k = 0; k < ids.length; k++) {
+			partitionOf[k] = indexOf(ids[k]);
+			counts[partitionOf[k]]++;
+		}
+		boolean[] result = new boolean[ids.length];
+		for (int p = 0; p < partitions.length; p++) {
+			if (counts[p] == 0)
+				continue;
+			int[] positions = new int[counts[p]];
+			int count = 0;
+			for (int k = 0; k < ids.length; k++)
+				if (partitionOf[k] == p)
+					positions[count++] = k;
+			boolean[] done = batch.run(partitions[p], positions);
+			for (int k = 0; k < positions.length; k++)
+				result[positions[k]] = done[k];
+		}
+		return result;
+	}
+
+	private static long[] idsOf(List<Contact> contacts) {
+		long[] ids = new long[contacts.size()];
+		for (int k = 0; k < ids.length; k++)
+			ids[k] = contacts.get(k).getId();
+		return ids;
+	}
+
+	/** Get the items of a batch at some positions. */
+	private static List<Contact> select(List<Contact> contacts,
+			int[] positions) {
+		List<Contact> selected = new ArrayList<Contact>(positions.length);
+		for (int k : positions)
+			selected.add(contacts.get(k));
+		return selected;
+	}
+
+	public List<Contact> findAllById(long[] ids) {
+		List<Contact> result = new ArrayList<Contact>(ids.length);
+		for (long id : ids) {
+			Contact contact = find(id);
+			if (contact != null)
+				result.add(contact);
+		}
+		return result;
+	}
+
+	/**
+	 * Save or replace contacts, each partition saving its contacts as one
+	 * batch. New contacts get their ids first, since the id chooses the
+	 * partition.
+	 */
+	public boolean[] saveAll(final List<Contact> contacts) {
+		for (Contact contact : contacts)
+			if (contact.getId() == 0)
+				contact.setId(ids.next());
+		return runBatch(idsOf(contacts), new Batch() {
+			public boolean[] run(MemContactDao partition, int[] positions) {
+				return partition.saveAll(select(contacts, positions));
+			}
+		});
+	}
+
+	public boolean[] updateAll(final List<Contact> updates) {
+		return runBatch(idsOf(updates), new Batch() {
+			public boolean[] run(MemContactDao partition, int[] positions) {
+				return partition.updateAll(select(updates, positions));
+			}
+		});
+	}
+
+	public boolean[] deleteAll(final long[] ids) {
+		return runBatch(ids, new Batch() {
+			public boolean[] run(MemContactDao partition, int[] positions) {
+				long[] selected = new long[positions.length];
+				for (int k = 0; k < positions.length; k++)
+					selected[k] = ids[positions[k]];
+				return partition.deleteAll(selected);
+			}
+		});
+	}
+
+	/**
+	 * Save or replace a contact. A new contact gets its id before it goes to
+	 * a partition, since the id chooses the partition.
+	 */
+	public boolean save(Contact contact) {
+		if (contact.getId() == 0)
+			contact.setId(ids.next());
+		return partitionOf(contact.getId()).save(contact);
+	}
+
+	public boolean update(Contact update) {
+		return partitionOf(update.getId()).update(update);
+	}
+
+	/**
+	 * Remove all contacts. All partitions are locked, so no reader sees only
+	 * some of them removed.
+	 */
+	public void removeAll() {
+		for (MemContactDao partition : partitions)
+			partition.getWriteLock().lock();
+		try {
+			for (MemContactDao partition : partitions)
+				partition.removeAll();
+		} finally {
+			for (MemContactDao partition : partitions)
+				partition.getWriteLock().unlock();
+		}
+	}
+
+	public ContactEvents getContactEvents() {
+		return events;
+	}
+
+	/**
+	 * Import contacts from an XML file. Contacts with the same id as a saved
+	 * contact replace it.
+	 *
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public void importFile(File file) throws IOException {
+		ContactXml.read(file, new ContactRecords.Handler() {
+			public void put(Contact contact) {
+				save(contact);
+			}
+
+			public void delete(long id) {
+				PartitionedContactDao.this.delete(id);
+			}
+
+			public void clear() {
+				removeAll();
+			}
+		});
+	}
+
+	/**
+	 * Export all contacts to an XML file.
+	 *
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public void exportFile(File file) throws IOException {
+		ContactXml.write(file, findAll());
+	}
+}
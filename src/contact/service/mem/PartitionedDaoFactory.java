@@ -0,0 +1,76 @@
+package contact.service.mem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import contact.service.ContactDao;
+import contact.service.DaoFactory;
+
+/**
+ * PartitionedDaoFactory is a factory for an in-memory DAO split into
+ * partitions, for servers with many cores. Contacts are imported from the XML
+ * file when the factory is created and exported to it on shutdown. Select it
+ * with the system property
+ * <tt>contact.daofactory=contact.service.mem.PartitionedDaoFactory</tt>, and
+ * set the number of partitions with <tt>contact.mem.partitions</tt> (the
+ * number of processors by default). <tt>contact.mem.dedup</tt> works as for
+ * {@link MemDaoFactory}.
+ *
+ * @see contact.service.DaoFactory
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class PartitionedDaoFactory extends DaoFactory {
+	/** XML file of contacts. */
+	public static final String PATH = "ContactService.xml";
+	/** system property with the number of partitions. */
+	public static final String PARTITIONS_PROPERTY = "contact.mem.partitions";
+	private static PartitionedDaoFactory factory;
+	private static Logger logger = Logger.getLogger(PartitionedDaoFactory.class
+			.getName());
+	private PartitionedContactDao contactDao;
+
+	public PartitionedDaoFactory() {
+		int partitions = Integer.getInteger(PARTITIONS_PROPERTY, Runtime
+				.getRuntime().availableProcessors());
+		contactDao = new PartitionedContactDao(partitions,
+				Boolean.getBoolean("contact.mem.dedup"));
+		File file = new File(PATH);
+		if (file.exists()) {
+			try {
+				contactDao.importFile(file);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Can't import " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Get the instance of DaoFactory.
+	 *
+	 * @return instance of DaoFactory.
+	 */
+	public static PartitionedDaoFactory getInstance() {
+		if (factory == null)
+			factory = new PartitionedDaoFactory();
+		return factory;
+	}
+
+	@Override
+	public ContactDao getContactDao() {
+		return contactDao;
+	}
+
+	/**
+	 * Export all contacts to the XML file.
+	 */
+	@Override
+	public void shutdown() {
+		try {
+			contactDao.exportFile(new File(PATH));
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Can't export " + PATH, e);
+		}
+	}
+}
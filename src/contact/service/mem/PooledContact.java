@@ -0,0 +1,88 @@
+package contact.service.mem;
+
+import contact.entity.Contact;
+
+/**
+ * Compact form of a contact that the in-memory DAO keeps when it shares
+ * field values. The title, the domain of the email address and the prefix of
+ * the photo URL (up to the last '/') are taken from {@link ValuePool}s, since
+ * many contacts have the same ones. A Contact is made again for each caller.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+final class PooledContact {
+	/** the pools of shared values of one DAO. */
+	static final class Pools {
+		final ValuePool titles = new ValuePool(false);
+		final ValuePool emailDomains = new ValuePool(true);
+		final ValuePool photoPrefixes = new ValuePool(true);
+
+		void clear() {
+			titles.clear();
+			emailDomains.clear();
+			photoPrefixes.clear();
+		}
+	}
+
+	final long id;
+	final String title;
+	final String name;
+	/** the email address before the last '@', or all of it if no '@'. */
+	final String emailLocal;
+	/** the email domain after the last '@', or null if no '@'. */
+	final String emailDomain;
+	final String phoneNumber;
+	/** the photo URL up to and including the last '/', or null. */
+	final String photoPrefix;
+	/** the rest of the photo URL. */
+	final String photoName;
+
+	/**
+	 * Make the compact form of a contact, acquiring its shared values.
+	 */
+	PooledContact(Contact contact, Pools pools) {
+		id = contact.getId();
+		title = pools.titles.acquire(contact.getTitle());
+		name = contact.getName();
+		phoneNumber = contact.getPhoneNumber();
+		String email = contact.getEmail();
+		int at = email == null ? -1 : email.lastIndexOf('@');
+		if (at < 0) {
+			emailLocal = email;
+			emailDomain = null;
+		} else {
+			emailLocal = email.substring(0, at);
+			emailDomain = pools.emailDomains.acquire(email.substring(at + 1));
+		}
+		String photo = contact.getPhotoUrl();
+		int slash = photo == null ? -1 : photo.lastIndexOf('/');
+		if (slash < 0) {
+			photoPrefix = null;
+			photoName = photo;
+		} else {
+			photoPrefix = pools.photoPrefixes.acquire(photo.substring(0,
+					slash + 1));
+			photoName = photo.substring(slash + 1);
+		}
+	}
+
+	/** Release the shared values, when the contact is removed. */
+	void release(Pools pools) {
+		pools.titles.release(title);
+		pools.emailDomains.release(emailDomain);
+		pools.photoPrefixes.release(photoPrefix);
+	}
+
+	/** Make a new Contact with the same values. */
+	Contact toContact() {
+		Contact contact = new Contact(id);
+		contact.setTitle(title);
+		contact.setName(name);
+		contact.setEmail(emailDomain == null ? emailLocal : emailLocal + '@'
+				+ emailDomain);
+		contact.setPhoneNumber(phoneNumber);
+		contact.setPhotoUrl(photoPrefix == null ? photoName : photoPrefix
+				+ photoName);
+		return contact;
+	}
+}
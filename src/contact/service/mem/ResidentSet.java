@@ -0,0 +1,156 @@
+package contact.service.mem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import contact.entity.Contact;
+
+/**
+ * The contacts that a MemContactDao with a heap budget keeps on the heap, in
+ * least recently used order, with an estimate of the heap each one uses. The
+ * DAO spills the least recently used contacts to a {@link SpillFile} while
+ * the total is over the budget. It also counts how finds were served.
+ * <p>
+ * The set has its own lock. A find that uses a contact only moves it to the
+ * end if the lock is free, so readers never wait for each other and the
+ * order is close to, but not exactly, least recently used.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+class ResidentSet {
+	/** bytes of a Contact object without its strings. */
+	private static final long CONTACT_SIZE = 56;
+
+	private final long budget;
+	/** estimated size of each contact on the heap, by id, oldest use first. */
+	private final LinkedHashMap<Long, Long> sizes = new LinkedHashMap<Long, Long>(
+			16, 0.75f, true);
+	private final ReentrantLock lock = new ReentrantLock();
+	private long bytes;
+	/** finds of a contact that was on the heap. */
+	final AtomicLong hits = new AtomicLong();
+	/** finds of a contact that was not on the heap. */
+	final AtomicLong misses = new AtomicLong();
+	/** contacts spilled to keep to the budget. */
+	long evictions;
+
+	/**
+	 * @param budget
+	 *            bytes of heap the contacts may use
+	 */
+	ResidentSet(long budget) {
+		this.budget = budget;
+	}
+
+	/** Estimate the heap used by a contact and its strings. */
+	static long sizeOf(Contact contact) {
+		return CONTACT_SIZE + sizeOf(contact.getTitle())
+				+ sizeOf(contact.getName()) + sizeOf(contact.getEmail())
+				+ sizeOf(contact.getPhoneNumber())
+				+ sizeOf(contact.getPhotoUrl());
+	}
+
+	private static long sizeOf(String value) {
+		return value == null ? 0 : ValuePool.sizeOf(value);
+	}
+
+	/** Add a contact that is now on the heap, or replace its size. */
+	void add(long id, long size) {
+		lock.lock();
+		try {
+			Long old = sizes.put(id, size);
+			bytes += size - (old == null ? 0 : old);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Mark a contact as used, unless another thread has the set locked. */
+	void touch(long id) {
+		if (!lock.tryLock())
+			return;
+		try {
+			sizes.get(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Remove a contact that is no longer on the heap. */
+	void remove(long id) {
+		lock.lock();
+		try {
+			Long old = sizes.remove(id);
+			if (old != null)
+				bytes -= old;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void clear() {
+		lock.lock();
+		try {
+			sizes.clear();
+			bytes = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Check if the contacts use more than the budget. */
+	boolean isOver() {
+		lock.lock();
+		try {
+			return bytes > budget;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the least recently used contact, if the contacts use more than
+	 * the budget.
+	 *
+	 * @return the id of the contact to spill, or 0 if the contacts fit
+	 */
+	long takeEldest() {
+		lock.lock();
+		try {
+			if (bytes <= budget || sizes.isEmpty())
+				return 0;
+			Iterator<Map.Entry<Long, Long>> it = sizes.entrySet().iterator();
+			Map.Entry<Long, Long> eldest = it.next();
+			it.remove();
+			bytes -= eldest.getValue();
+			return eldest.getKey();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getBudget() {
+		return budget;
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return sizes.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
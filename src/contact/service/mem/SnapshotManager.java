@@ -0,0 +1,268 @@
+package contact.service.mem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import contact.entity.Contact;
+
+/**
+ * Save snapshots of a MemContactDao in the background, so that the journal
+ * stays short and a restart never has to replay much. The snapshot is made of
+ * a base file (a {@link BinarySnapshot}) and delta segments. Each periodic snapshot only
+ * writes the contacts that changed since the last one, as a delta segment of
+ * {@link ContactRecords}, and then drops the journal records it covers. When
+ * there are too many delta segments they are compacted: the base file is
+ * written again and the segments are deleted. Request threads never wait for
+ * any of this; they only hold the write lock while the set of changed ids is
+ * swapped.
+ * <p>
+ * The settings are system properties:
+ * <ul>
+ * <li><tt>contact.snapshot.intervalMillis</tt> (default 60000): how often to
+ * write a delta segment. 0 turns off background snapshots.</li>
+ * <li><tt>contact.snapshot.minChanges</tt> (default 1): skip a snapshot if
+ * fewer contacts changed.</li>
+ * <li><tt>contact.snapshot.maxDeltas</tt> (default 10): compact when there
+ * are this many delta segments.</li>
+ * <li><tt>contact.snapshot.maxDeltaBytes</tt> (default 64 MB): compact when
+ * the delta segments are this large in total.</li>
+ * </ul>
+ * Snapshots, compaction and checkpoints all run on one background thread, so
+ * they never overlap.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class SnapshotManager {
+	private static final Logger logger = Logger.getLogger(SnapshotManager.class
+			.getName());
+	private static final String DELTA = ".delta.";
+
+	private final MemContactDao dao;
+	private final File base;
+	private final long intervalMillis;
+	private final int minChanges;
+	private final int maxDeltas;
+	private final long maxDeltaBytes;
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Create a snapshot manager using settings from system properties.
+	 *
+	 * @param dao
+	 *            the DAO to take snapshots of, which must have a journal
+	 * @param base
+	 *            the base snapshot file
+	 */
+	public SnapshotManager(MemContactDao dao, File base) {
+		this(dao, base, Long.getLong("contact.snapshot.intervalMillis", 60000),
+				Integer.getInteger("contact.snapshot.minChanges", 1), Integer
+						.getInteger("contact.snapshot.maxDeltas", 10), Long
+						.getLong("contact.snapshot.maxDeltaBytes",
+								64L * 1024 * 1024));
+	}
+
+	/**
+	 * Create a snapshot manager.
+	 *
+	 * @param dao
+	 *            the DAO to take snapshots of, which must have a journal
+	 * @param base
+	 *            the base snapshot file
+	 * @param intervalMillis
+	 *            how often to write a delta segment, or 0 for never
+	 * @param minChanges
+	 *            skip a snapshot if fewer contacts changed
+	 * @param maxDeltas
+	 *            compact when there are this many delta segments
+	 * @param maxDeltaBytes
+	 *            compact when the delta segments are this large in total
+	 */
+	public SnapshotManager(MemContactDao dao, File base, long intervalMillis,
+			int minChanges, int maxDeltas, long maxDeltaBytes) {
+		this.dao = dao;
+		this.base = base;
+		this.intervalMillis = intervalMillis;
+		this.minChanges = Math.max(1, minChanges);
+		this.maxDeltas = Math.max(1, maxDeltas);
+		this.maxDeltaBytes = maxDeltaBytes;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "contact-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start taking snapshots in the background.
+	 */
+	public void start() {
+		if (intervalMillis <= 0)
+			return;
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					snapshot();
+					if (needsCompaction())
+						compact();
+				} catch (RuntimeException | IOException e) {
+					logger.log(Level.SEVERE, "Snapshot failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the delta segments of a base snapshot file.
+	 *
+	 * @param base
+	 *            the base snapshot file
+	 * @return the delta segments, oldest first
+	 */
+	public static File[] deltaFiles(File base) {
+		final String prefix = base.getName() + DELTA;
+		File dir = base.getAbsoluteFile().getParentFile();
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && !name.endsWith(".tmp");
+			}
+		});
+		if (files == null)
+			return new File[0];
+		// generation numbers are zero padded, so names sort by age
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Delete the delta segments of a base snapshot file.
+	 *
+	 * @param base
+	 *            the base snapshot file
+	 */
+	public static void deleteDeltas(File base) {
+		for (File delta : deltaFiles(base))
+			if (!delta.delete())
+				logger.warning("Can't delete " + delta);
+	}
+
+	/**
+	 * Write a delta segment with the contacts that changed since the last
+	 * snapshot, then drop the journal records before it.
+	 *
+	 * @return the delta segment, or null if too few contacts changed
+	 * @throws IOException
+	 *             if the segment can't be written
+	 */
+	public File snapshot() throws IOException {
+		MemContactDao.Changes changes = dao.takeChanges(minChanges);
+		if (changes == null)
+			return null;
+		File delta;
+		try {
+			delta = writeDelta(changes);
+		} catch (IOException | RuntimeException e) {
+			// keep the changes for the next snapshot; the journal still has them
+			dao.restoreChanges(changes);
+			throw e;
+		}
+		dao.getJournal().dropRotated();
+		return delta;
+	}
+
+	/**
+	 * Write the current value of changed contacts to a new delta segment. A
+	 * contact that changes while the segment is written may be saved with a
+	 * newer value; that is fine, since replaying the journal after the
+	 * segment gives the same final value.
+	 */
+	private File writeDelta(MemContactDao.Changes changes) throws IOException {
+		File[] deltas = deltaFiles(base);
+		long generation = 1;
+		if (deltas.length > 0) {
+			String last = deltas[deltas.length - 1].getName();
+			generation = Long.parseLong(last.substring(last.lastIndexOf('.') + 1)) + 1;
+		}
+		File delta = new File(base.getAbsoluteFile().getParentFile(),
+				String.format("%s%s%012d", base.getName(), DELTA, generation));
+		File temp = new File(delta.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(file, 64 * 1024));
+			if (changes.cleared)
+				out.write(ContactRecords.clear());
+			for (long id : changes.ids) {
+				Contact contact = dao.peek(id);
+				out.write(contact == null ? ContactRecords.delete(id)
+						: ContactRecords.put(contact));
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		Files.move(temp.toPath(), delta.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		return delta;
+	}
+
+	/** Test if the delta segments should be compacted. */
+	private boolean needsCompaction() {
+		File[] deltas = deltaFiles(base);
+		long bytes = 0;
+		for (File delta : deltas)
+			bytes += delta.length();
+		return deltas.length >= maxDeltas || bytes >= maxDeltaBytes;
+	}
+
+	/**
+	 * Write the base file again with all contacts and delete the delta
+	 * segments. The last snapshot before compaction covers every change
+	 * made before the base file is read, and later changes are in newer
+	 * segments or the journal. The base file is written from a point-in-time
+	 * snapshot of the contacts, so writes are not blocked.
+	 */
+	public void compact() throws IOException {
+		snapshot();
+		File[] merged = deltaFiles(base);
+		dao.writeSnapshot();
+		for (File delta : merged)
+			if (!delta.delete())
+				logger.warning("Can't delete " + delta);
+	}
+
+	/**
+	 * Save all contacts to the base file and empty the journal, after any
+	 * snapshot in progress is done. Writes go on while the file is saved.
+	 */
+	public void checkpoint() {
+		try {
+			executor.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return dao.checkpoint();
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.log(Level.SEVERE, "Checkpoint failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package contact.service.mem;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of contact ids in increasing order, for reading contacts a page at a
+ * time (keyset pagination). The index is one sorted array of ids, so a page
+ * is a binary search for the first id after the last one of the previous
+ * page followed by a copy of at most limit ids, however far into the
+ * contacts the page is.
+ * <p>
+ * New contacts usually get larger ids than all saved contacts, so adding an
+ * id is mostly an append. Removing an id shifts the array, so the index has
+ * a read-write lock. Pages only hold the read lock for the copy.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class SortedIdIndex {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] ids;
+	private int size;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public SortedIdIndex() {
+		clear();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the position of an id.
+	 *
+	 * @return position of the id, or (-(insertion point) - 1) if absent
+	 */
+	private int search(long id) {
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	/** Add an id to the index. Adding an id that is there does nothing. */
+	public void add(long id) {
+		lock.writeLock().lock();
+		try {
+			int pos = size > 0 && ids[size - 1] < id ? -(size + 1) : search(id);
+			if (pos >= 0)
+				return;
+			pos = -(pos + 1);
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			ids[pos] = id;
+			size++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add many ids at once, such as all ids when the index is built. This
+	 * sorts once instead of shifting the array for each id.
+	 */
+	public void addAll(long[] added) {
+		lock.writeLock().lock();
+		try {
+			long[] all = Arrays.copyOf(ids, Math.max(MIN_CAPACITY, size
+					+ added.length));
+			System.arraycopy(added, 0, all, size, added.length);
+			Arrays.sort(all, 0, size + added.length);
+			// drop ids that were added twice
+			int count = 0;
+			for (int k = 0; k < size + added.length; k++)
+				if (count == 0 || all[count - 1] != all[k])
+					all[count++] = all[k];
+			ids = all;
+			size = count;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Remove an id from the index. */
+	public void remove(long id) {
+		lock.writeLock().lock();
+		try {
+			int pos = search(id);
+			if (pos < 0)
+				return;
+			size--;
+			System.arraycopy(ids, pos + 1, ids, pos, size - pos);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			ids = new long[MIN_CAPACITY];
+			size = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the ids that come after an id.
+	 *
+	 * @param after
+	 *            the last id of the previous page, or 0 for the first page
+	 * @param limit
+	 *            maximum number of ids to return
+	 * @return at most limit ids greater than after, in increasing order
+	 */
+	public long[] after(long after, int limit) {
+		lock.readLock().lock();
+		try {
+			int pos = search(after);
+			pos = pos < 0 ? -(pos + 1) : pos + 1;
+			return Arrays.copyOfRange(ids, pos,
+					(int) Math.min(size, (long) pos + limit));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package contact.service.mem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import contact.entity.Contact;
+
+/**
+ * File of contacts that a MemContactDao with a heap budget moved off the
+ * heap. A contact is appended as the fields written by ContactRecords, title
+ * first, and the map keeps a {@link Ref} to the record in its place. Records
+ * are never changed, so any number of threads can read them while one
+ * thread appends.
+ * <p>
+ * The file only grows: the record of a contact that is read back, changed or
+ * deleted stays in the file, unused, and the file is deleted when the JVM
+ * exits.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class SpillFile {
+	private final File file;
+	private final FileChannel channel;
+	/** offset of the end of the last record. */
+	private volatile long end;
+	private long writes;
+	private final AtomicLong reads = new AtomicLong();
+
+	/**
+	 * Reference to a contact in a spill file, used in place of the contact
+	 * while it is off the heap.
+	 */
+	static final class Ref {
+		final SpillFile file;
+		final long id;
+		final long offset;
+		final int length;
+
+		Ref(SpillFile file, long id, long offset, int length) {
+			this.file = file;
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		Contact load() {
+			return file.read(this);
+		}
+
+		String title() {
+			return file.readTitle(this);
+		}
+	}
+
+	/**
+	 * Create an empty spill file in the temporary directory.
+	 *
+	 * @throws IOException
+	 *             if the file can't be created
+	 */
+	public SpillFile() throws IOException {
+		file = File.createTempFile("contacts", ".spill");
+		file.deleteOnExit();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Append a contact. Only one thread may write at a time.
+	 *
+	 * @return a reference to the record
+	 * @throws IOException
+	 *             if the record can't be written
+	 */
+	Ref write(Contact contact) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		ContactRecords.writeFields(out, contact);
+		out.flush();
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		long offset = end;
+		long position = offset;
+		while (record.hasRemaining())
+			position += channel.write(record, position);
+		end = position;
+		writes++;
+		return new Ref(this, contact.getId(), offset, bytes.size());
+	}
+
+	/**
+	 * Read the bytes of a record. The read is positional, so any thread may
+	 * do it.
+	 */
+	private DataInputStream record(Ref ref) {
+		ByteBuffer record = ByteBuffer.allocate(ref.length);
+		try {
+			while (record.hasRemaining())
+				if (channel.read(record, ref.offset + record.position()) < 0)
+					throw new IOException(file + " is truncated");
+		} catch (IOException e) {
+			// a record that was written can always be read back
+			throw new IllegalStateException(e);
+		}
+		reads.incrementAndGet();
+		return new DataInputStream(new ByteArrayInputStream(record.array()));
+	}
+
+	Contact read(Ref ref) {
+		try {
+			return ContactRecords.readFields(record(ref), ref.id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	String readTitle(Ref ref) {
+		try {
+			return ContactRecords.readString(record(ref));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Get the size of the file in bytes. */
+	public long getBytes() {
+		return end;
+	}
+
+	/** Get the number of records written. */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Get the number of records read back. */
+	public long getReads() {
+		return reads.get();
+	}
+}
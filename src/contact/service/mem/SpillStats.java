@@ -0,0 +1,85 @@
+package contact.service.mem;
+
+/**
+ * Statistics of a MemContactDao with a heap budget: how many contacts are on
+ * the heap and in the spill file, and how finds were served. A hit is a find
+ * of a contact on the heap, a miss a find of one that was not, and a fault a
+ * read of a contact from the spill file. Byte counts of the heap are
+ * estimates.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class SpillStats {
+	private final long budget;
+	private final int residentContacts;
+	private final long residentBytes;
+	private final long evictions;
+	private final long spillBytes;
+	private final long hits;
+	private final long misses;
+	private final long faults;
+
+	SpillStats(ResidentSet resident, SpillFile spill) {
+		budget = resident.getBudget();
+		residentContacts = resident.size();
+		residentBytes = resident.getBytes();
+		evictions = resident.evictions;
+		spillBytes = spill.getBytes();
+		hits = resident.hits.get();
+		misses = resident.misses.get();
+		faults = spill.getReads();
+	}
+
+	/** Get the bytes of heap the contacts may use. */
+	public long getBudget() {
+		return budget;
+	}
+
+	/** Get the number of contacts on the heap. */
+	public int getResidentContacts() {
+		return residentContacts;
+	}
+
+	/** Get the bytes of heap used by the contacts on the heap. */
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/** Get the number of times a contact was spilled to the file. */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/** Get the size of the spill file. */
+	public long getSpillBytes() {
+		return spillBytes;
+	}
+
+	/** Get the number of finds of a contact on the heap. */
+	public long getHits() {
+		return hits;
+	}
+
+	/** Get the number of finds of a contact that was not on the heap. */
+	public long getMisses() {
+		return misses;
+	}
+
+	/** Get the number of contacts read from the spill file. */
+	public long getFaults() {
+		return faults;
+	}
+
+	/** Get the fraction of finds that were hits, or 0 if there were none. */
+	public double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d of %d bytes in %d contacts, %d evictions, %d bytes spilled, %d hits, %d misses (%.1f%% hits), %d faults",
+				residentBytes, budget, residentContacts, evictions,
+				spillBytes, hits, misses, 100 * getHitRate(), faults);
+	}
+}
@@ -0,0 +1,336 @@
+package contact.service.mem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import contact.entity.Contact;
+
+/**
+ * Index of contact titles sorted by their case-folded form, for "starts with"
+ * searches. The titles are kept in sorted runs of two parallel arrays (keys
+ * and ids), so the index needs only two references per contact, and all
+ * titles that start with a prefix are next to each other in each run. A
+ * search is a binary search in each run for the first key at or after the
+ * prefix followed by a merged scan of at most limit entries.
+ * <p>
+ * Most titles are in one large run. Titles added later go into a small run
+ * and removed titles of the large run are only marked as removed, so adding
+ * or removing a title shifts at most the small run. When the small run or
+ * the removed ids grow past about the square root of the size of the large
+ * run, they are merged into a new large run; this is a cost of O(sqrt(n))
+ * per change instead of shifting all entries. Building the index for many
+ * contacts at once with {@link #addAll(long[], String[], int)} sorts them
+ * once.
+ * <p>
+ * The index has a read-write lock. Searches only hold the read lock for the
+ * short scan.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class TitlePrefixIndex {
+	private static final int MIN_CAPACITY = 16;
+
+	/** Sorted entries, ordered by key then id. */
+	private static class Run {
+		/** case-folded titles in sorted order. */
+		String[] keys;
+		/** ids of the contacts, in the same order as keys. */
+		long[] ids;
+		int size;
+
+		Run(int capacity) {
+			keys = new String[capacity];
+			ids = new long[capacity];
+		}
+
+		/**
+		 * Find the position of an entry, ordered by key then id.
+		 *
+		 * @return position of the entry, or (-(insertion point) - 1) if absent
+		 */
+		int search(String key, long id) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = compare(keys[mid], ids[mid], key, id);
+				if (cmp < 0)
+					low = mid + 1;
+				else if (cmp > 0)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+
+		/** Position of the first entry with a key at or after key. */
+		int first(String key) {
+			// ids are at least Long.MIN_VALUE, so this is the first key >= key
+			int pos = search(key, Long.MIN_VALUE);
+			return pos < 0 ? -(pos + 1) : pos;
+		}
+
+		void insert(int pos, String key, long id) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			keys[pos] = key;
+			ids[pos] = id;
+			size++;
+		}
+
+		void delete(int pos) {
+			size--;
+			System.arraycopy(keys, pos + 1, keys, pos, size - pos);
+			System.arraycopy(ids, pos + 1, ids, pos, size - pos);
+			keys[size] = null;
+		}
+
+		void append(String key, long id) {
+			keys[size] = key;
+			ids[size] = id;
+			size++;
+		}
+	}
+
+	/** the large run. */
+	private Run main;
+	/** titles added since the last merge. */
+	private Run recent;
+	/** ids whose entry in main was removed since the last merge. */
+	private LongHashSet removed;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public TitlePrefixIndex() {
+		clear();
+	}
+
+	/**
+	 * Get the search key of a title.
+	 *
+	 * @param title
+	 *            the title of a contact or a prefix
+	 * @return the key used to sort and compare titles, Contact.titleKey
+	 */
+	public static String keyOf(String title) {
+		return Contact.titleKey(title);
+	}
+
+	/** Compare two entries by key then id. */
+	private static int compare(String key1, long id1, String key2, long id2) {
+		int cmp = key1.compareTo(key2);
+		if (cmp != 0)
+			return cmp;
+		return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return main.size - removed.size() + recent.size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add the title of a contact to the index.
+	 *
+	 * @param id
+	 *            id of the contact
+	 * @param title
+	 *            title of the contact, may be null
+	 */
+	public void add(long id, String title) {
+		if (title == null)
+			return;
+		String key = keyOf(title);
+		lock.writeLock().lock();
+		try {
+			if (main.search(key, id) >= 0) {
+				// the same title was removed and added again
+				removed.remove(id);
+				return;
+			}
+			int pos = recent.search(key, id);
+			if (pos >= 0)
+				return;
+			recent.insert(-(pos + 1), key, id);
+			mergeIfLarge();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add the titles of many contacts at once, such as all contacts when the
+	 * index is built. This sorts them once instead of adding each one.
+	 *
+	 * @param ids
+	 *            ids of the contacts
+	 * @param titles
+	 *            titles of the contacts, in the same order as ids; null
+	 *            titles are not added
+	 * @param count
+	 *            number of contacts in ids and titles
+	 */
+	public void addAll(long[] ids, String[] titles, int count) {
+		final String[] keys = new String[count];
+		Integer[] order = new Integer[count];
+		int size = 0;
+		for (int k = 0; k < count; k++) {
+			if (titles[k] == null)
+				continue;
+			keys[k] = keyOf(titles[k]);
+			order[size++] = k;
+		}
+		final long[] added = ids;
+		Arrays.sort(order, 0, size, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return TitlePrefixIndex.compare(keys[a], added[a], keys[b],
+						added[b]);
+			}
+		});
+		Run run = new Run(Math.max(MIN_CAPACITY, size));
+		for (int k = 0; k < size; k++)
+			run.append(keys[order[k]], ids[order[k]]);
+		lock.writeLock().lock();
+		try {
+			main = merge(merge(main, removed, recent), null, run);
+			recent = new Run(MIN_CAPACITY);
+			removed = new LongHashSet();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the title of a contact from the index. The title must be the
+	 * same as the title that was added for this id.
+	 *
+	 * @param id
+	 *            id of the contact
+	 * @param title
+	 *            the indexed title, may be null
+	 */
+	public void remove(long id, String title) {
+		if (title == null)
+			return;
+		String key = keyOf(title);
+		lock.writeLock().lock();
+		try {
+			int pos = recent.search(key, id);
+			if (pos >= 0) {
+				recent.delete(pos);
+				return;
+			}
+			if (main.search(key, id) >= 0 && removed.add(id))
+				mergeIfLarge();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge the recent titles and removed ids into the large run when they
+	 * are more than about the square root of its size. Caller must hold the
+	 * write lock.
+	 */
+	private void mergeIfLarge() {
+		int most = Math.max(MIN_CAPACITY, (int) Math.sqrt(main.size));
+		if (recent.size <= most && removed.size() <= most)
+			return;
+		main = merge(main, removed, recent);
+		recent = new Run(MIN_CAPACITY);
+		removed = new LongHashSet();
+	}
+
+	/**
+	 * Merge two runs into a new run. An entry that is in both is kept once.
+	 *
+	 * @param skip
+	 *            ids of entries of a to leave out, or null
+	 */
+	private static Run merge(Run a, LongHashSet skip, Run b) {
+		Run run = new Run(Math.max(MIN_CAPACITY, a.size + b.size));
+		int i = 0;
+		int j = 0;
+		while (i < a.size || j < b.size) {
+			if (i < a.size && skip != null && skip.contains(a.ids[i])) {
+				i++;
+				continue;
+			}
+			int cmp = i == a.size ? 1 : (j == b.size ? -1 : compare(
+					a.keys[i], a.ids[i], b.keys[j], b.ids[j]));
+			if (cmp <= 0) {
+				run.append(a.keys[i], a.ids[i]);
+				i++;
+				if (cmp == 0)
+					j++;
+			} else {
+				run.append(b.keys[j], b.ids[j]);
+				j++;
+			}
+		}
+		return run;
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			main = new Run(MIN_CAPACITY);
+			recent = new Run(MIN_CAPACITY);
+			removed = new LongHashSet();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Find contacts whose title starts with a prefix, ignoring case.
+	 *
+	 * @param prefix
+	 *            the start of a title
+	 * @param limit
+	 *            maximum number of ids to return
+	 * @return ids of at most limit matching contacts, in order of title
+	 */
+	public long[] startingWith(String prefix, int limit) {
+		String key = keyOf(prefix);
+		lock.readLock().lock();
+		try {
+			long[] found = new long[Math.max(0,
+					Math.min(limit, main.size + recent.size))];
+			int count = 0;
+			int i = main.first(key);
+			int j = recent.first(key);
+			while (count < found.length) {
+				if (i < main.size && removed.contains(main.ids[i])) {
+					i++;
+					continue;
+				}
+				boolean inMain = i < main.size
+						&& main.keys[i].startsWith(key);
+				boolean inRecent = j < recent.size
+						&& recent.keys[j].startsWith(key);
+				if (!inMain && !inRecent)
+					break;
+				if (inMain
+						&& (!inRecent || compare(main.keys[i], main.ids[i],
+								recent.keys[j], recent.ids[j]) < 0))
+					found[count++] = main.ids[i++];
+				else
+					found[count++] = recent.ids[j++];
+			}
+			return Arrays.copyOf(found, count);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package contact.service.mem;
+
+/**
+ * Inverted index from the trigrams (substrings of 3 characters) of a text to
+ * the ids of contacts whose text contains them. Any string that contains a
+ * query also contains every trigram of the query, so intersecting the
+ * posting lists of the query trigrams gives a small set of candidates that
+ * only need to be checked with String.contains.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class TrigramIndex {
+	/** length of the n-grams in the index. */
+	public static final int N = 3;
+	/** posting lists, keyed by a trigram packed into a long. */
+	private final LongHashMap<LongHashSet> postings = new LongHashMap<LongHashSet>();
+
+	/** Pack the trigram starting at index k of text into a long. */
+	private static long trigram(String text, int k) {
+		return ((long) text.charAt(k) << 32) | ((long) text.charAt(k + 1) << 16)
+				| text.charAt(k + 2);
+	}
+
+	/**
+	 * Add the trigrams of a text to the index.
+	 *
+	 * @param id
+	 *            id of the contact that has this text
+	 * @param text
+	 *            the text to index, may be null
+	 */
+	public void add(long id, String text) {
+		if (text == null)
+			return;
+		for (int k = 0; k + N <= text.length(); k++) {
+			long gram = trigram(text, k);
+			LongHashSet posting = postings.get(gram);
+			if (posting == null) {
+				posting = new LongHashSet();
+				postings.put(gram, posting);
+			}
+			posting.add(id);
+		}
+	}
+
+	/**
+	 * Remove the trigrams of a text from the index. The text must be the
+	 * same as the text that was added for this id.
+	 *
+	 * @param id
+	 *            id of the contact that has this text
+	 * @param text
+	 *            the indexed text, may be null
+	 */
+	public void remove(long id, String text) {
+		if (text == null)
+			return;
+		for (int k = 0; k + N <= text.length(); k++) {
+			long gram = trigram(text, k);
+			LongHashSet posting = postings.get(gram);
+			if (posting != null && posting.remove(id) && posting.isEmpty())
+				postings.remove(gram);
+		}
+	}
+
+	public void clear() {
+		postings.clear();
+	}
+
+	/**
+	 * Get the ids of contacts whose text may contain a query string. Every
+	 * text containing the query is among the candidates, but candidates must
+	 * still be checked since they only contain all trigrams of the query.
+	 *
+	 * @param query
+	 *            the substring to search for
+	 * @return ids of candidate contacts in no particular order, or null if
+	 *         the query is too short to use the index
+	 */
+	public long[] candidates(String query) {
+		if (query.length() < N)
+			return null;
+		// the smallest posting list bounds the result, so start with it
+		int grams = query.length() - N + 1;
+		LongHashSet[] lists = new LongHashSet[grams];
+		int smallest = 0;
+		for (int k = 0; k < grams; k++) {
+			lists[k] = postings.get(trigram(query, k));
+			if (lists[k] == null)
+				return new long[0];
+			if (lists[k].size() < lists[smallest].size())
+				smallest = k;
+		}
+		long[] ids = lists[smallest].toArray();
+		int count = 0;
+		for (long id : ids) {
+			boolean inAll = true;
+			for (int k = 0; k < grams && inAll; k++)
+				inAll = k == smallest || lists[k].contains(id);
+			if (inAll)
+				ids[count++] = id;
+		}
+		long[] result = new long[count];
+		System.arraycopy(ids, 0, result, 0, count);
+		return result;
+	}
+}
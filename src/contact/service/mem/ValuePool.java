@@ -0,0 +1,122 @@
+package contact.service.mem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of shared string values with reference counts, so that contacts with
+ * the same value of a field share one String object. A value is dropped from
+ * the pool when the last contact that uses it is removed. The pool also
+ * keeps an estimate of the heap it saves. It is not thread-safe; callers hold
+ * the write lock of the DAO.
+ * <p>
+ * A pool of parts of values, such as email domains, saves less: each use
+ * only saves the characters of the part, which would otherwise be in the
+ * whole value, and each different part costs one more String.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ValuePool {
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final boolean parts;
+	private long references;
+	private long savedBytes;
+
+	private static final class Entry {
+		final String value;
+		int count;
+
+		Entry(String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Create an empty pool.
+	 *
+	 * @param parts
+	 *            true if the values are parts split off larger values
+	 */
+	public ValuePool(boolean parts) {
+		this.parts = parts;
+	}
+
+	/**
+	 * Estimate the heap used by a String: the String object and its char
+	 * array, each with a 16 byte header, rounded up to 8 bytes.
+	 */
+	static long sizeOf(String value) {
+		return 24 + ((16 + 2L * value.length() + 7) & ~7L);
+	}
+
+	/**
+	 * Get the shared copy of a value, and count one more use of it.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 * @return the shared value equal to value, or null if value is null
+	 */
+	public String acquire(String value) {
+		if (value == null)
+			return null;
+		Entry entry = entries.get(value);
+		if (entry == null) {
+			entry = new Entry(value);
+			entries.put(value, entry);
+			if (parts)
+				savedBytes -= sizeOf(value);
+		} else if (!parts) {
+			savedBytes += sizeOf(value);
+		}
+		if (parts)
+			savedBytes += 2L * value.length();
+		entry.count++;
+		references++;
+		return entry.value;
+	}
+
+	/**
+	 * Count one less use of a value acquired before.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 */
+	public void release(String value) {
+		if (value == null)
+			return;
+		Entry entry = entries.get(value);
+		if (entry == null)
+			return;
+		references--;
+		if (parts)
+			savedBytes -= 2L * value.length();
+		if (--entry.count == 0) {
+			entries.remove(value);
+			if (parts)
+				savedBytes += sizeOf(value);
+		} else if (!parts) {
+			savedBytes -= sizeOf(value);
+		}
+	}
+
+	/** Get the number of different values in the pool. */
+	public int size() {
+		return entries.size();
+	}
+
+	/** Get the number of uses of values in the pool. */
+	public long getReferences() {
+		return references;
+	}
+
+	/** Get an estimate of the bytes saved by sharing values. */
+	public long getSavedBytes() {
+		return savedBytes;
+	}
+
+	public void clear() {
+		entries.clear();
+		references = 0;
+		savedBytes = 0;
+	}
+}
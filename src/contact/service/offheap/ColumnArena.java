@@ -0,0 +1,134 @@
+package contact.service.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One column of contact data: the UTF-8 bytes of one field of every contact,
+ * appended one after another to a direct (off-heap) buffer. A value is found
+ * by its offset and length, which the caller keeps. Values are never changed
+ * in place; a new value is appended and the old bytes become garbage until
+ * the caller copies the live values to a new arena.
+ * <p>
+ * Appends must not run at the same time as any other use of the arena, but
+ * any number of threads may read at once.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ColumnArena {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MIN_CAPACITY = 4096;
+
+	private ByteBuffer buffer;
+	private int end;
+
+	/**
+	 * Create an empty arena.
+	 *
+	 * @param capacity
+	 *            bytes to reserve at first
+	 */
+	public ColumnArena(int capacity) {
+		buffer = ByteBuffer.allocateDirect(Math.max(MIN_CAPACITY, capacity));
+	}
+
+	/** Get the number of bytes used, including garbage. */
+	public int size() {
+		return end;
+	}
+
+	/** Get the number of bytes reserved off the heap. */
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Append a value.
+	 *
+	 * @param bytes
+	 *            UTF-8 bytes of the value
+	 * @return offset of the value
+	 */
+	public int append(byte[] bytes) {
+		if (bytes.length > buffer.capacity() - end)
+			grow(bytes.length);
+		ByteBuffer view = buffer.duplicate();
+		view.position(end);
+		view.put(bytes);
+		int offset = end;
+		end += bytes.length;
+		return offset;
+	}
+
+	/**
+	 * Copy a value from another arena.
+	 *
+	 * @return offset of the value in this arena
+	 */
+	public int append(ColumnArena from, int offset, int length) {
+		if (length > buffer.capacity() - end)
+			grow(length);
+		ByteBuffer source = from.buffer.duplicate();
+		source.limit(offset + length).position(offset);
+		ByteBuffer view = buffer.duplicate();
+		view.position(end);
+		view.put(source);
+		int at = end;
+		end += length;
+		return at;
+	}
+
+	private void grow(int needed) {
+		long capacity = Math.max(2L * buffer.capacity(), (long) end + needed);
+		if (capacity > Integer.MAX_VALUE) {
+			if ((long) end + needed > Integer.MAX_VALUE)
+				throw new IllegalStateException("Column arena is full");
+			capacity = Integer.MAX_VALUE;
+		}
+		ByteBuffer bigger = ByteBuffer.allocateDirect((int) capacity);
+		ByteBuffer used = buffer.duplicate();
+		used.limit(end).position(0);
+		bigger.put(used);
+		buffer = bigger;
+	}
+
+	/**
+	 * Decode a value.
+	 *
+	 * @param length
+	 *            length of the value in bytes, or -1 for null
+	 * @return the value, or null if length is -1
+	 */
+	public String read(int offset, int length) {
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Test if a value contains a sequence of bytes, without decoding it. For
+	 * UTF-8 this is the same as testing if the string contains a substring.
+	 */
+	public boolean contains(int offset, int length, byte[] pattern) {
+		if (length < pattern.length)
+			return false;
+		if (pattern.length == 0)
+			return true;
+		ByteBuffer b = buffer;
+		int last = offset + length - pattern.length;
+		byte first = pattern[0];
+		outer: for (int i = offset; i <= last; i++) {
+			if (b.get(i) != first)
+				continue;
+			for (int j = 1; j < pattern.length; j++)
+				if (b.get(i + j) != pattern[j])
+					continue outer;
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,144 @@
+package contact.service.offheap;
+
+/**
+ * Hash index from the hash of a key, such as a normalized email address, to
+ * the ids of contacts whose key has that hash. It is two primitive arrays, so
+ * it adds nothing for the garbage collector to trace, and it doesn't keep
+ * the keys: different keys may have the same hash, so the caller must check
+ * the key of each contact it finds. Open addressing with linear probing; an
+ * id of 0 marks an empty slot, and removal shifts later entries back. The
+ * index is not thread-safe.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class KeyHashIndex {
+	private static final long[] NONE = new long[0];
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] hashes;
+	private long[] ids;
+	private int size;
+
+	public KeyHashIndex() {
+		allocate(MIN_CAPACITY << 2);
+	}
+
+	private void allocate(int length) {
+		hashes = new long[length];
+		ids = new long[length];
+	}
+
+	/**
+	 * Hash a key (64-bit FNV-1a of its chars), so that different keys rarely
+	 * have the same hash.
+	 */
+	public static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int k = 0; k < key.length(); k++) {
+			h ^= key.charAt(k);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static int home(long hash, int mask) {
+		return (int) (hash ^ hash >>> 32) & mask;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add an id for a key hash. Adding the same pair twice adds it twice.
+	 *
+	 * @param id
+	 *            a contact id, which must not be 0
+	 */
+	public void add(long hash, long id) {
+		int mask = ids.length - 1;
+		int slot = home(hash, mask);
+		while (ids[slot] != 0)
+			slot = (slot + 1) & mask;
+		hashes[slot] = hash;
+		ids[slot] = id;
+		if (++size > ids.length / 2)
+			resize(ids.length * 2);
+	}
+
+	/**
+	 * Remove an id for a key hash.
+	 *
+	 * @return true if the pair was in the index
+	 */
+	public boolean remove(long hash, long id) {
+		int mask = ids.length - 1;
+		int slot = home(hash, mask);
+		while (ids[slot] != 0 && (ids[slot] != id || hashes[slot] != hash))
+			slot = (slot + 1) & mask;
+		if (ids[slot] == 0)
+			return false;
+		// move back any later entry of the run that can't be found otherwise
+		int hole = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (ids[next] == 0)
+				break;
+			int home = home(hashes[next], mask);
+			// leave the entry if its home is cyclically after the hole
+			if (hole <= next ? hole < home && home <= next : hole < home
+					|| home <= next)
+				continue;
+			hashes[hole] = hashes[next];
+			ids[hole] = ids[next];
+			hole = next;
+		}
+		ids[hole] = 0;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Get the ids for a key hash.
+	 *
+	 * @return the ids, in no particular order, or an empty array
+	 */
+	public long[] get(long hash) {
+		int mask = ids.length - 1;
+		int count = 0;
+		for (int slot = home(hash, mask); ids[slot] != 0; slot = (slot + 1)
+				& mask)
+			if (hashes[slot] == hash)
+				count++;
+		if (count == 0)
+			return NONE;
+		long[] found = new long[count];
+		count = 0;
+		for (int slot = home(hash, mask); ids[slot] != 0; slot = (slot + 1)
+				& mask)
+			if (hashes[slot] == hash)
+				found[count++] = ids[slot];
+		return found;
+	}
+
+	public void clear() {
+		allocate(MIN_CAPACITY << 2);
+		size = 0;
+	}
+
+	private void resize(int length) {
+		long[] oldHashes = hashes;
+		long[] oldIds = ids;
+		allocate(length);
+		int mask = length - 1;
+		for (int k = 0; k < oldIds.length; k++)
+			if (oldIds[k] != 0) {
+				int slot = home(oldHashes[k], mask);
+				while (ids[slot] != 0)
+					slot = (slot + 1) & mask;
+				hashes[slot] = oldHashes[k];
+				ids[slot] = oldIds[k];
+			}
+	}
+}
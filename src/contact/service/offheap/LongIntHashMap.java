@@ -0,0 +1,142 @@
+package contact.service.offheap;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive long keys to non-negative int values, using open
+ * addressing with linear probing. Nothing is boxed and the whole map is three
+ * arrays, so it adds no objects for the garbage collector to trace however
+ * many entries it has. Removal shifts later entries back instead of leaving
+ * tombstones. The map is not thread-safe.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class LongIntHashMap {
+	/** value of an empty slot, and returned by get for a missing key. */
+	public static final int NONE = -1;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+
+	public LongIntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Create a map that can hold about capacity entries without resizing.
+	 *
+	 * @param capacity
+	 *            expected number of entries
+	 */
+	public LongIntHashMap(int capacity) {
+		allocate(Integer.highestOneBit(Math.max(MIN_CAPACITY, capacity)) << 2);
+	}
+
+	private void allocate(int length) {
+		keys = new long[length];
+		values = new int[length];
+		Arrays.fill(values, NONE);
+	}
+
+	/** Spread the bits of a key (the finalizer of MurmurHash3). */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb93fe53ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Find the slot of a key, or the empty slot where it would go. */
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (values[slot] != NONE && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @return the value, or NONE if key is not in the map
+	 */
+	public int get(long key) {
+		return values[slotOf(key)];
+	}
+
+	/**
+	 * Add or replace the value for a key.
+	 *
+	 * @param value
+	 *            the value, must not be negative
+	 * @return the previous value, or NONE if key was not in the map
+	 */
+	public int put(long key, int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Can't put a negative value");
+		int slot = slotOf(key);
+		int old = values[slot];
+		keys[slot] = key;
+		values[slot] = value;
+		if (old == NONE && ++size > keys.length / 2)
+			resize(keys.length * 2);
+		return old;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @return the removed value, or NONE if key was not in the map
+	 */
+	public int remove(long key) {
+		int slot = slotOf(key);
+		int old = values[slot];
+		if (old == NONE)
+			return NONE;
+		// move back any later entry of the run that can't be found otherwise
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (values[next] == NONE)
+				break;
+			int home = hash(keys[next]) & mask;
+			// leave the entry if its home is cyclically after the hole
+			if (hole <= next ? hole < home && home <= next : hole < home
+					|| home <= next)
+				continue;
+			keys[hole] = keys[next];
+			values[hole] = values[next];
+			hole = next;
+		}
+		values[hole] = NONE;
+		size--;
+		return old;
+	}
+
+	public void clear() {
+		allocate(MIN_CAPACITY << 2);
+		size = 0;
+	}
+
+	private void resize(int length) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(length);
+		for (int k = 0; k < oldKeys.length; k++)
+			if (oldValues[k] != NONE) {
+				int slot = slotOf(oldKeys[k]);
+				keys[slot] = oldKeys[k];
+				values[slot] = oldValues[k];
+			}
+	}
+}
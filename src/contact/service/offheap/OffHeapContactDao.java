@@ -0,0 +1,908 @@
+package contact.service.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import contact.entity.Contact;
+import contact.service.ContactCursor;
+import contact.service.ContactDao;
+import contact.service.ContactEvent;
+import contact.service.ContactEvents;
+import contact.service.ContactField;
+import contact.service.IdAllocator;
+import contact.service.PagedCursor;
+import contact.service.mem.ContactRecords;
+import contact.service.mem.ContactXml;
+import contact.service.mem.SortedIdIndex;
+
+/**
+ * Data access object that keeps contacts off the Java heap. Each field is a
+ * column: the UTF-8 bytes of that field for all contacts are stored in one
+ * {@link ColumnArena} of direct memory. The heap only has primitive arrays,
+ * one slot per contact (row) for the id and the offset and length of each
+ * field, and a primitive hash map from id to row. So a large contact book is
+ * a handful of objects for the garbage collector, instead of seven objects
+ * per contact. Contact objects are only made when a contact is returned to
+ * the caller, and changing a returned contact does not change the saved one.
+ * <p>
+ * Rows are in the order contacts were saved. Deleting or changing a contact
+ * leaves garbage in the arenas, and when there is more garbage than live data
+ * the live rows are copied to new arenas. Searches by title ignore case: they
+ * scan a column of {@link Contact#titleKey(String) folded titles} without
+ * decoding it. The folded title is only stored when it differs from the
+ * title, so lower case titles take no extra space. Searches by email and phone number use
+ * {@link KeyHashIndex}es of the normalized keys, which are primitive arrays
+ * too, and pages of findAll a {@link SortedIdIndex}.
+ * <p>
+ * This DAO is safe to use from many threads: reads share a read lock and
+ * writes take the write lock. Writes publish their changes to
+ * {@link #getContactEvents()} while they hold it; the contacts of the events
+ * are decoded only if there are listeners.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class OffHeapContactDao implements ContactDao {
+	static final int TITLE = 0;
+	static final int NAME = 1;
+	static final int EMAIL = 2;
+	static final int PHONE_NUMBER = 3;
+	static final int PHOTO_URL = 4;
+	/** Contact.titleKey of the title, or null if it is the same as the title. */
+	static final int TITLE_KEY = 5;
+	static final int COLUMNS = 6;
+	private static final int MIN_ROWS = 16;
+	/** don't copy the arenas to drop less garbage than this. */
+	private static final long MIN_GARBAGE = 1024 * 1024;
+	/** contacts read at once by streamAll. */
+	private static final int STREAM_PAGE = 256;
+
+	private ColumnArena[] columns;
+	private long[] ids;
+	/** offset of each value, by column and row. */
+	private int[][] offsets;
+	/** length of each value in bytes, or -1 for null, by column and row. */
+	private int[][] lengths;
+	/** rows of deleted or replaced contacts. */
+	private BitSet deleted;
+	/** number of rows used, including deleted rows. */
+	private int rows;
+	/** row of each saved contact by id. */
+	private LongIntHashMap index;
+	/** bytes in the arenas that belong to deleted rows or old values. */
+	private long garbage;
+	/** ids of contacts by hash of Contact.emailKey. */
+	private final KeyHashIndex emailIndex = new KeyHashIndex();
+	/** ids of contacts by hash of Contact.phoneKey. */
+	private final KeyHashIndex phoneIndex = new KeyHashIndex();
+	/** ids of saved contacts in order, for findAll(long, int). */
+	private final SortedIdIndex idIndex = new SortedIdIndex();
+	/** allocates ids of new contacts, and knows all ids ever saved. */
+	private final IdAllocator idAllocator = new IdAllocator(1000L);
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** publishes changes to listeners. */
+	private final ContactEvents events = new ContactEvents();
+
+	/**
+	 * Construct an empty list of contact.
+	 */
+	public OffHeapContactDao() {
+		reset(MIN_ROWS, 0);
+	}
+
+	/** Start with new empty arrays and arenas. */
+	private void reset(int capacity, int arenaBytes) {
+		columns = new ColumnArena[COLUMNS];
+		for (int k = 0; k < COLUMNS; k++)
+			columns[k] = new ColumnArena(arenaBytes);
+		ids = new long[capacity];
+		offsets = new int[COLUMNS][capacity];
+		lengths = new int[COLUMNS][capacity];
+		deleted = new BitSet();
+		rows = 0;
+		index = new LongIntHashMap(capacity);
+		garbage = 0;
+	}
+
+	/** Get the value of a field of a contact by column number. */
+	private static String field(Contact contact, int column) {
+		switch (column) {
+		case TITLE:
+			return contact.getTitle();
+		case NAME:
+			return contact.getName();
+		case EMAIL:
+			return contact.getEmail();
+		case PHONE_NUMBER:
+			return contact.getPhoneNumber();
+		case PHOTO_URL:
+			return contact.getPhotoUrl();
+		default:
+			String key = Contact.titleKey(contact.getTitle());
+			return key == contact.getTitle() ? null : key;
+		}
+	}
+
+	/**
+	 * Make a Contact from a row. Caller must hold the lock.
+	 */
+	private Contact contactAt(int row) {
+		Contact contact = new Contact(ids[row]);
+		contact.setTitle(valueAt(TITLE, row));
+		contact.setName(valueAt(NAME, row));
+		contact.setEmail(valueAt(EMAIL, row));
+		contact.setPhoneNumber(valueAt(PHONE_NUMBER, row));
+		contact.setPhotoUrl(valueAt(PHOTO_URL, row));
+		return contact;
+	}
+
+	private String valueAt(int column, int row) {
+		return columns[column].read(offsets[column][row], lengths[column][row]);
+	}
+
+	/** Store a value in a row. Caller must hold the write lock. */
+	private void setValue(int column, int row, String value) {
+		if (value == null) {
+			offsets[column][row] = 0;
+			lengths[column][row] = -1;
+		} else {
+			byte[] bytes = value.getBytes(ColumnArena.UTF8);
+			offsets[column][row] = columns[column].append(bytes);
+			lengths[column][row] = bytes.length;
+		}
+	}
+
+	/** Get the number of bytes a row uses in the arenas. */
+	private long bytesOf(int row) {
+		long bytes = 0;
+		for (int k = 0; k < COLUMNS; k++)
+			bytes += Math.max(0, lengths[k][row]);
+		return bytes;
+	}
+
+	/**
+	 * Add a contact after all rows. Caller must hold the write lock.
+	 */
+	private void append(Contact contact) {
+		if (rows == ids.length)
+			growRows();
+		int row = rows++;
+		ids[row] = contact.getId();
+		idAllocator.markUsed(contact.getId());
+		for (int k = 0; k < COLUMNS; k++)
+			setValue(k, row, field(contact, k));
+		index.put(contact.getId(), row);
+		indexKey(emailIndex, contact.getId(),
+				Contact.emailKey(contact.getEmail()));
+		indexKey(phoneIndex, contact.getId(),
+				Contact.phoneKey(contact.getPhoneNumber()));
+		idIndex.add(contact.getId());
+	}
+
+	private static void indexKey(KeyHashIndex keys, long id, String key) {
+		if (key != null)
+			keys.add(KeyHashIndex.hash(key), id);
+	}
+
+	private static void unindexKey(KeyHashIndex keys, long id, String key) {
+		if (key != null)
+			keys.remove(KeyHashIndex.hash(key), id);
+	}
+
+	/**
+	 * Make room for more rows, by dropping deleted rows and garbage if there
+	 * is enough of it, otherwise by doubling the arrays.
+	 */
+	private void growRows() {
+		int live = index.size();
+		if (live <= rows / 2 || garbage >= MIN_GARBAGE) {
+			compact(Math.max(MIN_ROWS, 2 * live));
+			return;
+		}
+		int capacity = 2 * ids.length;
+		ids = Arrays.copyOf(ids, capacity);
+		for (int k = 0; k < COLUMNS; k++) {
+			offsets[k] = Arrays.copyOf(offsets[k], capacity);
+			lengths[k] = Arrays.copyOf(lengths[k], capacity);
+		}
+	}
+
+	/** Remove a row. Caller must hold the write lock. */
+	private void removeRow(int row) {
+		unindexKey(emailIndex, ids[row],
+				Contact.emailKey(valueAt(EMAIL, row)));
+		unindexKey(phoneIndex, ids[row],
+				Contact.phoneKey(valueAt(PHONE_NUMBER, row)));
+		idIndex.remove(ids[row]);
+		deleted.set(row);
+		garbage += bytesOf(row);
+	}
+
+	/**
+	 * Copy the live rows, in order, to new arrays and arenas. Caller must
+	 * hold the write lock.
+	 */
+	private void compact(int capacity) {
+		ColumnArena[] oldColumns = columns;
+		long[] oldIds = ids;
+		int[][] oldOffsets = offsets;
+		int[][] oldLengths = lengths;
+		BitSet oldDeleted = deleted;
+		int oldRows = rows;
+		long live = 0;
+		for (int k = 0; k < COLUMNS; k++)
+			live += oldColumns[k].size();
+		live -= garbage;
+		reset(Math.max(capacity, index.size()),
+				(int) Math.min(Integer.MAX_VALUE, live / COLUMNS));
+		for (int r = 0; r < oldRows; r++) {
+			if (oldDeleted.get(r))
+				continue;
+			int row = rows++;
+			ids[row] = oldIds[r];
+			for (int k = 0; k < COLUMNS; k++) {
+				int length = oldLengths[k][r];
+				lengths[k][row] = length;
+				if (length >= 0)
+					offsets[k][row] = columns[k].append(oldColumns[k],
+							oldOffsets[k][r], length);
+			}
+			index.put(ids[row], row);
+		}
+	}
+
+	/** Drop garbage if there is more of it than live data. */
+	private void compactIfNeeded() {
+		long used = 0;
+		for (int k = 0; k < COLUMNS; k++)
+			used += columns[k].size();
+		if (garbage >= MIN_GARBAGE && garbage > used - garbage)
+			compact(ids.length);
+	}
+
+	/**
+	 * Get the number of bytes of contact data stored off the heap, including
+	 * space reserved for more contacts.
+	 *
+	 * @return bytes of direct memory used by the arenas
+	 */
+	public long getOffHeapBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (int k = 0; k < COLUMNS; k++)
+				bytes += columns[k].capacity();
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Import contacts from an XML file, one at a time, so the whole list is
+	 * never on the heap. Contacts with the same id as a saved contact replace
+	 * it.
+	 *
+	 * @param file
+	 *            XML file with a contacts element
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public void importFile(File file) throws IOException {
+		ContactXml.read(file, new ContactRecords.Handler() {
+			public void put(Contact contact) {
+				save(contact);
+			}
+
+			public void delete(long id) {
+				OffHeapContactDao.this.delete(id);
+			}
+
+			public void clear() {
+				removeAll();
+			}
+		});
+	}
+
+	/**
+	 * Export all contacts to an XML file. Contacts are decoded one at a time
+	 * as they are written, and writes wait until the export is done.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public void exportFile(File file) throws IOException {
+		lock.readLock().lock();
+		try {
+			ContactXml.write(file, new Iterable<Contact>() {
+				public Iterator<Contact> iterator() {
+					return new Iterator<Contact>() {
+						private int row = deleted.nextClearBit(0);
+
+						public boolean hasNext() {
+							return row < rows;
+						}
+
+						public Contact next() {
+							if (row >= rows)
+								throw new NoSuchElementException();
+							Contact contact = contactAt(row);
+							row = deleted.nextClearBit(row + 1);
+							return contact;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find a contact by ID in contacts.
+	 *
+	 * @param the
+	 *            id of contact to find
+	 * @return a new copy of the matching contact or null if the id is not
+	 *         found
+	 */
+	public Contact find(long id) {
+		lock.readLock().lock();
+		try {
+			int row = index.get(id);
+			return row == LongIntHashMap.NONE ? null : contactAt(row);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find all contacts.
+	 *
+	 * @return list of copies of all contacts, in the order they were saved.
+	 */
+	public List<Contact> findAll() {
+		lock.readLock().lock();
+		try {
+			List<Contact> result = new ArrayList<Contact>(index.size());
+			for (int row = deleted.nextClearBit(0); row < rows; row = deleted
+					.nextClearBit(row + 1))
+				result.add(contactAt(row));
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find a page of contacts ordered by id, with the sorted id index.
+	 *
+	 * @param afterId
+	 *            only contacts with a greater id are returned
+	 * @param limit
+	 *            maximum number of contacts to return
+	 * @return copies of at most limit contacts ordered by id
+	 */
+	public List<Contact> findAll(long afterId, int limit) {
+		if (limit <= 0)
+			return new ArrayList<Contact>();
+		lock.readLock().lock();
+		try {
+			long[] page = idIndex.after(afterId, limit);
+			List<Contact> result = new ArrayList<Contact>(page.length);
+			for (long id : page)
+				result.add(contactAt(index.get(id)));
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find a page of contacts ordered by id, with only some fields. Only the
+	 * columns of the fields are decoded.
+	 *
+	 * @see ContactDao#findAll(long, int, Set)
+	 */
+	public List<Contact> findAll(long afterId, int limit,
+			Set<ContactField> fields) {
+		if (limit <= 0)
+			return new ArrayList<Contact>();
+		lock.readLock().lock();
+		try {
+			long[] page = idIndex.after(afterId, limit);
+			List<Contact> result = new ArrayList<Contact>(page.length);
+			for (long id : page) {
+				int row = index.get(id);
+				Contact contact = new Contact(id);
+				for (ContactField field : fields)
+					if (field != ContactField.ID)
+						field.set(contact, valueAt(columnOf(field), row));
+				result.add(contact);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Get the column of a field other than ID. */
+	private static int columnOf(ContactField field) {
+		switch (field) {
+		case TITLE:
+			return TITLE;
+		case NAME:
+			return NAME;
+		case EMAIL:
+			return EMAIL;
+		case PHONE_NUMBER:
+			return PHONE_NUMBER;
+		default:
+			return PHOTO_URL;
+		}
+	}
+
+	/**
+	 * Read all contacts in id order, a page at a time. The read lock is only
+	 * held while a page is copied, so a slow reader doesn't hold up writes,
+	 * but contacts saved or deleted while it reads may or may not be seen.
+	 */
+	public ContactCursor streamAll() {
+		return new PagedCursor(this, STREAM_PAGE);
+	}
+
+	/**
+	 * Find contacts whose title contains a string, ignoring case. The UTF-8
+	 * bytes of the folded titles are compared with the bytes of the folded
+	 * string, so only matching contacts are decoded.
+	 *
+	 * @param the
+	 *            title of contact to find
+	 * @return the matching contacts in the order they were saved, or an empty
+	 *         list if the title is not found
+	 */
+	public List<Contact> findByTitle(String title) {
+		byte[] pattern = Contact.titleKey(title).getBytes(ColumnArena.UTF8);
+		lock.readLock().lock();
+		try {
+			List<Contact> result = new ArrayList<Contact>();
+			for (int row = deleted.nextClearBit(0); row < rows; row = deleted
+					.nextClearBit(row + 1))
+				if (titleContains(row, pattern))
+					result.add(contactAt(row));
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Count contacts whose title contains a string, ignoring case. The bytes
+	 * are compared as in findByTitle, and no contact is decoded.
+	 */
+	public long countByTitle(String title) {
+		byte[] pattern = Contact.titleKey(title).getBytes(ColumnArena.UTF8);
+		lock.readLock().lock();
+		try {
+			long count = 0;
+			for (int row = deleted.nextClearBit(0); row < rows; row = deleted
+					.nextClearBit(row + 1))
+				if (titleContains(row, pattern))
+					count++;
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Check if the folded title of a row contains a pattern. Caller must hold
+	 * the lock.
+	 */
+	private boolean titleContains(int row, byte[] pattern) {
+		int keyLength = lengths[TITLE_KEY][row];
+		return keyLength >= 0 ? columns[TITLE_KEY].contains(
+				offsets[TITLE_KEY][row], keyLength, pattern)
+				: columns[TITLE].contains(offsets[TITLE][row],
+						lengths[TITLE][row], pattern);
+	}
+
+	/** Count the saved contacts, with the size of the id index. */
+	public long count() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Check if a contact is saved, without decoding it. */
+	public boolean exists(long id) {
+		lock.readLock().lock();
+		try {
+			return index.get(id) != LongIntHashMap.NONE;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find contacts whose title starts with a prefix, ignoring case. This
+	 * decodes every folded title, since the column is not sorted.
+	 *
+	 * @param prefix
+	 *            the start of a title
+	 * @param limit
+	 *            maximum number of contacts to return
+	 * @return at most limit matching contacts ordered by title
+	 */
+	public List<Contact> findByTitlePrefix(String prefix, int limit) {
+		String key = Contact.titleKey(prefix);
+		lock.readLock().lock();
+		try {
+			List<Match> matches = new ArrayList<Match>();
+			for (int row = deleted.nextClearBit(0); row < rows; row = deleted
+					.nextClearBit(row + 1)) {
+				String folded = valueAt(TITLE_KEY, row);
+				if (folded == null)
+					folded = valueAt(TITLE, row);
+				if (folded != null && folded.startsWith(key))
+					matches.add(new Match(folded, ids[row], row));
+			}
+			Collections.sort(matches);
+			List<Contact> result = new ArrayList<Contact>();
+			for (int k = 0; k < matches.size() && k < limit; k++)
+				result.add(contactAt(matches.get(k).row));
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** A row found by findByTitlePrefix, ordered by title key then id. */
+	private static class Match implements Comparable<Match> {
+		final String key;
+		final long id;
+		final int row;
+
+		Match(String key, long id, int row) {
+			this.key = key;
+			this.id = id;
+			this.row = row;
+		}
+
+		public int compareTo(Match other) {
+			int c = key.compareTo(other.key);
+			return c != 0 ? c : Long.compare(id, other.id);
+		}
+	}
+
+	/**
+	 * Find contacts by email address, with the email index. Case and
+	 * surrounding space don't matter.
+	 *
+	 * @return copies of the contacts with that address in the order they
+	 *         were saved, or an empty list if there are none
+	 */
+	public List<Contact> findByEmail(String email) {
+		return findByKey(emailIndex, EMAIL, Contact.emailKey(email));
+	}
+
+	/**
+	 * Find contacts by phone number, with the phone index. Only the digits of
+	 * the number are compared.
+	 *
+	 * @return copies of the contacts with that number in the order they were
+	 *         saved, or an empty list if there are none
+	 */
+	public List<Contact> findByPhoneNumber(String phoneNumber) {
+		return findByKey(phoneIndex, PHONE_NUMBER,
+				Contact.phoneKey(phoneNumber));
+	}
+
+	/**
+	 * Find the contacts whose key of a column is key. Rows with the same key
+	 * hash are decoded to check the key.
+	 */
+	private List<Contact> findByKey(KeyHashIndex keys, int column, String key) {
+		List<Contact> result = new ArrayList<Contact>();
+		if (key == null)
+			return result;
+		lock.readLock().lock();
+		try {
+			long[] found = keys.get(KeyHashIndex.hash(key));
+			int[] rowsFound = new int[found.length];
+			int count = 0;
+			for (long id : found) {
+				int row = index.get(id);
+				String value = valueAt(column, row);
+				if (key.equals(column == EMAIL ? Contact.emailKey(value)
+						: Contact.phoneKey(value)))
+					rowsFound[count++] = row;
+			}
+			Arrays.sort(rowsFound, 0, count);
+			for (int k = 0; k < count; k++)
+				result.add(contactAt(rowsFound[k]));
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find contacts by id.
+	 *
+	 * @return copies of the saved contacts, in the order of ids
+	 */
+	public List<Contact> findAllById(long[] ids) {
+		lock.readLock().lock();
+		try {
+			List<Contact> result = new ArrayList<Contact>(ids.length);
+			for (long id : ids) {
+				int row = index.get(id);
+				if (row != LongIntHashMap.NONE)
+					result.add(contactAt(row));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete a saved contact.
+	 *
+	 * @param id
+	 *            the id of contact to delete
+	 * @return true if contact is deleted, false otherwise.
+	 */
+	public boolean delete(long id) {
+		lock.writeLock().lock();
+		try {
+			boolean deleted = deleteLocked(id);
+			compactIfNeeded();
+			return deleted;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete contacts, holding the write lock once and copying the arenas at
+	 * most once for all of them.
+	 */
+	public boolean[] deleteAll(long[] ids) {
+		boolean[] deleted = new boolean[ids.length];
+		lock.writeLock().lock();
+		try {
+			for (int k = 0; k < ids.length; k++)
+				deleted[k] = deleteLocked(ids[k]);
+			compactIfNeeded();
+			return deleted;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Delete a contact. Caller must hold the write lock. */
+	private boolean deleteLocked(long id) {
+		int row = index.remove(id);
+		if (row == LongIntHashMap.NONE)
+			return false;
+		if (events.hasListeners())
+			events.publish(ContactEvent.deleted(contactAt(row)));
+		removeRow(row);
+		return true;
+	}
+
+	/**
+	 * Save or replace a contact. If the contact.id is 0 then it is assumed to
+	 * be a new (not saved) contact. In this case a unique id is assigned to the
+	 * contact. If the contact.id is not zero and the contact already exists in
+	 * saved contacts, the old contact is replaced. The fields of the contact
+	 * are copied, so later changes to the contact object are not saved.
+	 *
+	 * @param contact
+	 *            the contact to save or replace.
+	 * @return true if saved successfully
+	 */
+	public boolean save(Contact contact) {
+		if (contact.getId() == 0)
+			contact.setId(idAllocator.next());
+		lock.writeLock().lock();
+		try {
+			saveLocked(contact);
+			compactIfNeeded();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Save or replace contacts, holding the write lock once and copying the
+	 * arenas at most once for all of them.
+	 */
+	public boolean[] saveAll(List<Contact> contacts) {
+		for (Contact contact : contacts)
+			if (contact.getId() == 0)
+				contact.setId(idAllocator.next());
+		boolean[] saved = new boolean[contacts.size()];
+		lock.writeLock().lock();
+		try {
+			for (int k = 0; k < saved.length; k++) {
+				saveLocked(contacts.get(k));
+				saved[k] = true;
+			}
+			compactIfNeeded();
+			return saved;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Save or replace a contact that has an id. Caller must hold the write
+	 * lock.
+	 */
+	private void saveLocked(Contact contact) {
+		// a replaced contact moves to the end, as if it were new
+		int row = index.remove(contact.getId());
+		Contact before = null;
+		if (row != LongIntHashMap.NONE) {
+			if (events.hasListeners())
+				before = contactAt(row);
+			removeRow(row);
+		}
+		append(contact);
+		if (events.hasListeners()) {
+			// a copy, since the caller may change contact
+			Contact after = contactAt(rows - 1);
+			events.publish(before == null ? ContactEvent.created(after)
+					: ContactEvent.updated(before, after));
+		}
+	}
+
+	/**
+	 * Update a Contact. Only the fields that change are written again.
+	 *
+	 * @param update
+	 *            update info for the contact.
+	 * @return true if the update is applied successfully.
+	 */
+	public boolean update(Contact update) {
+		lock.writeLock().lock();
+		try {
+			boolean updated = updateLocked(update);
+			compactIfNeeded();
+			return updated;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Update contacts, holding the write lock once and copying the arenas at
+	 * most once for all of them.
+	 */
+	public boolean[] updateAll(List<Contact> updates) {
+		boolean[] updated = new boolean[updates.size()];
+		lock.writeLock().lock();
+		try {
+			for (int k = 0; k < updated.length; k++)
+				updated[k] = updateLocked(updates.get(k));
+			compactIfNeeded();
+			return updated;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Update a contact if its version is still the expected one, comparing
+	 * and updating under one hold of the write lock.
+	 *
+	 * @see ContactDao#updateIfVersion(Contact, String)
+	 */
+	public String updateIfVersion(Contact update, String version) {
+		lock.writeLock().lock();
+		try {
+			if (!hasVersion(update.getId(), version))
+				return null;
+			updateLocked(update);
+			compactIfNeeded();
+			return contactAt(index.get(update.getId())).sha1();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete a contact if its version is still the expected one.
+	 *
+	 * @see ContactDao#deleteIfVersion(long, String)
+	 */
+	public boolean deleteIfVersion(long id, String version) {
+		lock.writeLock().lock();
+		try {
+			if (!hasVersion(id, version))
+				return false;
+			deleteLocked(id);
+			compactIfNeeded();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Check the version of a saved contact. Caller must hold the lock. */
+	private boolean hasVersion(long id, String version) {
+		int row = index.get(id);
+		return row != LongIntHashMap.NONE
+				&& contactAt(row).sha1().equals(version);
+	}
+
+	/** Update a contact. Caller must hold the write lock. */
+	private boolean updateLocked(Contact update) {
+		int row = index.get(update.getId());
+		if (row == LongIntHashMap.NONE)
+			return false;
+		Contact contact = contactAt(row);
+		Contact updated = new Contact(contact.getId());
+		updated.applyUpdate(contact);
+		updated.applyUpdate(update);
+		unindexKey(emailIndex, contact.getId(),
+				Contact.emailKey(contact.getEmail()));
+		unindexKey(phoneIndex, contact.getId(),
+				Contact.phoneKey(contact.getPhoneNumber()));
+		indexKey(emailIndex, contact.getId(),
+				Contact.emailKey(updated.getEmail()));
+		indexKey(phoneIndex, contact.getId(),
+				Contact.phoneKey(updated.getPhoneNumber()));
+		for (int k = 0; k < COLUMNS; k++) {
+			String value = field(updated, k);
+			String old = field(contact, k);
+			if (value == null ? old == null : value.equals(old))
+				continue;
+			garbage += Math.max(0, lengths[k][row]);
+			setValue(k, row, value);
+		}
+		if (events.hasListeners())
+			events.publish(ContactEvent.updated(contact, updated));
+		return true;
+	}
+
+	public ContactEvents getContactEvents() {
+		return events;
+	}
+
+	@Override
+	public void removeAll() {
+		lock.writeLock().lock();
+		try {
+			reset(MIN_ROWS, 0);
+			emailIndex.clear();
+			phoneIndex.clear();
+			idIndex.clear();
+			if (events.hasListeners())
+				events.publish(ContactEvent.cleared());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package contact.service.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import contact.service.ContactDao;
+import contact.service.DaoFactory;
+
+/**
+ * OffHeapDaoFactory is a factory for a DAO that keeps contacts in direct
+ * memory instead of on the Java heap, for large contact books. Contacts are
+ * imported from the XML file when the factory is created and exported to it
+ * on shutdown. Select it with the system property
+ * <tt>contact.daofactory=contact.service.offheap.OffHeapDaoFactory</tt>.
+ * 
+ * @see contact.service.DaoFactory
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class OffHeapDaoFactory extends DaoFactory {
+	/** XML file of contacts. */
+	public static final String PATH = "ContactService.xml";
+	private static OffHeapDaoFactory factory;
+	private static Logger logger = Logger.getLogger(OffHeapDaoFactory.class
+			.getName());
+	private OffHeapContactDao contactDao;
+
+	public OffHeapDaoFactory() {
+		contactDao = new OffHeapContactDao();
+		File file = new File(PATH);
+		if (file.exists()) {
+			try {
+				contactDao.importFile(file);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Can't import " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Get the instance of DaoFactory.
+	 * 
+	 * @return instance of DaoFactory.
+	 */
+	public static OffHeapDaoFactory getInstance() {
+		if (factory == null)
+			factory = new OffHeapDaoFactory();
+		return factory;
+	}
+
+	@Override
+	public ContactDao getContactDao() {
+		return contactDao;
+	}
+
+	/**
+	 * Export all contacts to the XML file.
+	 */
+	@Override
+	public void shutdown() {
+		try {
+			contactDao.exportFile(new File(PATH));
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Can't export " + PATH, e);
+		}
+	}
+}
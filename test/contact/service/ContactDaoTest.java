@@ -5,11 +5,31 @@ import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import contact.entity.Contact;
 import contact.service.ContactDao;
+import contact.service.mem.ContactJournal;
+import contact.service.mem.DedupStats;
+import contact.service.mem.LongHashMap;
+import contact.service.mem.LongHashSet;
 import contact.service.mem.MemContactDao;
+import contact.service.mem.MemDaoFactory;
+import contact.service.mem.SnapshotManager;
+import contact.service.mem.SpillStats;
 
 public class ContactDaoTest {
 	ContactDao dao;
@@ -59,6 +79,28 @@ public class ContactDaoTest {
 		assertNull( "Contact not in dao", result);
 	}
 
+	@Test
+	public void testFindMany() {
+		// enough contacts to resize the index several times
+		for (int k = 1; k <= 5000; k++) {
+			Contact c = new Contact("title" + k, "name" + k, "e" + k + "@foo.com", "0812345678");
+			c.setId(k);
+			dao.save(c);
+		}
+		for (int k = 1; k <= 5000; k += 2)
+			assertTrue( dao.delete(k) );
+		assertEquals(2500, dao.findAll().size());
+		for (int k = 1; k <= 5000; k++) {
+			Contact c = dao.find(k);
+			if (k % 2 == 1) assertNull(c);
+			else assertEquals("title" + k, c.getTitle());
+		}
+		// findAll keeps insertion order
+		List<Contact> all = dao.findAll();
+		for (int k = 0; k < all.size(); k++)
+			assertEquals(2 * (k + 1), all.get(k).getId());
+	}
+
 	@Test
 	public void testFindAll() {
 		List<Contact> results = dao.findAll();
@@ -72,6 +114,665 @@ public class ContactDaoTest {
 	}
 	
 
+	@Test
+	public void testFindByTitle() {
+		saveAllContacts();
+		List<Contact> results = dao.findByTitle("contact");
+		assertEquals(3, results.size());
+		assertEquals(contact1, results.get(0));
+		assertEquals(contact3, results.get(2));
+		assertEquals(1, dao.findByTitle("ct2").size());
+		assertEquals(3, dao.findByTitle("t").size());
+		// case doesn't matter
+		assertEquals(3, dao.findByTitle("Contact").size());
+		// index must follow changes to titles
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("Master of the Universe");
+		dao.update(update);
+		assertEquals(0, dao.findByTitle("ct2").size());
+		assertEquals(1, dao.findByTitle("the Uni").size());
+		dao.delete(contact2.getId());
+		assertEquals(0, dao.findByTitle("the Uni").size());
+		assertEquals(2, dao.findByTitle("contact").size());
+		// titles are matched by their case-folded normal form C
+		Contact street = new Contact("Hauptstra\u00dfe Caf\u00e9", null, null, null);
+		dao.save(street);
+		assertEquals(street, dao.findByTitle("STRASSE").get(0));
+		assertEquals(street, dao.findByTitle("cafe\u0301").get(0));
+		assertEquals(street, dao.findByTitlePrefix("HAUPTSTRASSE", 1).get(0));
+	}
+
+	@Test
+	public void testFindByEmailAndPhone() {
+		saveAllContacts();
+		List<Contact> found = dao.findByEmail(" Sally@FOO.com");
+		assertEquals(1, found.size());
+		assertSame(contact2, found.get(0));
+		assertEquals(3, dao.findByPhoneNumber("081-234-5678").size());
+		assertTrue(dao.findByEmail("nobody@foo.com").isEmpty());
+		assertTrue(dao.findByPhoneNumber("no digits").isEmpty());
+		// the indexes follow updates and deletes
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("contact2");
+		update.setEmail("sally@bar.com");
+		update.setPhoneNumber("(02) 555 1234");
+		assertTrue(dao.update(update));
+		assertTrue(dao.findByEmail("sally@foo.com").isEmpty());
+		assertEquals(contact2, dao.findByEmail("SALLY@bar.com").get(0));
+		assertEquals(contact2, dao.findByPhoneNumber("025551234").get(0));
+		assertEquals(2, dao.findByPhoneNumber("0812345678").size());
+		dao.delete(contact1.getId());
+		assertTrue(dao.findByEmail("joe@microsoft.com").isEmpty());
+		assertEquals(1, dao.findByPhoneNumber("0812345678").size());
+	}
+
+	@Test
+	public void testFindByTitlePrefix() {
+		saveAllContacts();
+		Contact other = new Contact("Another", "Another Contact", "a@foo.com", "0812345678");
+		dao.save(other);
+		List<Contact> results = dao.findByTitlePrefix("CONT", 10);
+		assertEquals(3, results.size());
+		assertEquals(contact1, results.get(0));
+		assertEquals(contact2, results.get(1));
+		assertEquals(2, dao.findByTitlePrefix("cont", 2).size());
+		assertEquals(other, dao.findByTitlePrefix("a", 10).get(0));
+		assertEquals(0, dao.findByTitlePrefix("ontact", 10).size());
+		dao.delete(contact1.getId());
+		assertEquals(contact2, dao.findByTitlePrefix("contact", 10).get(0));
+	}
+
+	@Test
+	public void testConcurrentSaveAndFind() throws InterruptedException {
+		final int perThread = 2000;
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			writers[t] = new Thread() {
+				public void run() {
+					for (int k = 0; k < perThread; k++)
+						dao.save(new Contact("title" + k, "name", "e@foo.com", "0812345678"));
+				}
+			};
+			writers[t].start();
+		}
+		// read while the writers are adding contacts
+		int seen = 0;
+		while (seen < perThread * writers.length) {
+			seen = 0;
+			for (Contact c : dao.findAll()) {
+				assertNotNull(dao.find(c.getId()));
+				seen++;
+			}
+			dao.findByTitle("title1");
+		}
+		for (Thread writer : writers)
+			writer.join();
+		assertEquals(perThread * writers.length, dao.findAll().size());
+		assertEquals(writers.length, dao.findByTitle("title1999").size());
+	}
+
+	@Test
+	public void testJournalReplay() throws IOException {
+		File file = File.createTempFile("contacts", ".journal");
+		file.deleteOnExit();
+		ContactJournal journal = new ContactJournal(file);
+		dao = new MemContactDao(journal);
+		saveAllContacts();
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("Master of the Universe");
+		dao.update(update);
+		dao.delete(contact1.getId());
+		journal.close();
+		// a torn record at the end, as if we crashed while writing it
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length());
+		raf.writeInt(1000);
+		raf.write(new byte[10]);
+		raf.close();
+
+		journal = new ContactJournal(file);
+		ContactDao replayed = new MemContactDao(journal);
+		assertEquals(2, replayed.findAll().size());
+		assertNull(replayed.find(contact1.getId()));
+		assertEquals("Master of the Universe", replayed.find(contact2.getId()).getTitle());
+		assertEquals("contact3", replayed.find(contact3.getId()).getTitle());
+		// new changes go after the last good record
+		replayed.delete(contact3.getId());
+		journal.close();
+		replayed = new MemContactDao(new ContactJournal(file));
+		assertEquals(1, replayed.findAll().size());
+	}
+
+	@Test
+	public void testSnapshotAndCompact() throws IOException {
+		File file = File.createTempFile("contacts", ".journal");
+		file.deleteOnExit();
+		File base = new File(MemDaoFactory.SNAPSHOT_PATH);
+		ContactJournal journal = new ContactJournal(file);
+		MemContactDao memDao = new MemContactDao(journal);
+		SnapshotManager snapshots = new SnapshotManager(memDao, base, 0, 1, 10, Long.MAX_VALUE);
+		try {
+			dao = memDao;
+			saveAllContacts();
+			File delta = snapshots.snapshot();
+			assertTrue("Snapshot should write a delta segment", delta.exists());
+			assertFalse("Journal records are in the delta", journal.getRotatedFile().exists());
+			assertNull("Nothing changed", snapshots.snapshot());
+			dao.delete(contact1.getId());
+			Contact update = new Contact(contact2.getId());
+			update.setTitle("Master of the Universe");
+			dao.update(update);
+			assertNotNull(snapshots.snapshot());
+			assertEquals(2, SnapshotManager.deltaFiles(base).length);
+			dao.save(contact1);
+
+			ContactDao restored = new MemContactDao(new ContactJournal(file));
+			assertEquals(3, restored.findAll().size());
+			assertEquals("Master of the Universe", restored.find(contact2.getId()).getTitle());
+
+			snapshots.compact();
+			assertEquals(0, SnapshotManager.deltaFiles(base).length);
+			restored = new MemContactDao(new ContactJournal(file));
+			assertEquals(3, restored.findAll().size());
+			assertEquals("Master of the Universe", restored.find(contact2.getId()).getTitle());
+		} finally {
+			// leave an empty contact file for the other tests
+			memDao.removeAll();
+			memDao.checkpoint();
+		}
+	}
+
+	@Test
+	public void testLoadSnapshot() {
+		MemContactDao memDao = new MemContactDao();
+		try {
+			dao = memDao;
+			saveAllContacts();
+			assertTrue(memDao.checkpoint());
+			assertTrue(new File(MemDaoFactory.SNAPSHOT_PATH).exists());
+
+			ContactDao loaded = new MemContactDao();
+			assertEquals(3, loaded.findAll().size());
+			Contact found = loaded.find(contact2.getId());
+			assertEquals("contact2", found.getTitle());
+			assertEquals("sally@foo.com", found.getEmail());
+			assertSame("Decoded once", found, loaded.find(contact2.getId()));
+			assertEquals(1, loaded.findByTitle("contact3").size());
+			assertEquals(3, loaded.findByTitlePrefix("CONTACT", 10).size());
+			// changes to contacts that were never decoded
+			Contact update = new Contact(contact3.getId());
+			update.setTitle("Master of the Universe");
+			assertTrue(loaded.update(update));
+			assertTrue(loaded.delete(contact1.getId()));
+			assertEquals(1, loaded.findByTitle("Universe").size());
+			assertEquals(0, loaded.findByTitle("contact1").size());
+		} finally {
+			// leave an empty contact file for the other tests
+			memDao.removeAll();
+			memDao.checkpoint();
+		}
+	}
+
+	@Test
+	public void testImportFile() throws IOException {
+		File file = File.createTempFile("contacts", ".xml");
+		file.deleteOnExit();
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println("<contacts>");
+		for (int k = 1; k <= 3000; k++)
+			out.printf("<contact id=\"%d\"><title>title%d</title>"
+					+ "<name>name %d</name><email>c%d@foo.com</email></contact>%n",
+					k, k, k, k);
+		// a later contact with the same id replaces the first one
+		out.println("<contact id=\"7\"><title>Master of the Universe</title></contact>");
+		out.println("</contacts>");
+		out.close();
+
+		MemContactDao memDao = new MemContactDao();
+		memDao.importFile(file);
+		assertEquals(3000, memDao.findAll().size());
+		assertEquals("name 42", memDao.find(42).getName());
+		assertEquals("c3000@foo.com", memDao.find(3000).getEmail());
+		assertEquals("Master of the Universe", memDao.find(7).getTitle());
+		assertEquals(1, memDao.findByTitle("title2999").size());
+	}
+
+	@Test
+	public void testDedup() {
+		MemContactDao memDao = new MemContactDao(null, true);
+		memDao.removeAll();
+		for (int k = 1; k <= 100; k++) {
+			Contact c = new Contact("Acme Corp", "name" + k, "user" + k + "@acme.com", "0812345678");
+			c.setPhotoUrl("http://photos.acme.com/people/" + k + ".jpg");
+			c.setId(k);
+			memDao.save(c);
+		}
+		Contact found = memDao.find(42);
+		assertEquals("Acme Corp", found.getTitle());
+		assertEquals("user42@acme.com", found.getEmail());
+		assertEquals("http://photos.acme.com/people/42.jpg", found.getPhotoUrl());
+		assertEquals(100, memDao.findByTitle("Acme").size());
+		DedupStats stats = memDao.getDedupStats();
+		assertEquals(1, stats.getTitles());
+		assertEquals(1, stats.getEmailDomains());
+		assertEquals(1, stats.getPhotoPrefixes());
+		assertEquals(300, stats.getReferences());
+		assertTrue("Sharing should save memory", stats.getSavedBytes() > 0);
+
+		Contact update = new Contact(42);
+		update.setTitle("Other Corp");
+		update.setEmail("nobody");
+		assertTrue(memDao.update(update));
+		assertEquals("nobody", memDao.find(42).getEmail());
+		assertNull(memDao.find(42).getPhotoUrl());
+		assertTrue(memDao.delete(43));
+		stats = memDao.getDedupStats();
+		assertEquals(2, stats.getTitles());
+		assertEquals(99 + 98 + 98, stats.getReferences());
+		memDao.removeAll();
+		assertEquals(0, memDao.getDedupStats().getReferences());
+		assertNull("Values are not shared by default", dao instanceof MemContactDao
+				? ((MemContactDao) dao).getDedupStats() : null);
+	}
+
+	@Test
+	public void testHeapBudget() {
+		// room for about 10 contacts
+		MemContactDao memDao = new MemContactDao(null, false, 5000);
+		memDao.removeAll();
+		for (int k = 1; k <= 200; k++) {
+			Contact c = new Contact("company" + k, "name" + k, "user" + k + "@foo.com", "0812345678");
+			c.setId(k);
+			memDao.save(c);
+		}
+		SpillStats stats = memDao.getSpillStats();
+		assertTrue("Contacts must fit the budget", stats.getResidentBytes() <= 5000);
+		assertTrue(stats.getResidentContacts() < 20);
+		assertTrue(stats.getEvictions() >= 180);
+		assertTrue(stats.getSpillBytes() > 0);
+		// recently used contacts are found on the heap
+		assertEquals("name200", memDao.find(200).getName());
+		assertEquals(1, memDao.getSpillStats().getHits());
+		// spilled contacts are read back
+		for (int k = 1; k <= 200; k++)
+			assertEquals("user" + k + "@foo.com", memDao.find(k).getEmail());
+		stats = memDao.getSpillStats();
+		assertTrue(stats.getMisses() >= 180);
+		assertTrue(stats.getFaults() >= 180);
+		assertTrue(stats.getResidentBytes() <= 5000);
+		// indexes stay on the heap and find spilled contacts
+		assertEquals(111, memDao.findByTitle("company1").size());
+		assertEquals(1, memDao.findByEmail("user7@foo.com").size());
+		assertEquals(200, memDao.findAll().size());
+		Contact update = new Contact(3);
+		update.setTitle("moved");
+		assertTrue(memDao.update(update));
+		assertEquals("moved", memDao.find(3).getTitle());
+		assertTrue(memDao.delete(4));
+		assertNull(memDao.find(4));
+		assertEquals(10, memDao.findByTitle("company4").size());
+		memDao.removeAll();
+		assertEquals(0, memDao.getSpillStats().getResidentContacts());
+		assertNull("No budget by default", dao instanceof MemContactDao
+				? ((MemContactDao) dao).getSpillStats() : null);
+	}
+
+	@Test
+	public void testFindAllPages() {
+		dao.removeAll();
+		// ids saved out of order come back in order
+		for (long id : new long[] { 50, 10, 40, 20, 30 }) {
+			Contact c = new Contact("contact" + id, "name", null, null);
+			c.setId(id);
+			dao.save(c);
+		}
+		List<Contact> page = dao.findAll(0, 2);
+		assertEquals(2, page.size());
+		assertEquals(10, page.get(0).getId());
+		assertEquals(20, page.get(1).getId());
+		page = dao.findAll(20, 2);
+		assertEquals(30, page.get(0).getId());
+		assertEquals(40, page.get(1).getId());
+		// a contact deleted or saved between pages doesn't move later pages
+		assertTrue(dao.delete(10));
+		Contact c = new Contact("contact 5", "name", null, null);
+		c.setId(5);
+		dao.save(c);
+		page = dao.findAll(40, 2);
+		assertEquals(1, page.size());
+		assertEquals(50, page.get(0).getId());
+		assertEquals(5, dao.findAll(0, 1).get(0).getId());
+		assertTrue(dao.findAll(50, 10).isEmpty());
+	}
+
+	@Test
+	public void testBatch() {
+		saveAllContacts();
+		Contact contact4 = new Contact("contact4", "name", null, null);
+		boolean[] saved = dao.saveAll(Arrays.asList(contact4, contact1));
+		assertTrue(saved[0]);
+		assertTrue(saved[1]);
+		assertTrue(contact4.getId() > 0);
+		// found in the order of the ids, skipping ids that are not saved
+		List<Contact> found = dao.findAllById(new long[] { contact4.getId(),
+				999, contact1.getId() });
+		assertEquals(2, found.size());
+		assertEquals(contact4, found.get(0));
+		assertEquals(contact1, found.get(1));
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("batch title");
+		boolean[] updated = dao.updateAll(Arrays.asList(update,
+				new Contact(999)));
+		assertTrue(updated[0]);
+		assertFalse(updated[1]);
+		assertEquals("batch title", dao.find(contact2.getId()).getTitle());
+		boolean[] deleted = dao.deleteAll(new long[] { contact3.getId(), 999,
+				contact3.getId() });
+		assertTrue(deleted[0]);
+		assertFalse(deleted[1]);
+		assertFalse(deleted[2]);
+		assertNull(dao.find(contact3.getId()));
+		assertEquals(3, dao.findAll().size());
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		saveAllContacts();
+		ExecutorService executor = AsyncContactDao.newExecutor(1, 1);
+		AsyncContactDao async = new AsyncContactDao(dao, executor);
+		final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		ContactCallback<Object> callback = new ContactCallback<Object>() {
+			public void completed(Object result) {
+				results.add(result);
+			}
+
+			public void failed(Throwable cause) {
+				results.add(cause);
+			}
+		};
+		assertEquals(contact1, async.find(contact1.getId(), callback).get());
+		assertEquals(contact1, results.poll(1, TimeUnit.SECONDS));
+		// one call runs and one waits, so a third is rejected
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		Future<Boolean> deleted = async.delete(contact2.getId(), callback);
+		Future<Contact> rejected = async.find(contact1.getId(), callback);
+		assertTrue(results.poll(1, TimeUnit.SECONDS) instanceof RejectedExecutionException);
+		try {
+			rejected.get();
+			fail("Should be rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		release.countDown();
+		assertTrue(deleted.get());
+		assertEquals(Boolean.TRUE, results.poll(1, TimeUnit.SECONDS));
+		assertTrue(async.shutdown(1000));
+		assertNull(dao.find(contact2.getId()));
+	}
+
+	@Test
+	public void testFindAllFields() {
+		saveAllContacts();
+		List<Contact> page = dao.findAll(0, 2, ContactField.TITLES);
+		assertEquals(2, page.size());
+		assertEquals(contact1, page.get(0));
+		assertEquals("contact1", page.get(0).getTitle());
+		assertNull(page.get(0).getEmail());
+		page = dao.findAll(contact1.getId(), 10,
+				ContactField.parse("email,name"));
+		assertEquals(2, page.size());
+		assertNull(page.get(0).getTitle());
+		assertEquals("sally@foo.com", page.get(0).getEmail());
+		// titles of spilled contacts are read without bringing them back
+		MemContactDao memDao = new MemContactDao(null, false, 5000);
+		memDao.removeAll();
+		for (int k = 1; k <= 100; k++) {
+			Contact c = new Contact("company" + k, "name" + k, null, null);
+			c.setId(k);
+			memDao.save(c);
+		}
+		int resident = memDao.getSpillStats().getResidentContacts();
+		page = memDao.findAll(0, 100, ContactField.TITLES);
+		assertEquals(100, page.size());
+		assertEquals("company1", page.get(0).getTitle());
+		assertNull(page.get(0).getName());
+		assertEquals(resident, memDao.getSpillStats().getResidentContacts());
+		assertEquals(0, memDao.getSpillStats().getMisses());
+	}
+
+	@Test
+	public void testCount() {
+		saveAllContacts();
+		assertEquals(3, dao.count());
+		assertEquals(3, dao.countByTitle("CONTACT"));
+		assertEquals(1, dao.countByTitle("contact2"));
+		assertEquals(0, dao.countByTitle("nobody"));
+		assertTrue(dao.exists(contact1.getId()));
+		assertTrue(dao.delete(contact1.getId()));
+		assertFalse(dao.exists(contact1.getId()));
+		assertEquals(2, dao.count());
+	}
+
+	@Test
+	public void testIfVersion() {
+		saveAllContacts();
+		String version = contact1.sha1();
+		Contact update = new Contact("new title", "Joe Contact", null, null);
+		update.setId(contact1.getId());
+		String saved = dao.updateIfVersion(update, version);
+		assertEquals(dao.find(update.getId()).sha1(), saved);
+		// the contact changed, so the old version no longer matches
+		update.setTitle("newer title");
+		assertNull(dao.updateIfVersion(update, version));
+		assertEquals("new title", dao.find(contact1.getId()).getTitle());
+		assertFalse(dao.deleteIfVersion(contact1.getId(), version));
+		assertTrue(dao.deleteIfVersion(contact1.getId(), dao.find(contact1.getId()).sha1()));
+		assertNull(dao.find(contact1.getId()));
+		assertFalse(dao.deleteIfVersion(contact1.getId(), version));
+	}
+
+	@Test
+	public void testStreamAll() {
+		saveAllContacts();
+		ContactCursor cursor = dao.streamAll();
+		try {
+			assertEquals(contact1, cursor.next());
+			// the cursor reads a snapshot, like findAll
+			dao.delete(contact2.getId());
+			assertEquals(contact2, cursor.next());
+			assertEquals(contact3, cursor.next());
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+		cursor = dao.streamAll();
+		cursor.close();
+		cursor.close();
+	}
+
+	@Test
+	public void testChangeEvents() throws InterruptedException {
+		final BlockingQueue<ContactEvent> received = new LinkedBlockingQueue<ContactEvent>();
+		final CountDownLatch delivering = new CountDownLatch(1);
+		final CountDownLatch slow = new CountDownLatch(1);
+		dao.getContactEvents().addListener(new ContactListener() {
+			public void contactsChanged(List<ContactEvent> events) {
+				delivering.countDown();
+				try {
+					// a slow listener doesn't hold up writes
+					slow.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				received.addAll(events);
+			}
+		});
+		dao.save(contact1);
+		assertTrue(delivering.await(5, TimeUnit.SECONDS));
+		Contact update = new Contact(contact1.getId());
+		update.setTitle("updated");
+		assertTrue(dao.update(update));
+		dao.save(contact2);
+		assertTrue(dao.delete(contact2.getId()));
+		dao.removeAll();
+		slow.countDown();
+		ContactEvent.Type[] types = { ContactEvent.Type.CREATED,
+				ContactEvent.Type.UPDATED, ContactEvent.Type.CREATED,
+				ContactEvent.Type.DELETED, ContactEvent.Type.CLEARED };
+		ContactEvent[] events = new ContactEvent[types.length];
+		for (int k = 0; k < types.length; k++) {
+			events[k] = received.poll(5, TimeUnit.SECONDS);
+			assertEquals(types[k], events[k].getType());
+		}
+		assertEquals("contact1", events[1].getBefore().getTitle());
+		assertEquals("updated", events[1].getAfter().getTitle());
+		assertEquals(contact2.getId(), events[3].getId());
+		assertEquals("contact2", events[3].getBefore().getTitle());
+		assertNull(events[3].getAfter());
+	}
+
+	@Test
+	public void testIdsSkipUsedIds() {
+		// ids chosen by the client are never allocated again
+		for (long id = 1000; id < 1100; id += 2) {
+			Contact c = new Contact("taken" + id, null, null, null);
+			c.setId(id);
+			dao.save(c);
+		}
+		for (int k = 0; k < 100; k++)
+			dao.save(new Contact("new" + k, null, null, null));
+		assertEquals(150, dao.findAll().size());
+		for (Contact c : dao.findAll())
+			if (c.getTitle().startsWith("new"))
+				assertTrue("Allocated id must be odd or above 1100",
+						c.getId() % 2 == 1 || c.getId() >= 1100);
+	}
+
+	@Test
+	public void testIdAllocatorThreads() throws InterruptedException {
+		final IdAllocator ids = new IdAllocator(1, 100);
+		ids.markUsed(5);
+		final long[][] allocated = new long[4][5000];
+		Thread[] threads = new Thread[allocated.length];
+		for (int t = 0; t < threads.length; t++) {
+			final long[] mine = allocated[t];
+			threads[t] = new Thread() {
+				public void run() {
+					for (int k = 0; k < mine.length; k++)
+						mine[k] = ids.next();
+				}
+			};
+			threads[t].start();
+		}
+		LongHashSet seen = new LongHashSet();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			for (long id : allocated[t]) {
+				assertTrue("Ids must be unique", seen.add(id));
+				assertTrue(ids.isUsed(id));
+			}
+		}
+		assertFalse("Marked id must not be allocated", seen.contains(5));
+		ids.skipTo(1000000);
+		assertTrue(ids.next() >= 1000000);
+	}
+
+	@Test
+	public void testFindAllSnapshot() throws InterruptedException {
+		for (int k = 0; k < 1000; k++)
+			dao.save(new Contact("v0", null, null, null));
+		final List<Contact> before = dao.findAll();
+		// rewrite every contact while the list is read
+		Thread writer = new Thread() {
+			public void run() {
+				for (Contact c : dao.findAll()) {
+					Contact update = new Contact(c.getId());
+					update.setTitle("v1");
+					dao.update(update);
+				}
+				dao.delete(before.get(0).getId());
+				dao.save(new Contact("new", null, null, null));
+			}
+		};
+		writer.start();
+		int count = 0;
+		for (Contact c : before) {
+			assertEquals("v0", c.getTitle());
+			count++;
+		}
+		writer.join();
+		assertEquals(1000, count);
+		assertEquals(1000, before.size());
+		for (Contact c : before)
+			assertEquals("v0", c.getTitle());
+		List<Contact> after = dao.findAll();
+		assertEquals(1000, after.size());
+		assertEquals("new", after.get(999).getTitle());
+	}
+
+	@Test
+	public void testScan() {
+		MemContactDao memDao = (MemContactDao) dao;
+		for (int k = 0; k < 50000; k++)
+			dao.save(new Contact("contact" + k, null, "e" + k
+					+ (k % 7 == 0 ? "@seven.com" : "@foo.com"), null));
+		ContactPredicate seven = new ContactPredicate() {
+			public boolean matches(Contact contact) {
+				return contact.getEmail().endsWith("@seven.com");
+			}
+		};
+		List<Contact> found = memDao.scan(seven, Integer.MAX_VALUE);
+		assertEquals(7143, found.size());
+		for (int k = 0; k < found.size(); k++)
+			assertEquals("contact" + 7 * k, found.get(k).getTitle());
+		found = memDao.scan(seven, 10);
+		assertEquals(10, found.size());
+		for (Contact c : found)
+			assertTrue(seven.matches(c));
+		assertTrue(memDao.scan(seven, 0).isEmpty());
+	}
+
+	@Test
+	public void testSnapshotUndoReclaimed() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		for (long k = 1; k <= 100; k++)
+			map.put(k, "a" + k);
+		LongHashMap<String>.Snapshot first = map.snapshot();
+		map.put(1, "b1");
+		LongHashMap<String>.Snapshot second = map.snapshot();
+		map.put(1, "c1");
+		map.remove(2);
+		for (long k = 101; k <= 200; k++)
+			map.put(k, "a" + k);
+		assertEquals(3, map.getUndoRecords());
+		assertEquals(100, first.size());
+		assertEquals("a1", first.get(0));
+		assertEquals("a2", first.get(1));
+		assertEquals("b1", second.get(0));
+		assertEquals(199, map.size());
+		first.close();
+		map.put(3, "b3");
+		// only the changes after the second snapshot are kept
+		assertEquals(3, map.getUndoRecords());
+		assertEquals("b1", second.get(0));
+		assertEquals("a3", second.get(2));
+		second.close();
+		map.put(4, "b4");
+		assertEquals(0, map.getUndoRecords());
+	}
+
 	@Test
 	public void testDelete() {
 		dao.save(contact1);
@@ -89,16 +790,18 @@ public class ContactDaoTest {
 		assertEquals("Added 3 contacts", 3, all.size() );
 		id = contact2.getId();
 		assertTrue( dao.delete(id) );
-		assertEquals( 2, all.size() );
+		assertEquals( 2, dao.findAll().size() );
 		assertFalse( dao.delete(id) );
 		id = contact1.getId();
 		assertTrue( dao.delete(id) );
-		assertEquals( 1, all.size() );
+		assertEquals( 1, dao.findAll().size() );
 		assertFalse( dao.delete(id) );
 		id = contact3.getId();
 		assertTrue( dao.delete(id) );
-		assertEquals( 0, all.size() );
+		assertEquals( 0, dao.findAll().size() );
 		assertFalse( dao.delete(id) );
+		// the list found before the deletes doesn't change
+		assertEquals( 3, all.size() );
 	}
 	
 	//This is PATCHED
@@ -0,0 +1,83 @@
+package contact.service;
+
+import java.util.ArrayList;
+
+import contact.entity.Contact;
+import contact.service.mem.MemContactDao;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Compare the heap used by MemContactDao, with and without deduplicated
+ * fields, and OffHeapContactDao to hold the same contacts, and the time of a
+ * full garbage collection with each. The number of contacts is the first
+ * argument (default 1000000); run with a large enough -Xmx and
+ * -XX:MaxDirectMemorySize. This is not a JUnit test; run it with main.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class ContactHeapBenchmark {
+
+	public static void main(String[] args) {
+		int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		System.out.println("dao        heap MB  off-heap MB  full gc ms");
+		long base = usedHeap();
+		MemContactDao mem = new MemContactDao();
+		empty(mem);
+		fill(mem, contacts);
+		long gc = gcMillis();
+		System.out.printf("mem      %9d  %11d  %9d%n", (usedHeap() - base) >> 20,
+				0, gc);
+		mem.removeAll();
+		mem = null;
+
+		base = usedHeap();
+		MemContactDao dedup = new MemContactDao(null, true);
+		empty(dedup);
+		fill(dedup, contacts);
+		gc = gcMillis();
+		System.out.printf("dedup    %9d  %11d  %9d  (%s)%n",
+				(usedHeap() - base) >> 20, 0, gc, dedup.getDedupStats());
+		dedup.removeAll();
+		dedup = null;
+
+		base = usedHeap();
+		OffHeapContactDao offHeap = new OffHeapContactDao();
+		fill(offHeap, contacts);
+		gc = gcMillis();
+		System.out.printf("off-heap %9d  %11d  %9d%n", (usedHeap() - base) >> 20,
+				offHeap.getOffHeapBytes() >> 20, gc);
+	}
+
+	/**
+	 * Delete the contacts loaded from the working directory. Unlike
+	 * removeAll, this leaves the title indexes unbuilt, so only the contacts
+	 * are measured.
+	 */
+	static void empty(ContactDao dao) {
+		for (Contact c : new ArrayList<Contact>(dao.findAll()))
+			dao.delete(c.getId());
+	}
+
+	static void fill(ContactDao dao, int contacts) {
+		for (int k = 1; k <= contacts; k++) {
+			// 1000 companies, each with its own email domain
+			Contact c = new Contact("company" + (k % 1000), "name" + k, "user"
+					+ k + "@company" + (k % 1000) + ".com", "0812345678");
+			c.setPhotoUrl("http://photos.example.com/" + k + ".jpg");
+			c.setId(k);
+			dao.save(c);
+		}
+	}
+
+	static long usedHeap() {
+		gcMillis();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static long gcMillis() {
+		long start = System.nanoTime();
+		System.gc();
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
@@ -185,6 +185,38 @@ public class EtagContactServiceTest {
 		}
 	}
 
+	/**
+	 * Test that an ETag doesn't match after a change made with it, so a
+	 * client can't overwrite a change it hasn't seen.
+	 */
+	@Test
+	public void testEtagStaleAfterPut() {
+		long testId = 112224;
+		post(testId);
+		String etag = get(testId).getHeaders().get(HttpHeader.ETAG);
+		Request req = client.newRequest(serviceUrl + testId);
+		req = req.content(new StringContentProvider("<contact id=\"" + testId
+				+ "\"><title>changed</title></contact>"), "application/xml");
+		req = req.header(HttpHeader.IF_MATCH, etag);
+		req = req.method(HttpMethod.PUT);
+		try {
+			ContentResponse put = req.send();
+			assertEquals(Response.Status.OK.getStatusCode(), put.getStatus());
+			String newEtag = put.getHeaders().get(HttpHeader.ETAG);
+			assertFalse(etag.equals(newEtag));
+			// the ETag of the saved contact, so a later GET has the same one
+			assertEquals(newEtag, get(testId).getHeaders().get(HttpHeader.ETAG));
+			ContentResponse stale = client.newRequest(serviceUrl + testId)
+					.header(HttpHeader.IF_MATCH, etag).method(HttpMethod.DELETE).send();
+			assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), stale.getStatus());
+			ContentResponse fresh = client.newRequest(serviceUrl + testId)
+					.header(HttpHeader.IF_MATCH, newEtag).method(HttpMethod.DELETE).send();
+			assertEquals(Response.Status.OK.getStatusCode(), fresh.getStatus());
+		} catch (InterruptedException | TimeoutException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Test response in delete method if IF-Match = True should return 200 OK.
 	 */
@@ -1,10 +1,18 @@
 package contact.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.AfterClass;
 import org.junit.Assume;
 import org.junit.Before;
@@ -67,6 +75,148 @@ public class JpaContactDaoTest {
 		assertSame("DAO should return the same object reference", foo, fooAgain);
 	}
 
+	@Test
+	public void testFindByEmailAndPhone() {
+		assertTrue(contactDao.save(foo));
+		List<Contact> found = contactDao.findByEmail("FOO@bar.com");
+		assertTrue(found.contains(foo));
+		assertTrue(contactDao.findByPhoneNumber("081-234-5678").contains(foo));
+		Contact update = new Contact(foo.getId());
+		update.setTitle("foo title");
+		update.setEmail("foo@baz.com");
+		assertTrue(contactDao.update(update));
+		assertFalse(contactDao.findByEmail("foo@bar.com").contains(foo));
+		assertTrue(contactDao.findByEmail("Foo@Baz.com").contains(foo));
+		assertTrue(contactDao.delete(foo.getId()));
+	}
+
+	@Test
+	public void testFindAllPages() {
+		assertTrue(contactDao.save(foo));
+		Contact bar = new Contact("bar title", "Bar Foo", "bar@foo.com", "0812345678");
+		assertTrue(contactDao.save(bar));
+		List<Contact> page = contactDao.findAll(foo.getId() - 1, 1);
+		assertEquals(1, page.size());
+		assertEquals(foo.getId(), page.get(0).getId());
+		page = contactDao.findAll(foo.getId(), 10);
+		assertEquals(bar.getId(), page.get(0).getId());
+		assertTrue(contactDao.findAll(bar.getId(), 10).isEmpty());
+		assertTrue(contactDao.delete(foo.getId()));
+		assertTrue(contactDao.delete(bar.getId()));
+	}
+
+	@Test
+	public void testBatch() {
+		Contact bar = new Contact("bar title", "Bar Foo", "bar@foo.com", "0812345678");
+		boolean[] saved = contactDao.saveAll(Arrays.asList(foo, bar));
+		assertTrue(saved[0]);
+		assertTrue(saved[1]);
+		// a contact that is saved already is not saved again
+		assertFalse(contactDao.saveAll(Arrays.asList(foo))[0]);
+		List<Contact> found = contactDao.findAllById(new long[] { bar.getId(),
+				foo.getId() });
+		assertEquals(2, found.size());
+		assertEquals(bar.getId(), found.get(0).getId());
+		assertEquals(foo.getId(), found.get(1).getId());
+		Contact update = new Contact("batch title", "Bar Foo", "bar@foo.com", "0812345678");
+		update.setId(bar.getId());
+		assertTrue(contactDao.updateAll(Arrays.asList(update))[0]);
+		assertEquals("batch title", contactDao.find(bar.getId()).getTitle());
+		boolean[] deleted = contactDao.deleteAll(new long[] { foo.getId(),
+				bar.getId() });
+		assertTrue(deleted[0]);
+		assertTrue(deleted[1]);
+		assertTrue(contactDao.findAllById(new long[] { foo.getId() }).isEmpty());
+	}
+
+	@Test
+	public void testFindAllFields() {
+		assertTrue(contactDao.save(foo));
+		List<Contact> page = contactDao.findAll(foo.getId() - 1, 1,
+				ContactField.TITLES);
+		assertEquals(1, page.size());
+		assertEquals(foo.getId(), page.get(0).getId());
+		assertEquals(foo.getTitle(), page.get(0).getTitle());
+		assertNull(page.get(0).getEmail());
+		page = contactDao.findAll(foo.getId() - 1, 1,
+				ContactField.parse("id"));
+		assertEquals(foo.getId(), page.get(0).getId());
+		assertNull(page.get(0).getTitle());
+		assertTrue(contactDao.delete(foo.getId()));
+	}
+
+	@Test
+	public void testCount() {
+		long count = contactDao.count();
+		long titles = contactDao.countByTitle("FOO TITLE");
+		assertTrue(contactDao.save(foo));
+		assertEquals(count + 1, contactDao.count());
+		assertEquals(titles + 1, contactDao.countByTitle("FOO TITLE"));
+		assertTrue(contactDao.exists(foo.getId()));
+		assertTrue(contactDao.delete(foo.getId()));
+		assertFalse(contactDao.exists(foo.getId()));
+	}
+
+	@Test
+	public void testIfVersion() {
+		assertTrue(contactDao.save(foo));
+		String version = contactDao.find(foo.getId()).sha1();
+		Contact update = new Contact("new title", "Foo Bar", "foo@bar.com", "0812345678");
+		update.setId(foo.getId());
+		String saved = contactDao.updateIfVersion(update, version);
+		assertEquals(contactDao.find(update.getId()).sha1(), saved);
+		assertEquals("new title", contactDao.find(foo.getId()).getTitle());
+		assertNull(contactDao.updateIfVersion(update, version));
+		assertFalse(contactDao.deleteIfVersion(foo.getId(), version));
+		assertTrue(contactDao.deleteIfVersion(foo.getId(), contactDao.find(foo.getId()).sha1()));
+		assertFalse(contactDao.exists(foo.getId()));
+	}
+
+	@Test
+	public void testStreamAll() {
+		assertTrue(contactDao.save(foo));
+		ContactCursor cursor = contactDao.streamAll();
+		boolean found = false;
+		long last = 0;
+		try {
+			while (cursor.hasNext()) {
+				Contact contact = cursor.next();
+				assertTrue("Should be ordered by id", contact.getId() > last);
+				last = contact.getId();
+				found |= contact.getId() == foo.getId();
+			}
+		} finally {
+			cursor.close();
+		}
+		assertTrue(found);
+		assertTrue(contactDao.delete(foo.getId()));
+	}
+
+	@Test
+	public void testChangeEvents() throws InterruptedException {
+		final BlockingQueue<ContactEvent> received = new LinkedBlockingQueue<ContactEvent>();
+		contactDao.getContactEvents().addListener(new ContactListener() {
+			public void contactsChanged(List<ContactEvent> events) {
+				received.addAll(events);
+			}
+		});
+		assertTrue(contactDao.save(foo));
+		Contact update = new Contact(foo.getId());
+		update.setTitle("bar title");
+		assertTrue(contactDao.update(update));
+		assertTrue(contactDao.delete(foo.getId()));
+		ContactEvent created = received.poll(5, TimeUnit.SECONDS);
+		assertEquals(ContactEvent.Type.CREATED, created.getType());
+		assertEquals(foo.getId(), created.getId());
+		ContactEvent updated = received.poll(5, TimeUnit.SECONDS);
+		assertEquals(ContactEvent.Type.UPDATED, updated.getType());
+		assertEquals("foo title", updated.getBefore().getTitle());
+		assertEquals("bar title", updated.getAfter().getTitle());
+		ContactEvent deleted = received.poll(5, TimeUnit.SECONDS);
+		assertEquals(ContactEvent.Type.DELETED, deleted.getType());
+		assertEquals(foo.getId(), deleted.getId());
+	}
+
 	// this test requires that testSaveAndFind be performed first
 	// Answer : Can't order it should add again.
 	@Test
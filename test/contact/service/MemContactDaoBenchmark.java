@@ -0,0 +1,92 @@
+package contact.service;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import contact.entity.Contact;
+import contact.service.mem.MemContactDao;
+
+/**
+ * Measure the throughput of MemContactDao with several threads, for a mix of
+ * 90% find, 5% findByTitle and 5% update. Each thread count is run twice:
+ * once calling the DAO directly, and once with every call inside one
+ * synchronized block, which is how the DAO would have to be used if it was
+ * not thread-safe. This is not a JUnit test; run it with main.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class MemContactDaoBenchmark {
+	static final int CONTACTS = 100000;
+	static final int[] THREADS = { 1, 2, 4, 8 };
+	static final long MILLIS = 2000;
+
+	public static void main(String[] args) throws InterruptedException {
+		MemContactDao dao = new MemContactDao();
+		dao.removeAll();
+		for (int k = 1; k <= CONTACTS; k++) {
+			Contact c = new Contact("company" + (k % 1000) + " contact" + k,
+					"name" + k, "e" + k + "@foo.com", "0812345678");
+			c.setId(k);
+			dao.save(c);
+		}
+		System.out.println("threads  synchronized ops/s  concurrent ops/s");
+		for (int threads : THREADS) {
+			long locked = run(dao, threads, true);
+			long free = run(dao, threads, false);
+			System.out.printf("%7d  %19d  %16d%n", threads, locked, free);
+		}
+	}
+
+	/**
+	 * Run the workload for MILLIS milliseconds.
+	 *
+	 * @return number of operations per second
+	 */
+	static long run(final ContactDao dao, int threads, final boolean synchronize)
+			throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			new Thread() {
+				public void run() {
+					long count = 0;
+					while (running.get()) {
+						if (synchronize) {
+							synchronized (dao) {
+								operation(dao, random);
+							}
+						} else {
+							operation(dao, random);
+						}
+						count++;
+					}
+					ops.addAndGet(count);
+					done.countDown();
+				}
+			}.start();
+		}
+		Thread.sleep(MILLIS);
+		running.set(false);
+		done.await();
+		return ops.get() * 1000 / MILLIS;
+	}
+
+	static void operation(ContactDao dao, Random random) {
+		int id = 1 + random.nextInt(CONTACTS);
+		int kind = random.nextInt(100);
+		if (kind < 90) {
+			dao.find(id);
+		} else if (kind < 95) {
+			dao.findByTitle("contact" + id);
+		} else {
+			Contact update = new Contact(id);
+			update.setTitle("company" + (id % 1000) + " contact" + id);
+			update.setName("name" + random.nextInt());
+			dao.update(update);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package contact.service;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Tests of the off-heap DAO. Contacts are copied in and out of direct memory,
+ * so a saved contact is equal to, but not the same object as, a found one.
+ * 
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class OffHeapContactDaoTest {
+	OffHeapContactDao dao;
+	Contact contact1;
+	Contact contact2;
+	Contact contact3;
+
+	@Before
+	public void setUp() {
+		dao = new OffHeapContactDao();
+		contact1 = new Contact("contact1", "Joe Contact", "joe@microsoft.com","0812345678");
+		contact2 = new Contact("contact2", "Sally Contract", "sally@foo.com","0812345678");
+		contact3 = new Contact("contact3", "Foo Bar", "foo@barclub.com","0812345678");
+		dao.save(contact1);
+		dao.save(contact2);
+		dao.save(contact3);
+	}
+
+	@Test
+	public void testSaveAndFind() {
+		assertTrue("DAO must assign contact id", contact1.getId() > 0);
+		Contact found = dao.find(contact2.getId());
+		assertEquals(contact2, found);
+		assertEquals("Sally Contract", found.getName());
+		assertEquals("sally@foo.com", found.getEmail());
+		assertEquals("", found.getPhotoUrl());
+		// changing a found contact doesn't change the saved one
+		found.setName("Nobody");
+		assertEquals("Sally Contract", dao.find(contact2.getId()).getName());
+		assertNull(dao.find(1));
+	}
+
+	@Test
+	public void testFindByEmailAndPhone() {
+		List<Contact> found = dao.findByEmail("SALLY@foo.com ");
+		assertEquals(1, found.size());
+		assertEquals(contact2, found.get(0));
+		assertEquals(3, dao.findByPhoneNumber("081 234 5678").size());
+		Contact update = new Contact(contact2.getId());
+		update.setEmail("sally@bar.com");
+		assertTrue(dao.update(update));
+		assertTrue(dao.findByEmail("sally@foo.com").isEmpty());
+		assertEquals(contact2, dao.findByEmail("sally@bar.com").get(0));
+		// the update set the phone number to null
+		assertEquals(2, dao.findByPhoneNumber("0812345678").size());
+		dao.delete(contact1.getId());
+		assertTrue(dao.findByEmail("joe@microsoft.com").isEmpty());
+		dao.removeAll();
+		assertTrue(dao.findByPhoneNumber("0812345678").isEmpty());
+	}
+
+	@Test
+	public void testFindAllPages() {
+		List<Contact> page = dao.findAll(0, 2);
+		assertEquals(2, page.size());
+		assertEquals(contact1, page.get(0));
+		assertEquals(contact2, page.get(1));
+		page = dao.findAll(contact2.getId(), 2);
+		assertEquals(1, page.size());
+		assertEquals(contact3, page.get(0));
+		// a replaced contact keeps its place in id order
+		dao.save(new Contact(contact1.getId()));
+		assertEquals(contact1.getId(), dao.findAll(0, 1).get(0).getId());
+		assertTrue(dao.delete(contact2.getId()));
+		assertEquals(contact3, dao.findAll(contact1.getId(), 2).get(0));
+	}
+
+	@Test
+	public void testFindAllFields() {
+		List<Contact> page = dao.findAll(0, 2, ContactField.TITLES);
+		assertEquals(2, page.size());
+		assertEquals(contact1.getTitle(), page.get(0).getTitle());
+		assertNull(page.get(0).getName());
+		assertNull(page.get(1).getEmail());
+		page = dao.findAll(contact2.getId(), 2, ContactField.parse("email"));
+		assertEquals(contact3, page.get(0));
+		assertNull(page.get(0).getTitle());
+		assertEquals(contact3.getEmail(), page.get(0).getEmail());
+	}
+
+	@Test
+	public void testCount() {
+		assertEquals(3, dao.count());
+		assertEquals(1, dao.countByTitle(contact2.getTitle().toUpperCase()));
+		assertTrue(dao.exists(contact3.getId()));
+		assertTrue(dao.delete(contact3.getId()));
+		assertFalse(dao.exists(contact3.getId()));
+		assertEquals(2, dao.count());
+	}
+
+	@Test
+	public void testIfVersion() {
+		String version = dao.find(contact2.getId()).sha1();
+		Contact update = new Contact("new title", null, null, null);
+		update.setId(contact2.getId());
+		String saved = dao.updateIfVersion(update, version);
+		assertEquals(dao.find(update.getId()).sha1(), saved);
+		assertNull(dao.updateIfVersion(update, version));
+		assertFalse(dao.deleteIfVersion(contact2.getId(), version));
+		assertTrue(dao.deleteIfVersion(contact2.getId(), dao.find(contact2.getId()).sha1()));
+		assertFalse(dao.exists(contact2.getId()));
+	}
+
+	@Test
+	public void testStreamAll() {
+		ContactCursor cursor = dao.streamAll();
+		try {
+			assertEquals(contact1, cursor.next());
+			assertEquals(contact2, cursor.next());
+			assertEquals(contact3, cursor.next());
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void testSaveReplaces() {
+		Contact replacement = new Contact(contact1.getId());
+		replacement.setTitle("new title");
+		assertTrue(dao.save(replacement));
+		List<Contact> all = dao.findAll();
+		assertEquals(3, all.size());
+		assertEquals("A replaced contact moves to the end", contact1, all.get(2));
+		assertNull(dao.find(contact1.getId()).getName());
+	}
+
+	@Test
+	public void testUpdateAndDelete() {
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("Master of the Universe");
+		update.setEmail("sally@foo.com");
+		assertTrue(dao.update(update));
+		Contact found = dao.find(contact2.getId());
+		assertEquals("Master of the Universe", found.getTitle());
+		assertNull(found.getName());
+		assertTrue(dao.delete(contact1.getId()));
+		assertFalse(dao.delete(contact1.getId()));
+		assertFalse(dao.update(contact1));
+		assertEquals(2, dao.findAll().size());
+		dao.removeAll();
+		assertEquals(0, dao.findAll().size());
+	}
+
+	@Test
+	public void testFindByTitle() {
+		assertEquals(3, dao.findByTitle("contact").size());
+		assertEquals(1, dao.findByTitle("act2").size());
+		assertEquals(3, dao.findByTitle("Contact").size());
+		Contact street = new Contact("Hauptstra\u00dfe Caf\u00e9", null, null, null);
+		dao.save(street);
+		assertEquals(street, dao.findByTitle("STRASSE").get(0));
+		assertEquals(street, dao.findByTitle("cafe\u0301").get(0));
+		assertEquals(street, dao.findByTitlePrefix("HAUPTSTRASSE", 1).get(0));
+		Contact thai = new Contact("สวัสดี ka", null, null, null);
+		dao.save(thai);
+		assertEquals(thai, dao.findByTitle("สดี").get(0));
+		List<Contact> prefix = dao.findByTitlePrefix("CONTACT", 2);
+		assertEquals(2, prefix.size());
+		assertEquals(contact1, prefix.get(0));
+		assertEquals(contact2, prefix.get(1));
+	}
+
+	@Test
+	public void testManyChanges() {
+		// enough changes to copy the arenas several times
+		for (int k = 0; k < 20000; k++) {
+			Contact c = new Contact("title" + k, "name" + k, "e" + k + "@foo.com", "0812345678");
+			dao.save(c);
+			Contact update = new Contact(c.getId());
+			update.setTitle("updated title" + k);
+			update.setName("a much longer name to leave garbage " + k);
+			dao.update(update);
+			if (k % 3 != 0)
+				dao.delete(c.getId());
+		}
+		List<Contact> all = dao.findAll();
+		assertEquals(3 + 6667, all.size());
+		assertEquals(contact1, all.get(0));
+		Contact last = all.get(all.size() - 1);
+		assertEquals("updated title19998", last.getTitle());
+		assertEquals("a much longer name to leave garbage 19998", dao.find(last.getId()).getName());
+		assertEquals(1, dao.findByTitle("title19998").size());
+	}
+
+	@Test
+	public void testExportAndImport() throws IOException {
+		File file = File.createTempFile("contacts", ".xml");
+		file.deleteOnExit();
+		dao.exportFile(file);
+		OffHeapContactDao imported = new OffHeapContactDao();
+		imported.importFile(file);
+		assertEquals(3, imported.findAll().size());
+		assertEquals("Foo Bar", imported.find(contact3.getId()).getName());
+	}
+}
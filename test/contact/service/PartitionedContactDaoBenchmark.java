@@ -0,0 +1,45 @@
+package contact.service;
+
+import contact.entity.Contact;
+import contact.service.mem.MemContactDao;
+import contact.service.mem.PartitionedContactDao;
+
+/**
+ * Measure how the throughput of MemContactDao and PartitionedContactDao
+ * scales from 1 to 32 threads, with the workload of
+ * {@link MemContactDaoBenchmark}. The number of partitions is the first
+ * argument, or the number of processors. This is not a JUnit test; run it
+ * with main.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class PartitionedContactDaoBenchmark {
+	static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+	public static void main(String[] args) throws InterruptedException {
+		int partitions = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors();
+		MemContactDao single = new MemContactDao();
+		single.removeAll();
+		fill(single);
+		PartitionedContactDao partitioned = new PartitionedContactDao(
+				partitions, false);
+		fill(partitioned);
+		System.out.printf("threads  single ops/s  %d partitions ops/s%n",
+				partitions);
+		for (int threads : THREADS) {
+			long one = MemContactDaoBenchmark.run(single, threads, false);
+			long many = MemContactDaoBenchmark.run(partitioned, threads, false);
+			System.out.printf("%7d  %12d  %18d%n", threads, one, many);
+		}
+	}
+
+	static void fill(ContactDao dao) {
+		for (int k = 1; k <= MemContactDaoBenchmark.CONTACTS; k++) {
+			Contact c = new Contact("company" + (k % 1000) + " contact" + k,
+					"name" + k, "e" + k + "@foo.com", "0812345678");
+			c.setId(k);
+			dao.save(c);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package contact.service;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.mem.PartitionedContactDao;
+
+/**
+ * Tests of the partitioned DAO. Results that come from all partitions are
+ * ordered by id.
+ *
+ * @author Veerapat Threeravipark 5510547022
+ */
+public class PartitionedContactDaoTest {
+	PartitionedContactDao dao;
+
+	@Before
+	public void setUp() {
+		dao = new PartitionedContactDao(8, false);
+		for (int k = 0; k < 200; k++)
+			dao.save(new Contact("company" + (k % 10) + " contact" + k, "name"
+					+ k, "e" + k + "@foo.com", "0812345678"));
+	}
+
+	@Test
+	public void testFindAllIsOrderedById() {
+		List<Contact> all = dao.findAll();
+		assertEquals(200, all.size());
+		for (int k = 1; k < all.size(); k++)
+			assertTrue(all.get(k - 1).getId() < all.get(k).getId());
+		Contact first = all.get(0);
+		assertSame(first, dao.find(first.getId()));
+	}
+
+	@Test
+	public void testFindAllPages() {
+		List<Contact> all = dao.findAll();
+		long after = 0;
+		int count = 0;
+		List<Contact> page;
+		while (!(page = dao.findAll(after, 30)).isEmpty()) {
+			assertEquals(all.subList(count, count + page.size()), page);
+			count += page.size();
+			after = page.get(page.size() - 1).getId();
+		}
+		assertEquals(200, count);
+	}
+
+	@Test
+	public void testWritesGoToOnePartition() {
+		Contact contact = dao.findAll().get(17);
+		Contact update = new Contact(contact.getId());
+		update.setTitle("updated");
+		assertTrue(dao.update(update));
+		assertEquals("updated", dao.find(contact.getId()).getTitle());
+		Contact replacement = new Contact(contact.getId());
+		replacement.setTitle("replaced");
+		assertTrue(dao.save(replacement));
+		assertEquals(200, dao.findAll().size());
+		assertSame(replacement, dao.find(contact.getId()));
+		assertTrue(dao.delete(contact.getId()));
+		assertFalse(dao.delete(contact.getId()));
+		assertNull(dao.find(contact.getId()));
+		assertEquals(199, dao.findAll().size());
+		dao.removeAll();
+		assertEquals(0, dao.findAll().size());
+	}
+
+	@Test
+	public void testFindByTitle() {
+		List<Contact> found = dao.findByTitle("company3 ");
+		assertEquals(20, found.size());
+		for (int k = 0; k < found.size(); k++) {
+			assertTrue(found.get(k).getTitle().startsWith("company3 "));
+			if (k > 0)
+				assertTrue(found.get(k - 1).getId() < found.get(k).getId());
+		}
+		assertEquals(1, dao.findByTitle("contact199").size());
+	}
+
+	@Test
+	public void testFindByTitlePrefix() {
+		List<Contact> found = dao.findByTitlePrefix("COMPANY1 contact1", 5);
+		assertEquals(5, found.size());
+		assertEquals("company1 contact1", found.get(0).getTitle());
+		assertEquals("company1 contact101", found.get(1).getTitle());
+		assertEquals("company1 contact11", found.get(2).getTitle());
+		assertEquals("company1 contact111", found.get(3).getTitle());
+		assertEquals("company1 contact121", found.get(4).getTitle());
+		assertEquals(2, dao.findByTitlePrefix("company1 contact11", 10).size());
+	}
+
+	@Test
+	public void testExportAndImport() throws IOException {
+		File file = File.createTempFile("partitioned", ".xml");
+		try {
+			dao.exportFile(file);
+			PartitionedContactDao other = new PartitionedContactDao(3, false);
+			other.importFile(file);
+			assertEquals(dao.findAll(), other.findAll());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package contact.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.core.Response;
@@ -17,6 +20,7 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import contact.entity.Contact;
 import contact.server.JettyMain;
 
 /**
@@ -35,6 +39,9 @@ public class WebServiceTest {
 		// Start the Jetty server.
 		// Suppose this method returns the URL (with port) of the server
 		System.out.println("Start test");
+		// one thread for the DAO, as for JPA, so a call that waits for the
+		// pool from the pool hangs
+		System.setProperty("contact.async.threads", "1");
 		try {
 			String url = JettyMain.startServer(8080);
 			serviceUrl = url + "contacts/";
@@ -56,6 +63,7 @@ public class WebServiceTest {
 			e.printStackTrace();
 		}
 		JettyMain.stopServer();
+		System.clearProperty("contact.async.threads");
 	}
 	
 	@After
@@ -150,6 +158,193 @@ public class WebServiceTest {
 		assertEquals("Should response with 404 NOT_FOUND if delete fail.",Response.Status.NOT_FOUND.getStatusCode(), contentRes.getStatus());
 	}
 
+	/**
+	 * Response 200 OK if some contact title starts with the prefix.
+	 */
+	@Test
+	public void testSuggest() {
+		post(12121);
+		ContentResponse contentRes = null;
+		try {
+			contentRes = client.GET(serviceUrl + "suggest?prefix=Contact%20nick&limit=5");
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals("Should response with 200 OK.",Response.Status.OK.getStatusCode(), contentRes.getStatus());
+	}
+
+	/**
+	 * Response 200 OK if some contact has the email address, and 404 if none.
+	 */
+	@Test
+	public void testGetByEmail() {
+		post(12131);
+		ContentResponse contentRes = null;
+		ContentResponse missing = null;
+		try {
+			contentRes = client.GET(serviceUrl + "?email=contact's%20email%20address%20EDITED");
+			missing = client.GET(serviceUrl + "?email=nobody@nowhere.com");
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals("Should response with 200 OK.",Response.Status.OK.getStatusCode(), contentRes.getStatus());
+		assertEquals("Should response with 404 NOT_FOUND.",Response.Status.NOT_FOUND.getStatusCode(), missing.getStatus());
+	}
+
+	/**
+	 * Get all contacts, which are streamed as one contacts document.
+	 */
+	@Test
+	public void testGetAll() {
+		ContentResponse empty = null;
+		ContentResponse all = null;
+		try {
+			empty = client.GET(serviceUrl);
+			for (long id = 1; id <= 3; id++)
+				post(id);
+			all = client.GET(serviceUrl);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.NOT_FOUND.getStatusCode(), empty.getStatus());
+		assertEquals(Response.Status.OK.getStatusCode(), all.getStatus());
+		String xml = all.getContentAsString();
+		assertTrue(xml.contains("<contacts>"));
+		assertTrue(xml.contains("id=\"3\""));
+		assertTrue(xml.endsWith("</contacts>"));
+	}
+
+	/**
+	 * Count contacts and check a contact exists with HEAD.
+	 */
+	@Test
+	public void testHead() {
+		for (long id = 1; id <= 3; id++)
+			post(id);
+		ContentResponse count = null;
+		ContentResponse found = null;
+		ContentResponse missing = null;
+		ContentResponse page = null;
+		try {
+			count = client.newRequest(serviceUrl).method(HttpMethod.HEAD).send();
+			found = client.newRequest(serviceUrl + 2).method(HttpMethod.HEAD).send();
+			missing = client.newRequest(serviceUrl + 99).method(HttpMethod.HEAD).send();
+			page = client.GET(serviceUrl + "?limit=1");
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.OK.getStatusCode(), count.getStatus());
+		assertEquals("3", count.getHeaders().get("X-Total-Count"));
+		assertEquals(Response.Status.OK.getStatusCode(), found.getStatus());
+		assertEquals(Response.Status.NOT_FOUND.getStatusCode(), missing.getStatus());
+		assertEquals("3", page.getHeaders().get("X-Total-Count"));
+	}
+
+	/**
+	 * Get only the ids and titles of contacts.
+	 */
+	@Test
+	public void testGetFields() {
+		for (long id = 1; id <= 3; id++)
+			post(id);
+		ContentResponse page = null;
+		ContentResponse all = null;
+		ContentResponse bad = null;
+		try {
+			page = client.GET(serviceUrl + "?limit=2&fields=id,title");
+			all = client.GET(serviceUrl + "?fields=title");
+			bad = client.GET(serviceUrl + "?fields=id,secret");
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.OK.getStatusCode(), page.getStatus());
+		String xml = page.getContentAsString();
+		assertTrue(xml.contains("<title>"));
+		assertTrue(!xml.contains("<email>"));
+		assertTrue(page.getHeaders().get("Link").contains("fields=id,title"));
+		assertEquals(Response.Status.OK.getStatusCode(), all.getStatus());
+		xml = all.getContentAsString();
+		assertTrue(xml.contains("id=\"3\""));
+		assertTrue(!xml.contains("<name>"));
+		assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), bad.getStatus());
+	}
+
+	/**
+	 * Get all contacts a page at a time, following the next links.
+	 */
+	@Test
+	public void testGetPages() {
+		for (long id = 1; id <= 5; id++)
+			post(id);
+		ContentResponse first = null;
+		ContentResponse last = null;
+		ContentResponse bad = null;
+		try {
+			first = client.GET(serviceUrl + "?limit=2");
+			last = client.GET(serviceUrl + "?after=4&limit=2");
+			bad = client.GET(serviceUrl + "?limit=0");
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.OK.getStatusCode(), first.getStatus());
+		String link = first.getHeaders().get("Link");
+		assertTrue("Should link to the next page", link.contains("rel=\"next\""));
+		assertTrue(link.contains("after=2"));
+		assertEquals(Response.Status.OK.getStatusCode(), last.getStatus());
+		assertNull("Last page has no next page", last.getHeaders().get("Link"));
+		assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), bad.getStatus());
+	}
+
+	/**
+	 * Get all contacts when there are more than one page of the stream, so
+	 * the pool thread that writes the response reads the later pages.
+	 */
+	@Test
+	public void testGetAllPages() {
+		for (long id = 1; id <= 600; id++)
+			contactDao.save(new Contact("contact " + id, "Name", "a" + id
+					+ "@b.com", "0812345678"));
+		ContentResponse all = null;
+		try {
+			all = client.newRequest(serviceUrl).timeout(10, TimeUnit.SECONDS)
+					.send();
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.OK.getStatusCode(), all.getStatus());
+		String xml = all.getContentAsString();
+		assertTrue(xml.contains("<title>contact 1</title>"));
+		assertTrue(xml.contains("<title>contact 600</title>"));
+		assertEquals("600", all.getHeaders().get("X-Total-Count"));
+	}
+
+	/**
+	 * Create contacts in a batch, with a status for each of them.
+	 */
+	@Test
+	public void testPostBatch() {
+		post(1);
+		Request req = client.newRequest(serviceUrl + "batch");
+		req = req.content(new StringContentProvider("<contacts>"
+				+ "<contact id=\"1\"><title>taken</title></contact>"
+				+ "<contact id=\"2\"><title>new</title></contact>"
+				+ "<contact id=\"2\"><title>twice</title></contact>"
+				+ "</contacts>"), "application/xml");
+		req = req.method(HttpMethod.POST);
+		ContentResponse contentRes = null;
+		try {
+			contentRes = req.send();
+		} catch (InterruptedException | TimeoutException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		assertEquals(Response.Status.OK.getStatusCode(), contentRes.getStatus());
+		String xml = contentRes.getContentAsString();
+		assertTrue(xml.contains("<result id=\"1\" status=\"409\"/>"));
+		assertTrue(xml.contains("<result id=\"2\" status=\"201\"/>"));
+		assertTrue(xml.indexOf("status=\"409\"", xml.indexOf("201")) > 0);
+		assertEquals(Response.Status.OK.getStatusCode(), get(2).getStatus());
+	}
+
 	/**
 	 * Get a contact by id.
 	 * 